@@ -0,0 +1,57 @@
+import kvbench.StoreDriver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark driver for LockingTransactionalKVStore. A begin locks its keys up front, waiting for them if
+ * another transaction holds them, and only one that times out waiting counts as a retry.
+ */
+public class LockingTransactionalKVStoreDriver implements StoreDriver {
+
+    private final LockingTransactionalKVStore<Integer, Integer> store =
+            new LockingTransactionalKVStore<Integer, Integer>();
+
+    public void populate(int keySpace) throws Exception {
+
+        List<Integer> keys = new ArrayList<Integer>(keySpace);
+        for (int key = 0; key < keySpace; key++) {
+            keys.add(key);
+        }
+
+        store.begin(0, keys);
+        for (int key = 0; key < keySpace; key++) {
+            store.write(key, key, 0);
+        }
+        store.commit(0);
+    }
+
+    public boolean begin(int transactionId, int[] keys) throws Exception {
+
+        List<Integer> keysToLock = new ArrayList<Integer>(keys.length);
+        for (int key : keys) {
+            keysToLock.add(key);
+        }
+
+        try {
+            store.begin(transactionId, keysToLock);
+            return true;
+        } catch (RetryLaterException rte) {
+            return false;
+        }
+    }
+
+    public Object read(int transactionId, int key) throws Exception {
+        return store.read(key, transactionId);
+    }
+
+    public void write(int transactionId, int key, int value) throws Exception {
+        store.write(key, value, transactionId);
+    }
+
+    public boolean commit(int transactionId) throws Exception {
+
+        store.commit(transactionId);
+        return true;
+    }
+}
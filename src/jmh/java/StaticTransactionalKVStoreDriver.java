@@ -0,0 +1,76 @@
+import kvbench.BatchDriver;
+import kvbench.StoreDriver;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Benchmark driver for StaticTransactionalKVStore. The store's transaction queue is not thread safe, so
+ * each call into it is made under the store's monitor. Its transactions never need to be retried.
+ */
+public class StaticTransactionalKVStoreDriver implements StoreDriver, BatchDriver {
+
+    private final StaticTransactionalKVStore<Integer, Integer> store =
+            new StaticTransactionalKVStore<Integer, Integer>();
+
+    public void populate(int keySpace) throws Exception {
+
+        store.begin(0);
+        for (int key = 0; key < keySpace; key++) {
+            store.write(key, key, 0);
+        }
+        store.commit(0);
+    }
+
+    public boolean begin(int transactionId, int[] keys) throws Exception {
+
+        synchronized (store) {
+            store.begin(transactionId);
+        }
+        return true;
+    }
+
+    public Object read(int transactionId, int key) throws Exception {
+
+        synchronized (store) {
+            store.read(key, transactionId);
+        }
+        return null;
+    }
+
+    public void write(int transactionId, int key, int value) throws Exception {
+
+        synchronized (store) {
+            store.write(key, value, transactionId);
+        }
+    }
+
+    public boolean commit(int transactionId) throws Exception {
+
+        synchronized (store) {
+            store.commit(transactionId);
+        }
+        return true;
+    }
+
+    public void queue(int transactionId, int[] keys, boolean[] writes) throws Exception {
+
+        synchronized (store) {
+            store.begin(transactionId);
+            for (int i = 0; i < keys.length; i++) {
+                if (writes[i]) {
+                    store.write(keys[i], transactionId, transactionId);
+                } else {
+                    store.read(keys[i], transactionId);
+                }
+            }
+        }
+    }
+
+    public void commitBatch(List<Integer> transactionIds, ForkJoinPool pool) throws Exception {
+
+        synchronized (store) {
+            store.commitBatch(transactionIds, pool);
+        }
+    }
+}
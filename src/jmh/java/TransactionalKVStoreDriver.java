@@ -0,0 +1,42 @@
+import kvbench.StoreDriver;
+
+/**
+ * Benchmark driver for TransactionalKVStore. Transactions rolled back at commit count as retries.
+ */
+public class TransactionalKVStoreDriver implements StoreDriver {
+
+    private final TransactionalKVStore<Integer, Integer> store = new TransactionalKVStore<Integer, Integer>();
+
+    public void populate(int keySpace) throws Exception {
+
+        store.begin(0);
+        for (int key = 0; key < keySpace; key++) {
+            store.write(key, key, 0);
+        }
+        store.commit(0);
+    }
+
+    public boolean begin(int transactionId, int[] keys) throws Exception {
+
+        store.begin(transactionId);
+        return true;
+    }
+
+    public Object read(int transactionId, int key) throws Exception {
+        return store.read(key, transactionId);
+    }
+
+    public void write(int transactionId, int key, int value) throws Exception {
+        store.write(key, value, transactionId);
+    }
+
+    public boolean commit(int transactionId) throws Exception {
+
+        try {
+            store.commit(transactionId);
+            return true;
+        } catch (RetryLaterException rte) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package kvbench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long StaticTransactionalKVStore takes to commit a batch of queued transactions, against the
+ * parallelism of the pool it commits them on. With a uniform pick of keys from a large key space, most
+ * transactions share no keys and the batch splits into many groups, so the time should fall as the
+ * pool grows; with a skewed pick, groups merge and there is less to spread.
+ * <p/>
+ * Run with e.g.
+ * java -jar target/benchmarks.jar BatchBenchmarks -p parallelism=1,4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchBenchmarks {
+
+    @Param({"1", "2", "4"})
+    public int parallelism;
+
+    @Param({"1024"})
+    public int batchSize;
+
+    @Param({"100000"})
+    public int keySpace;
+
+    @Param({"0", "0.99"})
+    public double skew;
+
+    @Param({"0.5"})
+    public double readRatio;
+
+    @Param({"4"})
+    public int operationsPerTransaction;
+
+    BatchDriver driver;
+    ZipfianGenerator keys;
+    ForkJoinPool pool;
+    final Random random = new Random(42);
+    int nextTransactionId;
+    List<Integer> batch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        driver = (BatchDriver) Class.forName("StaticTransactionalKVStoreDriver").getDeclaredConstructor().newInstance();
+        driver.populate(keySpace);
+        keys = new ZipfianGenerator(keySpace, skew);
+        pool = new ForkJoinPool(parallelism);
+        nextTransactionId = 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Queue the next batch, outside the timing
+     */
+    @Setup(Level.Invocation)
+    public void queueBatch() throws Exception {
+
+        batch = new ArrayList<Integer>(batchSize);
+        final int[] transactionKeys = new int[operationsPerTransaction];
+        final boolean[] writes = new boolean[operationsPerTransaction];
+        for (int t = 0; t < batchSize; t++) {
+            for (int i = 0; i < operationsPerTransaction; i++) {
+                transactionKeys[i] = keys.next(random);
+                writes[i] = random.nextDouble() >= readRatio;
+            }
+            final int transactionId = nextTransactionId++;
+            driver.queue(transactionId, transactionKeys, writes);
+            batch.add(transactionId);
+        }
+    }
+
+    @Benchmark
+    public void commitBatch() throws Exception {
+        driver.commitBatch(batch, pool);
+    }
+}
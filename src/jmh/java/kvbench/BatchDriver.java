@@ -0,0 +1,33 @@
+package kvbench;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Queues transactions in a store that commits them in batches, and commits a batch, for
+ * BatchBenchmarks. As with StoreDriver, the implementation sits next to the store and is looked up by
+ * name.
+ */
+public interface BatchDriver {
+
+    /**
+     * Write a value for every key from 0 up to keySpace, before anything is measured
+     *
+     * @param keySpace
+     * @throws Exception
+     */
+    void populate(int keySpace) throws Exception;
+
+    /**
+     * Begin a transaction and queue an operation on each key, a write where writes is set and a read
+     * otherwise
+     *
+     * @param transactionId
+     * @param keys
+     * @param writes
+     * @throws Exception
+     */
+    void queue(int transactionId, int[] keys, boolean[] writes) throws Exception;
+
+    void commitBatch(List<Integer> transactionIds, ForkJoinPool pool) throws Exception;
+}
@@ -0,0 +1,253 @@
+package kvbench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transaction throughput and latency of the stores, over a populated key space.
+ * <p/>
+ * The transaction benchmark begins, reads or writes operationsPerTransaction keys and commits. Keys are
+ * picked with the given Zipfian skew, and each one is written with probability 1 - readRatio. The
+ * committed and retried counters show how much of the throughput was useful work, and how much was
+ * spent on transactions the store turned away.
+ * <p/>
+ * The begin, read, write and commit benchmarks time one phase of such a transaction each. The rest of
+ * the transaction is done around every call, outside the timing, so these are best read in SampleTime
+ * mode: at a few microseconds a call, JMH's own per-call bookkeeping shows in the throughput.
+ * <p/>
+ * Run with the usual JMH options, the thread count included, e.g.
+ * java -jar target/benchmarks.jar StoreBenchmarks -t 4 -p skew=0.99
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreBenchmarks {
+
+    private static final int[] NO_KEYS = new int[0];
+
+    @Param({"TransactionalKVStore", "LockingTransactionalKVStore", "StaticTransactionalKVStore",
+            "LongTransactionalKVStore"})
+    public String store;
+
+    @Param({"1000", "100000"})
+    public int keySpace;
+
+    @Param({"0.9", "0.5"})
+    public double readRatio;
+
+    @Param({"0", "0.99"})
+    public double skew;
+
+    @Param({"4"})
+    public int operationsPerTransaction;
+
+    StoreDriver driver;
+    ZipfianGenerator keys;
+    final AtomicInteger transactionIds = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        // The drivers sit next to the stores, in the default package
+        driver = (StoreDriver) Class.forName(store + "Driver").getDeclaredConstructor().newInstance();
+        driver.populate(keySpace);
+        keys = new ZipfianGenerator(keySpace, skew);
+        transactionIds.set(1);
+    }
+
+    /**
+     * The keys and operations of the next transaction a thread runs
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        int[] keys;
+        boolean[] writes;
+
+        @Setup(Level.Trial)
+        public void setUp(StoreBenchmarks benchmark) {
+
+            keys = new int[benchmark.operationsPerTransaction];
+            writes = new boolean[benchmark.operationsPerTransaction];
+        }
+
+        void nextTransaction(StoreBenchmarks benchmark) {
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = benchmark.keys.next(random);
+                writes[i] = random.nextDouble() >= benchmark.readRatio;
+            }
+        }
+
+        /**
+         * Begin the next transaction, trying again for as long as the store turns the begin away
+         *
+         * @return its id
+         */
+        int begin(StoreBenchmarks benchmark) throws Exception {
+
+            while (true) {
+                final int transactionId = benchmark.transactionIds.getAndIncrement();
+                if (benchmark.driver.begin(transactionId, keys)) {
+                    return transactionId;
+                }
+            }
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Outcomes {
+
+        public long committed;
+        public long retried;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            committed = 0;
+            retried = 0;
+        }
+
+        boolean count(boolean committed) {
+
+            if (committed) {
+                this.committed++;
+            } else {
+                retried++;
+            }
+            return committed;
+        }
+    }
+
+    /**
+     * A transaction over one key, with an id picked but not yet begun, for timing begin()
+     */
+    @State(Scope.Thread)
+    public static class Unbegun {
+
+        int transactionId;
+        final int[] keys = new int[1];
+        boolean begun;
+
+        @Setup(Level.Invocation)
+        public void setUp(StoreBenchmarks benchmark) {
+
+            keys[0] = benchmark.keys.next(ThreadLocalRandom.current());
+            transactionId = benchmark.transactionIds.getAndIncrement();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown(StoreBenchmarks benchmark) throws Exception {
+
+            if (begun) {
+                benchmark.driver.commit(transactionId);
+                begun = false;
+            }
+        }
+    }
+
+    /**
+     * A transaction over one key, begun but with nothing done yet, for timing a read or a write of it
+     */
+    @State(Scope.Thread)
+    public static class Begun {
+
+        int transactionId;
+        final int[] keys = new int[1];
+
+        @Setup(Level.Invocation)
+        public void setUp(StoreBenchmarks benchmark) throws Exception {
+
+            keys[0] = benchmark.keys.next(ThreadLocalRandom.current());
+            while (true) {
+                transactionId = benchmark.transactionIds.getAndIncrement();
+                if (benchmark.driver.begin(transactionId, keys)) {
+                    return;
+                }
+                // Locked by another thread's transaction for too long
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown(StoreBenchmarks benchmark) throws Exception {
+            benchmark.driver.commit(transactionId);
+        }
+    }
+
+    /**
+     * A transaction with all its reads and writes done, for timing its commit
+     */
+    @State(Scope.Thread)
+    public static class Prepared {
+
+        int transactionId;
+
+        @Setup(Level.Invocation)
+        public void setUp(StoreBenchmarks benchmark, Client client) throws Exception {
+
+            client.nextTransaction(benchmark);
+            transactionId = client.begin(benchmark);
+            run(benchmark.driver, transactionId, client);
+        }
+    }
+
+    private static void run(StoreDriver driver, int transactionId, Client client) throws Exception {
+
+        for (int i = 0; i < client.keys.length; i++) {
+            if (client.writes[i]) {
+                driver.write(transactionId, client.keys[i], transactionId);
+            } else {
+                driver.read(transactionId, client.keys[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean transaction(Client client, Outcomes outcomes) throws Exception {
+
+        client.nextTransaction(this);
+        final int transactionId = transactionIds.getAndIncrement();
+        if (!driver.begin(transactionId, client.keys)) {
+            return outcomes.count(false);
+        }
+        run(driver, transactionId, client);
+        return outcomes.count(driver.commit(transactionId));
+    }
+
+    /**
+     * The fixed cost of begin and commit, with no reads or writes in between
+     */
+    @Benchmark
+    public boolean emptyTransaction() throws Exception {
+
+        final int transactionId = transactionIds.getAndIncrement();
+        return driver.begin(transactionId, NO_KEYS) && driver.commit(transactionId);
+    }
+
+    @Benchmark
+    public boolean begin(Unbegun transaction) throws Exception {
+        return transaction.begun = driver.begin(transaction.transactionId, transaction.keys);
+    }
+
+    @Benchmark
+    public Object read(Begun transaction) throws Exception {
+        return driver.read(transaction.transactionId, transaction.keys[0]);
+    }
+
+    @Benchmark
+    public void write(Begun transaction) throws Exception {
+        driver.write(transaction.transactionId, transaction.keys[0], transaction.transactionId);
+    }
+
+    @Benchmark
+    public boolean commit(Prepared transaction, Outcomes outcomes) throws Exception {
+        return outcomes.count(driver.commit(transaction.transactionId));
+    }
+}
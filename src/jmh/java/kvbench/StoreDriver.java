@@ -0,0 +1,39 @@
+package kvbench;
+
+/**
+ * Runs benchmark transactions against a store, a phase at a time. The stores live in the default
+ * package, which benchmark code cannot import, so each has a driver there that implements this and is
+ * looked up by name.
+ */
+public interface StoreDriver {
+
+    /**
+     * Write a value for every key from 0 up to keySpace, before anything is measured
+     *
+     * @param keySpace
+     * @throws Exception
+     */
+    void populate(int keySpace) throws Exception;
+
+    /**
+     * Begin a transaction that will use the given keys, and no others
+     *
+     * @param transactionId unique across all threads
+     * @param keys
+     * @return false if the store asked for the transaction to be retried before it even began
+     * @throws Exception
+     */
+    boolean begin(int transactionId, int[] keys) throws Exception;
+
+    /**
+     * @return what the store read, or null if it only returns reads at commit
+     */
+    Object read(int transactionId, int key) throws Exception;
+
+    void write(int transactionId, int key, int value) throws Exception;
+
+    /**
+     * @return true if the transaction committed, false if the store asked for it to be retried
+     */
+    boolean commit(int transactionId) throws Exception;
+}
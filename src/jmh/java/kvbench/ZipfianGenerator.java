@@ -0,0 +1,52 @@
+package kvbench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Picks keys from 0 up to a given count, with the probability of key k proportional to 1 / (k + 1)^skew.
+ * A skew of 0 is uniform, and around 1 a small set of low keys gets most of the traffic.
+ */
+final class ZipfianGenerator {
+
+    private final int items;
+
+    // Cumulative probability of each key, or null for a uniform pick
+    private final double[] cumulative;
+
+    ZipfianGenerator(int items, double skew) {
+
+        if (items <= 0 || skew < 0) {
+            throw new IllegalArgumentException("Need a positive number of items and a non-negative skew");
+        }
+
+        this.items = items;
+        if (skew == 0) {
+            this.cumulative = null;
+            return;
+        }
+
+        this.cumulative = new double[items];
+        double total = 0;
+        for (int i = 0; i < items; i++) {
+            total += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < items; i++) {
+            cumulative[i] /= total;
+        }
+    }
+
+    int next(Random random) {
+
+        if (cumulative == null) {
+            return random.nextInt(items);
+        }
+
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return Math.min(index, items - 1);
+    }
+}
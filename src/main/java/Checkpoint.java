@@ -0,0 +1,380 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * A point-in-time copy of a store's master map, so that a restart only has to replay the part of the
+ * write-ahead log written after it.
+ * <p/>
+ * A checkpoint is written from a snapshot version, the same way a transaction reads, so commits carry
+ * on while it is being written. It goes to a temporary file that is only renamed into place once it
+ * is complete and on disk, so a checkpoint file that exists is always whole.
+ * <p/>
+ * Layout, written and read through memory mappings: a header of [int magic][int format][long
+ * version][long entry count], then one entry per live key of [key][long last written][int value
+ * length][value]. Keys and values start with a one byte type tag. Integers, longs, strings and byte
+ * arrays are stored directly; anything else must be Serializable and is stored as its Java
+ * serialization.
+ * <p/>
+ * Loading decodes the keys, since they are needed to rebuild the map, but leaves each value in the
+ * mapped file until it is first read.
+ */
+public class Checkpoint {
+
+    private static final int MAGIC = 0x4B56434B;
+    private static final int FORMAT = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8;
+    private static final long MAPPED_REGION_BYTES = 64L * 1024 * 1024;
+
+    private static final String FILE_PREFIX = "checkpoint-";
+    private static final String FILE_SUFFIX = ".ckpt";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final byte TYPE_INTEGER = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_STRING = 3;
+    private static final byte TYPE_BYTES = 4;
+    private static final byte TYPE_SERIALIZED = 5;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Checkpoint() {
+    }
+
+    /**
+     * Write the master map as of the given snapshot version. The caller must make sure the versions
+     * visible at that snapshot are not reclaimed until this returns.
+     *
+     * @param directory
+     * @param masterMap
+     * @param snapshotVersion
+     * @return the checkpoint file
+     * @throws IOException
+     */
+    static <K, V> File write(File directory, Map<K, MetadataValue<V>> masterMap, long snapshotVersion)
+            throws IOException {
+
+        final File target = checkpointFile(directory, snapshotVersion);
+        final File temporary = new File(directory, target.getName() + TEMPORARY_SUFFIX);
+
+        FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedWriter out = new MappedWriter(channel);
+            long entries = 0;
+            for (Map.Entry<K, MetadataValue<V>> entry : masterMap.entrySet()) {
+
+                MetadataValue.Version<V> version = entry.getValue().getVersionAsOf(snapshotVersion);
+                if (version == null) {
+                    // created after the snapshot, or only ever read
+                    continue;
+                }
+
+                // A value still sitting undecoded in the previous checkpoint is copied over as it is
+                final Object stored = version.getStored();
+                final byte[] value = stored instanceof LazyValue ?
+                        ((LazyValue) stored).getEncoded() : encode(version.getValue());
+                if (value == null) {
+                    // removed as of the snapshot
+                    continue;
+                }
+
+                final byte[] key = encode(entry.getKey());
+                ByteBuffer buffer = out.reserve(key.length + 8 + 4 + value.length);
+                buffer.put(key);
+                buffer.putLong(version.version);
+                buffer.putInt(value.length);
+                buffer.put(value);
+                entries++;
+            }
+            out.finish(snapshotVersion, entries);
+        } finally {
+            channel.close();
+        }
+
+        Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return target;
+    }
+
+    /**
+     * Map a checkpoint file and put every key in it into the given map.
+     *
+     * @param file
+     * @param masterMap
+     * @return the version the checkpoint was taken at
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> long load(File file, Map<K, MetadataValue<V>> masterMap) throws IOException {
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        final ByteBuffer mapped;
+        try {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Checkpoint " + file + " is too large to map");
+            }
+            // The mapping stays valid after the channel is closed, for as long as lazy values refer to it
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).asReadOnlyBuffer();
+        } finally {
+            channel.close();
+        }
+
+        ByteBuffer in = mapped.duplicate();
+        if (in.remaining() < HEADER_BYTES || in.getInt() != MAGIC || in.getInt() != FORMAT) {
+            throw new IOException(file + " is not a checkpoint");
+        }
+        final long version = in.getLong();
+        final long entries = in.getLong();
+
+        for (long i = 0; i < entries; i++) {
+
+            final K key = (K) decode(in);
+            final long lastWritten = in.getLong();
+            final int valueLength = in.getInt();
+            LazyValue value = new LazyValue(mapped, in.position(), valueLength);
+            in.position(in.position() + valueLength);
+            masterMap.put(key, MetadataValue.<V>fromCheckpoint(value, lastWritten));
+        }
+
+        return version;
+    }
+
+    /**
+     * The newest checkpoint in the directory, or null if there is none
+     *
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    static File latest(File directory) throws IOException {
+
+        File latest = null;
+        for (File file : list(directory)) {
+            if (latest == null || versionOf(file) > versionOf(latest)) {
+                latest = file;
+            }
+        }
+        return latest;
+    }
+
+    static long versionOf(File checkpoint) {
+
+        final String name = checkpoint.getName();
+        return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+    }
+
+    /**
+     * Delete the checkpoints older than the given version, along with any left half written
+     *
+     * @param directory
+     * @param version
+     * @throws IOException
+     */
+    static void deleteOlderThan(File directory, long version) throws IOException {
+
+        File[] temporaries = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX + TEMPORARY_SUFFIX);
+            }
+        });
+        if (temporaries != null) {
+            for (File temporary : temporaries) {
+                temporary.delete();
+            }
+        }
+
+        for (File file : list(directory)) {
+            if (versionOf(file) < version && !file.delete()) {
+                throw new IOException("Could not delete old checkpoint " + file);
+            }
+        }
+    }
+
+    private static File checkpointFile(File directory, long version) {
+        return new File(directory, String.format("%s%016d%s", FILE_PREFIX, version, FILE_SUFFIX));
+    }
+
+    private static File[] list(File directory) throws IOException {
+
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Could not list checkpoint directory " + directory);
+        }
+        return files;
+    }
+
+    private static byte[] encode(Object object) throws IOException {
+
+        if (object == null) {
+            return null;
+        }
+
+        final ByteBuffer buffer;
+        if (object instanceof Integer) {
+            buffer = ByteBuffer.allocate(1 + 4).put(TYPE_INTEGER).putInt((Integer) object);
+        } else if (object instanceof Long) {
+            buffer = ByteBuffer.allocate(1 + 8).put(TYPE_LONG).putLong((Long) object);
+        } else if (object instanceof String) {
+            final byte[] bytes = ((String) object).getBytes(UTF_8);
+            buffer = ByteBuffer.allocate(1 + 4 + bytes.length).put(TYPE_STRING).putInt(bytes.length).put(bytes);
+        } else if (object instanceof byte[]) {
+            final byte[] bytes = (byte[]) object;
+            buffer = ByteBuffer.allocate(1 + 4 + bytes.length).put(TYPE_BYTES).putInt(bytes.length).put(bytes);
+        } else {
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(serialized);
+            out.writeObject(object);
+            out.close();
+            final byte[] bytes = serialized.toByteArray();
+            buffer = ByteBuffer.allocate(1 + 4 + bytes.length).put(TYPE_SERIALIZED).putInt(bytes.length).put(bytes);
+        }
+        return buffer.array();
+    }
+
+    private static Object decode(ByteBuffer in) throws IOException {
+
+        final byte type = in.get();
+        switch (type) {
+            case TYPE_INTEGER:
+                return in.getInt();
+            case TYPE_LONG:
+                return in.getLong();
+            case TYPE_STRING:
+                return new String(readBytes(in), UTF_8);
+            case TYPE_BYTES:
+                return readBytes(in);
+            case TYPE_SERIALIZED:
+                ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)));
+                try {
+                    return objects.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Checkpoint refers to a class that is not available", e);
+                } finally {
+                    objects.close();
+                }
+            default:
+                throw new IOException("Unknown type " + type + " in checkpoint");
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+
+        final byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * A value loaded from a checkpoint, which is only decoded from the mapped file the first time it is
+     * read. The store holds it in place of the value until then.
+     */
+    static class LazyValue implements MetadataValue.StoredValue {
+
+        private final ByteBuffer mapped;
+        private final int offset;
+        private final int length;
+        private volatile Object decoded;
+
+        LazyValue(ByteBuffer mapped, int offset, int length) {
+
+            this.mapped = mapped;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public Object get() {
+
+            // Values are immutable, so two threads decoding at once is harmless
+            Object value = decoded;
+            if (value == null) {
+                ByteBuffer in = mapped.duplicate();
+                in.position(offset);
+                try {
+                    value = decode(in);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not decode checkpointed value", e);
+                }
+                decoded = value;
+            }
+            return value;
+        }
+
+        boolean isDecoded() {
+            return decoded != null;
+        }
+
+        byte[] getEncoded() {
+
+            final byte[] encoded = new byte[length];
+            ByteBuffer in = mapped.duplicate();
+            in.position(offset);
+            in.get(encoded);
+            return encoded;
+        }
+    }
+
+    /**
+     * Writes a file through a window of it mapped into memory, moving the window along as it fills up.
+     */
+    private static class MappedWriter {
+
+        private final FileChannel channel;
+        private MappedByteBuffer region;
+        private long regionStart;
+
+        MappedWriter(FileChannel channel) throws IOException {
+
+            this.channel = channel;
+            this.regionStart = 0;
+            this.region = channel.map(FileChannel.MapMode.READ_WRITE, 0, MAPPED_REGION_BYTES);
+            region.position(HEADER_BYTES);
+        }
+
+        /**
+         * A buffer with room for the given number of bytes at the current end of the file
+         */
+        ByteBuffer reserve(int bytes) throws IOException {
+
+            if (region.remaining() < bytes) {
+                region.force();
+                regionStart += region.position();
+                if (regionStart + bytes > Integer.MAX_VALUE) {
+                    throw new IOException("Checkpoint is too large to map");
+                }
+                region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart,
+                        Math.max(MAPPED_REGION_BYTES, bytes));
+            }
+            return region;
+        }
+
+        /**
+         * Write the header, cut the file down to what was written and force it to disk
+         */
+        void finish(long version, long entries) throws IOException {
+
+            region.force();
+            final long length = regionStart + region.position();
+
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.putInt(MAGIC);
+            header.putInt(FORMAT);
+            header.putLong(version);
+            header.putLong(entries);
+            header.force();
+
+            channel.truncate(length);
+            channel.force(true);
+        }
+    }
+}
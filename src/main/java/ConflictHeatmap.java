@@ -0,0 +1,289 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Which keys transactions are rolled back on the most, so hot keys can be found and designed away.
+ * <p/>
+ * Keys are counted with the Space-Saving algorithm: at most capacity keys are tracked at once, and a
+ * conflict on a key that is not tracked when they all are takes over the counter of the least
+ * conflicted key, carrying on from its count. A key's count is then never under its true count, and is
+ * over it by at most the count it took over, which is kept as its overestimate. Any key with more than
+ * 1/capacity of all the conflicts is sure to be tracked.
+ * <p/>
+ * Along with the count, each tracked key keeps how often replayable transactions were re-run after
+ * conflicting on it, and its last few conflicts: the transaction rolled back, the transaction whose
+ * commit invalidated it, and that commit's version.
+ * <p/>
+ * Conflicts can be sampled, when there are so many that even this is too much. Each sampled one is then
+ * counted as many times as one in how many are sampled, so counts keep their scale.
+ */
+public class ConflictHeatmap {
+
+    public static final int DEFAULT_CAPACITY = 64;
+    static final int RECENT_CONFLICTS = 8;
+
+    private final int capacity;
+    private volatile int sampleEvery = 1;
+
+    // Guarded by this
+    private final Map<Object, Counter> counters = new HashMap<Object, Counter>();
+    private long totalConflicts;
+
+    public ConflictHeatmap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ConflictHeatmap(int capacity) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, not " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Only record about one in every sampleEvery conflicts
+     *
+     * @param sampleEvery 1 to record them all
+     */
+    public void setSampleEvery(int sampleEvery) {
+
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("Must sample at least one in every " + sampleEvery);
+        }
+        this.sampleEvery = sampleEvery;
+    }
+
+    /**
+     * A transaction was rolled back because the key was written by another transaction's commit, at
+     * invalidatingVersion, after the transaction began
+     */
+    void recordConflict(Object key, int abortedTransactionId, int committedTransactionId,
+                        long invalidatingVersion) {
+
+        final int every = sampleEvery;
+        if (every > 1 && ThreadLocalRandom.current().nextInt(every) != 0) {
+            return;
+        }
+
+        synchronized (this) {
+            totalConflicts += every;
+            Counter counter = counters.get(key);
+            if (counter == null) {
+                counter = claimCounter(key);
+            }
+            counter.conflicts += every;
+            counter.recentTransactionIds[counter.recentCount % RECENT_CONFLICTS] = abortedTransactionId;
+            counter.recentCommittedIds[counter.recentCount % RECENT_CONFLICTS] = committedTransactionId;
+            counter.recentVersions[counter.recentCount % RECENT_CONFLICTS] = invalidatingVersion;
+            counter.recentCount++;
+        }
+    }
+
+    /**
+     * A transaction rolled back on the key is being run again. Only counted while the key is tracked.
+     */
+    synchronized void recordRetry(Object key) {
+
+        final Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.retries++;
+        }
+    }
+
+    private Counter claimCounter(Object key) {
+
+        Counter counter;
+        if (counters.size() < capacity) {
+            counter = new Counter();
+        } else {
+            // Capacity is small, so finding the least conflicted key by looking through them is cheap
+            // enough next to the rolled back transaction that got us here
+            Object leastKey = null;
+            counter = null;
+            for (Map.Entry<Object, Counter> entry : counters.entrySet()) {
+                if (counter == null || entry.getValue().conflicts < counter.conflicts) {
+                    leastKey = entry.getKey();
+                    counter = entry.getValue();
+                }
+            }
+            counters.remove(leastKey);
+            counter.overestimate = counter.conflicts;
+            counter.retries = 0;
+            counter.recentCount = 0;
+        }
+        counters.put(key, counter);
+        return counter;
+    }
+
+    /**
+     * The conflicts recorded since the heatmap was created or last reset, on all keys, tracked or not
+     */
+    public synchronized long getTotalConflicts() {
+        return totalConflicts;
+    }
+
+    /**
+     * The n most conflicted keys, most conflicted first
+     *
+     * @param n
+     * @return
+     */
+    public List<HotKey> topKeys(int n) {
+        return snapshot(n, false);
+    }
+
+    /**
+     * The n most conflicted keys, as topKeys() does, and optionally start counting again from nothing,
+     * so the next snapshot only covers what happened after this one
+     *
+     * @param n
+     * @param reset
+     * @return
+     */
+    public synchronized List<HotKey> snapshot(int n, boolean reset) {
+
+        final List<HotKey> keys = new ArrayList<HotKey>(counters.size());
+        for (Map.Entry<Object, Counter> entry : counters.entrySet()) {
+            keys.add(new HotKey(entry.getKey(), entry.getValue()));
+        }
+        Collections.sort(keys, new Comparator<HotKey>() {
+            public int compare(HotKey a, HotKey b) {
+                return Long.compare(b.conflicts, a.conflicts);
+            }
+        });
+
+        if (reset) {
+            counters.clear();
+            totalConflicts = 0;
+        }
+        return keys.size() > n ? new ArrayList<HotKey>(keys.subList(0, n)) : keys;
+    }
+
+    /**
+     * Told the most conflicted keys of each period. See TransactionalKVStore.reportHotKeys().
+     */
+    public interface Reporter {
+        void report(List<HotKey> hotKeys, long totalConflicts);
+    }
+
+    private static final class Counter {
+
+        long conflicts;
+        long overestimate;
+        long retries;
+
+        // The last RECENT_CONFLICTS conflicts, going round
+        final int[] recentTransactionIds = new int[RECENT_CONFLICTS];
+        final int[] recentCommittedIds = new int[RECENT_CONFLICTS];
+        final long[] recentVersions = new long[RECENT_CONFLICTS];
+        int recentCount;
+    }
+
+    /**
+     * One tracked key, as of a snapshot
+     */
+    public static final class HotKey {
+
+        private final Object key;
+        private final long conflicts;
+        private final long overestimate;
+        private final long retries;
+        private final List<Conflict> recentConflicts;
+
+        private HotKey(Object key, Counter counter) {
+
+            this.key = key;
+            this.conflicts = counter.conflicts;
+            this.overestimate = counter.overestimate;
+            this.retries = counter.retries;
+
+            final int recent = Math.min(counter.recentCount, RECENT_CONFLICTS);
+            this.recentConflicts = new ArrayList<Conflict>(recent);
+            for (int i = counter.recentCount - 1; i >= counter.recentCount - recent; i--) {
+                final int index = i % RECENT_CONFLICTS;
+                recentConflicts.add(new Conflict(counter.recentTransactionIds[index], counter.recentCommittedIds[index],
+                        counter.recentVersions[index]));
+            }
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        /**
+         * Transactions rolled back on the key. At most getOverestimate() more than the true number.
+         */
+        public long getConflicts() {
+            return conflicts;
+        }
+
+        public long getOverestimate() {
+            return overestimate;
+        }
+
+        /**
+         * Replayable transactions run again after being rolled back on the key, since it was last tracked
+         */
+        public long getRetries() {
+            return retries;
+        }
+
+        /**
+         * The last few conflicts on the key, latest first
+         */
+        public List<Conflict> getRecentConflicts() {
+            return recentConflicts;
+        }
+
+        @Override
+        public String toString() {
+            return key + ": " + conflicts + " conflicts (at most " + overestimate + " over), " + retries + " retries";
+        }
+    }
+
+    /**
+     * The two transactions in a conflict on a key: the one rolled back, and the one whose commit wrote the
+     * key after it began
+     */
+    public static final class Conflict {
+
+        private final int abortedTransactionId;
+        private final int committedTransactionId;
+        private final long invalidatingVersion;
+
+        Conflict(int abortedTransactionId, int committedTransactionId, long invalidatingVersion) {
+
+            this.abortedTransactionId = abortedTransactionId;
+            this.committedTransactionId = committedTransactionId;
+            this.invalidatingVersion = invalidatingVersion;
+        }
+
+        public int getAbortedTransactionId() {
+            return abortedTransactionId;
+        }
+
+        /**
+         * The transaction that committed the write, or -1 if the write was loaded from a checkpoint or the
+         * write-ahead log when the store was opened
+         */
+        public int getCommittedTransactionId() {
+            return committedTransactionId;
+        }
+
+        public long getInvalidatingVersion() {
+            return invalidatingVersion;
+        }
+
+        @Override
+        public String toString() {
+            return "transaction " + abortedTransactionId + " invalidated by transaction " + committedTransactionId +
+                    ", committed at " + invalidatingVersion;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * How much a TransactionalKVStore checks a transaction against the commits made since it began, before
+ * letting it commit. Every level reads from the transaction's own snapshot; they differ in what rolls
+ * a transaction back.
+ */
+public enum IsolationLevel {
+
+    /**
+     * Roll back a transaction if any key it read, wrote or scanned was written since it began. Simple,
+     * and serializable, but two transactions that only both write a key, without reading it, still
+     * conflict. The default.
+     */
+    SERIALIZABLE,
+
+    /**
+     * Roll back a transaction only if a key it wrote was written since it began, so the first to commit
+     * wins. Reads and scans are not checked, so two transactions that each read what the other writes can
+     * both commit, which no serial order would allow (write skew).
+     */
+    SNAPSHOT,
+
+    /**
+     * Snapshot isolation, plus tracking of the read-write antidependencies between concurrent
+     * transactions: one transaction reading a version of a key that another, concurrent one overwrites.
+     * Any history that cannot be serialized has a transaction with such a dependency coming in, and one
+     * going out to a transaction that committed first. Only that rolls a transaction back, so reads of
+     * keys written since, and blind writes to them, mostly commit.
+     * <p/>
+     * It can also roll back transactions that would have been fine, since it only looks at the two
+     * dependencies and not at the whole cycle. Read-only transactions are not tracked: they read a
+     * consistent snapshot, but not always one that a serial order of the writers would have shown them.
+     */
+    SERIALIZABLE_SNAPSHOT
+}
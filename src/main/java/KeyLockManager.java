@@ -0,0 +1,447 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shared and exclusive locks on keys, held by a transaction rather than a thread, from the moment it
+ * takes them to its commit, whatever threads it is called from in between.
+ * <p/>
+ * Keys are hashed onto a fixed set of stripes, as in StripedLocks. Any number of transactions can hold
+ * a stripe shared, to read, or one can hold it exclusive, to write. A transaction holding a stripe
+ * shared can upgrade it to exclusive once the other readers are gone.
+ * <p/>
+ * A stripe that cannot be granted straight away has a FIFO queue of the transactions waiting for it,
+ * each parked on its own thread. Releasing a stripe hands it straight to the head of its queue, along
+ * with any readers right behind a reader, and unparks them, so nothing can barge in between and a
+ * waiter starts as soon as the stripe is free.
+ * <p/>
+ * Stripes taken all at once with lockAll() are taken in increasing order, so those callers cannot
+ * deadlock on one another. Stripes taken one at a time as keys are used can, so every transaction
+ * about to wait first looks through the wait-for graph: who it waits for, who they wait for, and so on.
+ * If that leads back to itself, the youngest transaction on the cycle is chosen as the victim, and its
+ * wait ends in a TransactionAbortedException.
+ */
+class KeyLockManager {
+
+    private final Stripe[] stripes;
+    private final int mask;
+    private final AtomicLong ages = new AtomicLong();
+
+    KeyLockManager(int minimumStripes) {
+
+        int size = 1;
+        while (size < minimumStripes) {
+            size <<= 1;
+        }
+
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * What the locks of one transaction are held by. Younger transactions get later ones.
+     */
+    Owner newOwner(int transactionId) {
+        return new Owner(transactionId, ages.incrementAndGet());
+    }
+
+    int stripeFor(Object key) {
+        return StripedLocks.stripeFor(key, mask);
+    }
+
+    /**
+     * The stripes to lock for the given keys, in the order they must be locked
+     */
+    int[] stripesFor(Collection<?> keys) {
+        return StripedLocks.stripesFor(keys, mask);
+    }
+
+    /**
+     * Take every one of the stripes exclusively, waiting in line for those that are held
+     *
+     * @param owner           which must not hold any stripes yet
+     * @param orderedStripes  from stripesFor()
+     * @param timeout
+     * @param unit
+     * @return how many stripes could not be taken in time, 0 if they all were. None are held then.
+     * @throws InterruptedException
+     * @throws TransactionAbortedException if chosen as a deadlock victim. None are held then either.
+     */
+    int lockAll(Owner owner, int[] orderedStripes, long timeout, TimeUnit unit) throws InterruptedException {
+
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int i = 0; i < orderedStripes.length; i++) {
+
+            boolean locked = false;
+            try {
+                locked = lock(owner, orderedStripes[i], true, deadline);
+            } finally {
+                if (!locked) {
+                    // Holding on to the rest would only hold others up
+                    unlockAll(owner);
+                }
+            }
+            if (!locked) {
+                return orderedStripes.length - i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Take the stripe shared or exclusively for the owner, waiting in line for as long as it takes
+     *
+     * @throws InterruptedException
+     * @throws TransactionAbortedException if chosen as a deadlock victim
+     */
+    void lock(Owner owner, int stripe, boolean exclusive) throws InterruptedException {
+        lock(owner, stripe, exclusive, 0);
+    }
+
+    /**
+     * @param deadline a System.nanoTime() to give up at, or 0 to wait until the stripe is granted
+     * @return whether it was granted before the deadline
+     */
+    private boolean lock(Owner owner, int stripeIndex, boolean exclusive, long deadline) throws InterruptedException {
+
+        if (owner.holds(stripeIndex, exclusive)) {
+            return true;
+        }
+
+        final Stripe stripe = stripes[stripeIndex];
+        final Waiter waiter;
+        synchronized (stripe) {
+
+            final boolean upgrade = exclusive && stripe.sharedHolders.contains(owner);
+            if (stripe.compatible(owner, exclusive) && (upgrade || stripe.waiters.isEmpty())) {
+                stripe.grant(owner, exclusive);
+                owner.granted(stripeIndex, exclusive);
+                return true;
+            }
+
+            waiter = new Waiter(owner, Thread.currentThread(), stripeIndex, exclusive);
+            if (upgrade) {
+                // Whoever is queued is waiting for this owner's shared hold anyway
+                stripe.waiters.addFirst(waiter);
+            } else {
+                stripe.waiters.addLast(waiter);
+            }
+            owner.waitingFor = waiter;
+        }
+
+        findDeadlock(owner);
+
+        try {
+            while (!waiter.granted) {
+
+                if (owner.victim) {
+                    throw new TransactionAbortedException(owner.transactionId,
+                            "Chosen as the victim of a deadlock while waiting for a lock");
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (deadline == 0) {
+                    LockSupport.park(this);
+                } else {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            return true;
+        } finally {
+            owner.waitingFor = null;
+            cancelOrKeep(waiter);
+        }
+    }
+
+    /**
+     * Once a wait is over: leave the queue if it was not granted, or note the stripe as held if it was,
+     * even if it came too late, so that it gets released with the rest
+     */
+    private void cancelOrKeep(Waiter waiter) {
+
+        final Stripe stripe = stripes[waiter.stripe];
+        List<Waiter> wakeUp = null;
+        synchronized (stripe) {
+            if (!waiter.granted) {
+                stripe.waiters.remove(waiter);
+                // It may have been what the waiters behind it were waiting on
+                wakeUp = stripe.grantWaiters();
+            }
+        }
+        if (waiter.granted) {
+            waiter.owner.granted(waiter.stripe, waiter.exclusive);
+        }
+        unpark(wakeUp);
+    }
+
+    /**
+     * Release every stripe the owner holds, handing each to the transactions that have waited longest
+     */
+    void unlockAll(Owner owner) {
+
+        final BitSet held = (BitSet) owner.shared.clone();
+        held.or(owner.exclusive);
+        for (int i = held.nextSetBit(0); i >= 0; i = held.nextSetBit(i + 1)) {
+
+            final Stripe stripe = stripes[i];
+            final List<Waiter> wakeUp;
+            synchronized (stripe) {
+                stripe.release(owner);
+                wakeUp = stripe.grantWaiters();
+            }
+            unpark(wakeUp);
+        }
+        owner.shared.clear();
+        owner.exclusive.clear();
+    }
+
+    private static void unpark(List<Waiter> waiters) {
+
+        if (waiters != null) {
+            for (Waiter waiter : waiters) {
+                LockSupport.unpark(waiter.thread);
+            }
+        }
+    }
+
+    /**
+     * Look for a cycle in the wait-for graph through the owner, which has just started waiting, and if
+     * there is one, make its youngest transaction the victim. One search at a time, so two owners
+     * closing the same cycle together do not both pick a victim.
+     */
+    private synchronized void findDeadlock(Owner owner) {
+
+        final List<Owner> cycle = new ArrayList<Owner>();
+        final List<Waiter> waits = new ArrayList<Waiter>();
+        if (!leadsBackTo(owner, owner, cycle, waits, new HashSet<Owner>()) || !stillDeadlocked(cycle, waits)) {
+            return;
+        }
+
+        Owner victim = cycle.get(0);
+        for (Owner candidate : cycle) {
+            if (candidate.victim) {
+                // Already on its way out, which breaks the cycle
+                return;
+            }
+            if (candidate.age > victim.age) {
+                victim = candidate;
+            }
+        }
+
+        victim.victim = true;
+        final Waiter waiting = victim.waitingFor;
+        if (waiting != null) {
+            LockSupport.unpark(waiting.thread);
+        }
+    }
+
+    private boolean leadsBackTo(Owner from, Owner target, List<Owner> path, List<Waiter> waits, Set<Owner> visited) {
+
+        final Waiter waiting = from.waitingFor;
+        if (waiting == null || waiting.granted) {
+            // Not waiting for anybody
+            return false;
+        }
+
+        path.add(from);
+        waits.add(waiting);
+        for (Owner blocker : blockersOf(waiting)) {
+            if (blocker == target) {
+                return true;
+            }
+            if (visited.add(blocker) && leadsBackTo(blocker, target, path, waits, visited)) {
+                return true;
+            }
+        }
+        path.remove(path.size() - 1);
+        waits.remove(waits.size() - 1);
+        return false;
+    }
+
+    /**
+     * The stripes on a path were each looked at a different moment, so the transactions on it may have
+     * moved on in between, and the cycle never existed all at once. A transaction that is still on the
+     * same wait cannot have released anything, though. So if every one of them is on the same wait
+     * before and after every edge is looked at again, the edges all held together, and will go on
+     * holding until somebody is rolled back.
+     */
+    private boolean stillDeadlocked(List<Owner> cycle, List<Waiter> waits) {
+
+        for (int i = 0; i < cycle.size(); i++) {
+            if (cycle.get(i).waitingFor != waits.get(i) || waits.get(i).granted) {
+                return false;
+            }
+        }
+        for (int i = 0; i < cycle.size(); i++) {
+            if (!blockersOf(waits.get(i)).contains(cycle.get((i + 1) % cycle.size()))) {
+                return false;
+            }
+        }
+        for (int i = 0; i < cycle.size(); i++) {
+            if (cycle.get(i).waitingFor != waits.get(i) || waits.get(i).granted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Who the waiter cannot be granted its stripe before: the holders it conflicts with, and the waiters
+     * ahead of it that conflict with it, since the queue is served in order
+     */
+    private List<Owner> blockersOf(Waiter waiter) {
+
+        final List<Owner> blockers = new ArrayList<Owner>();
+        final Stripe stripe = stripes[waiter.stripe];
+        synchronized (stripe) {
+
+            if (stripe.exclusiveHolder != null && stripe.exclusiveHolder != waiter.owner) {
+                blockers.add(stripe.exclusiveHolder);
+            }
+            if (waiter.exclusive) {
+                for (Owner holder : stripe.sharedHolders) {
+                    if (holder != waiter.owner) {
+                        blockers.add(holder);
+                    }
+                }
+            }
+            for (Waiter ahead : stripe.waiters) {
+                if (ahead == waiter) {
+                    break;
+                }
+                if (ahead.owner != waiter.owner && (waiter.exclusive || ahead.exclusive)) {
+                    blockers.add(ahead.owner);
+                }
+            }
+        }
+        return blockers;
+    }
+
+    /**
+     * The locks of one transaction
+     */
+    static final class Owner {
+
+        final int transactionId;
+        final long age;
+
+        // The stripes held, only changed by the transaction's own calls
+        private final BitSet shared = new BitSet();
+        private final BitSet exclusive = new BitSet();
+
+        volatile Waiter waitingFor;
+        volatile boolean victim;
+
+        Owner(int transactionId, long age) {
+            this.transactionId = transactionId;
+            this.age = age;
+        }
+
+        boolean holds(int stripe, boolean exclusively) {
+            return exclusive.get(stripe) || (!exclusively && shared.get(stripe));
+        }
+
+        private void granted(int stripe, boolean exclusively) {
+
+            if (exclusively) {
+                shared.clear(stripe);
+                exclusive.set(stripe);
+            } else {
+                shared.set(stripe);
+            }
+        }
+    }
+
+    private static final class Stripe {
+
+        // Guarded by the stripe's monitor
+        Owner exclusiveHolder;
+        final Set<Owner> sharedHolders = new HashSet<Owner>();
+        final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+
+        boolean compatible(Owner owner, boolean exclusive) {
+
+            if (exclusive) {
+                // Free, or only held shared by the owner itself
+                return exclusiveHolder == null &&
+                        (sharedHolders.isEmpty() || (sharedHolders.size() == 1 && sharedHolders.contains(owner)));
+            }
+            return exclusiveHolder == null || exclusiveHolder == owner;
+        }
+
+        void grant(Owner owner, boolean exclusive) {
+
+            if (exclusive) {
+                sharedHolders.remove(owner);
+                exclusiveHolder = owner;
+            } else {
+                sharedHolders.add(owner);
+            }
+        }
+
+        void release(Owner owner) {
+
+            if (exclusiveHolder == owner) {
+                exclusiveHolder = null;
+            }
+            sharedHolders.remove(owner);
+        }
+
+        /**
+         * Grant the stripe to as many waiters at the head of the queue as it can be granted to together
+         *
+         * @return the waiters to unpark, once the monitor is let go of
+         */
+        List<Waiter> grantWaiters() {
+
+            List<Waiter> granted = null;
+            Waiter head;
+            while ((head = waiters.peekFirst()) != null && compatible(head.owner, head.exclusive)) {
+
+                waiters.pollFirst();
+                grant(head.owner, head.exclusive);
+                head.granted = true;
+                if (granted == null) {
+                    granted = new ArrayList<Waiter>();
+                }
+                granted.add(head);
+                if (head.exclusive) {
+                    break;
+                }
+            }
+            return granted;
+        }
+    }
+
+    static final class Waiter {
+
+        final Owner owner;
+        final Thread thread;
+        final int stripe;
+        final boolean exclusive;
+        volatile boolean granted;
+
+        Waiter(Owner owner, Thread thread, int stripe, boolean exclusive) {
+
+            this.owner = owner;
+            this.thread = thread;
+            this.stripe = stripe;
+            this.exclusive = exclusive;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how long an operation took, in nanoseconds, cheaply enough to be recorded on every call.
+ * <p/>
+ * As in HdrHistogram, the buckets are log-linear: every power of two is split into the same number of
+ * equal buckets, so a latency is known to within about 3% whatever its size, and the whole range of a
+ * long fits in under 2000 counters. Recording is an index computed from the leading zeros of the
+ * value and an atomic increment, with no locks and nothing allocated.
+ * <p/>
+ * Counters are read one at a time, so figures read while latencies are being recorded may be off by
+ * those few latencies.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    // Buckets per power of two
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+
+        if (nanos < 0) {
+            // The clock is monotonic, but not across every virtualised core
+            nanos = 0;
+        }
+        counts.incrementAndGet(indexFor(nanos));
+        count.increment();
+        totalNanos.add(nanos);
+
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    static int indexFor(long value) {
+
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // How far the value has to be shifted to keep just its top SUB_BUCKET_BITS + 1 bits, the highest
+        // of which is always set
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * (shift + 1) + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * The largest value that goes in the bucket
+     */
+    static long highestValueAt(int index) {
+
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public double getMeanNanos() {
+
+        final long recorded = count.sum();
+        return recorded == 0 ? 0 : (double) totalNanos.sum() / recorded;
+    }
+
+    /**
+     * The latency that the given percentage of recorded latencies were no longer than, to within the
+     * width of its bucket
+     *
+     * @param percentile from 0 to 100
+     * @return
+     */
+    public long getValueAtPercentile(double percentile) {
+
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be from 0 to 100, not " + percentile);
+        }
+
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        final long wanted = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= wanted) {
+                // No higher than anything actually recorded
+                return Math.min(highestValueAt(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    public double getMeanMicros() {
+        return getMeanNanos() / 1000;
+    }
+
+    public double getMedianMicros() {
+        return getValueAtPercentile(50) / 1000.0;
+    }
+
+    public double get99thPercentileMicros() {
+        return getValueAtPercentile(99) / 1000.0;
+    }
+
+    public double get999thPercentileMicros() {
+        return getValueAtPercentile(99.9) / 1000.0;
+    }
+
+    public double getMaxMicros() {
+        return getMaxNanos() / 1000.0;
+    }
+
+    /**
+     * Forget everything recorded so far. Latencies recorded meanwhile may be partly kept.
+     */
+    public void reset() {
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+}
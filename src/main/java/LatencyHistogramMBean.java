@@ -0,0 +1,19 @@
+/**
+ * The view of a LatencyHistogram given over JMX. Latencies are in microseconds.
+ */
+public interface LatencyHistogramMBean {
+
+    long getCount();
+
+    double getMeanMicros();
+
+    double getMedianMicros();
+
+    double get99thPercentileMicros();
+
+    double get999thPercentileMicros();
+
+    double getMaxMicros();
+
+    void reset();
+}
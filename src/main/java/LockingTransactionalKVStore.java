@@ -1,4 +1,8 @@
-import java.util.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * What:
@@ -11,95 +15,201 @@ import java.util.*;
  * based on what a read operation returns mid-transaction (i.e. read is not void here).
  * <p/>
  * How:
- * This is done by getting a lock on all the keys that are to be involved in the transaction. These must be known apriori.
- * The keys will be locked, and a client back-off mechanism will be necessary if and when a client lock cannot be
- * immediately obtained.
+ * This is done with two-phase locking through a KeyLockManager. A read takes a shared lock on its key, so readers of a
+ * key run side by side, and a write takes an exclusive one, upgrading the transaction's shared lock if it read the key
+ * first. Locks are taken as keys are first used, and all held until the commit, which hands them straight to the
+ * transactions waiting in line for them.
  * <p/>
- * Limitations:
- * The need to specify which keys will be used apriori makes this not particularly elegant. Also, the retry mechanism
- * also produces the risk of starvation, and makes client code a little awkward.
+ * Taking locks as they are needed can deadlock. The lock manager notices when a transaction starts waiting on one that
+ * is, however indirectly, waiting on it, and rolls back the youngest of them: its read or write throws a
+ * TransactionAbortedException, and the client can run it again.
+ * <p/>
+ * A transaction can still lock the keys it will use up front instead, exclusively. These are taken in a fixed order,
+ * so transactions that all do this cannot deadlock. If they are not all free within the lock wait timeout, the client
+ * is told to back off and retry.
+ * <p/>
+ * Every method may be called from any thread, though a transaction's own calls should not overlap one another.
  *
  * @param <K>
  * @param <V>
  */
 public class LockingTransactionalKVStore<K, V> {
 
-    Set<K> keysEnqueuedInTransactions;
-    // A mapping of the transaction to the keys it will use. Starts with a copy of the keys
-    // and maintains a state. We can get away with this because we know apriori which keys will
-    // be used/modified
-    Map<Integer, Map<K, V>> transactionsAndKeys;
-    private Map<K, V> store;
-
-    {
-        store = new HashMap<K, V>();
-        keysEnqueuedInTransactions = new HashSet<K>();
-        transactionsAndKeys = new HashMap<Integer, Map<K, V>>();
+    public static final long DEFAULT_LOCK_WAIT_MS = 500;
+    private static final int LOCK_STRIPES = 1024;
+
+    private final KeyLockManager lockManager = new KeyLockManager(LOCK_STRIPES);
+    private volatile long lockWaitNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LOCK_WAIT_MS);
+
+    // A mapping of the transaction to its locks and the values it has written, which only reach
+    // the store at commit
+    final Map<Integer, LockedKeys<K, V>> transactionsAndKeys = new ConcurrentHashMap<Integer, LockedKeys<K, V>>();
+    private final Map<K, V> store = new ConcurrentHashMap<K, V>();
+
+    /**
+     * How long begin() waits for the keys it locks up front before giving up with a RetryLaterException
+     *
+     * @param timeout
+     * @param unit
+     */
+    public void setLockWaitTimeout(long timeout, TimeUnit unit) {
+        this.lockWaitNanos = unit.toNanos(timeout);
     }
 
-    //TODO: Find out if it's common practice to lock sets of keys in this way
-    public void begin(int transactionId, List<K> keysToLock) throws RetryLaterException {
+    /**
+     * Start a transaction that locks each key as it first reads or writes it
+     *
+     * @param transactionId
+     */
+    public void begin(int transactionId) {
+        register(transactionId);
+    }
 
-        // The advice would be to wait 150 ms + 50 ms per locked key
-        int keyEnqueuedCount = 0;
-        for (K key : keysToLock) {
+    /**
+     * Start a transaction that locks the given keys exclusively up front, waiting in line for any that
+     * another transaction holds, for as long as the lock wait timeout allows. Other keys are still locked
+     * as they are used.
+     *
+     * @param transactionId
+     * @param keysToLock
+     * @throws RetryLaterException if they could not all be locked in time
+     * @throws InterruptedException
+     */
+    public void begin(int transactionId, List<K> keysToLock) throws RetryLaterException, InterruptedException {
+        begin(transactionId, keysToLock, lockWaitNanos, TimeUnit.NANOSECONDS);
+    }
 
-            if (keysEnqueuedInTransactions.contains(key)) {
-                keyEnqueuedCount++;
-            }
+    public void begin(int transactionId, List<K> keysToLock, long timeout, TimeUnit unit)
+            throws RetryLaterException, InterruptedException {
+
+        final LockedKeys<K, V> locked = register(transactionId);
+        final int stillLocked;
+        try {
+            stillLocked = lockManager.lockAll(locked.owner, lockManager.stripesFor(keysToLock), timeout, unit);
+        } catch (TransactionAbortedException e) {
+            transactionsAndKeys.remove(transactionId);
+            throw new RetryLaterException(e.getMessage());
+        } catch (InterruptedException e) {
+            transactionsAndKeys.remove(transactionId);
+            throw e;
         }
 
-        if (keyEnqueuedCount > 0) {
-            throw new RetryLaterException(keyEnqueuedCount);
-        } else {
-            //Get a lock on it by placing all keys into keysEnqueued.
-            //Place a copy of the data to be modified transactionValues
-            keysEnqueuedInTransactions.addAll(keysToLock);
-            Map<K, V> transactionValues = new HashMap<K, V>();
-            for (K key : keysToLock) {
-                transactionValues.put(key, store.get(key));
-            }
-            transactionsAndKeys.put(transactionId, transactionValues);
+        if (stillLocked > 0) {
+            transactionsAndKeys.remove(transactionId);
+            // The advice would be to wait 150 ms + 50 ms per key still locked
+            throw new RetryLaterException(stillLocked);
+        }
+    }
+
+    private LockedKeys<K, V> register(int transactionId) {
+
+        if (transactionId < 0) {
+            throw new RuntimeException("Transaction id " + transactionId + " cannot be started because it is invalid");
+        }
+
+        final LockedKeys<K, V> locked = new LockedKeys<K, V>(lockManager.newOwner(transactionId));
+        if (transactionsAndKeys.putIfAbsent(transactionId, locked) != null) {
+            throw new RuntimeException("Transaction id " + transactionId + " cannot be started because it already exists");
         }
+        return locked;
     }
 
     // This is different than what is in the StaticTransactionalKVStore because this actually returns a value
     // Note though that you should read a value that you've already written
     public V read(K key, int transactionId) {
 
-        //The logic is that we already have checked that nothing else will be operating on the returned value
-        if (transactionsAndKeys.get(transactionId) == null) {
+        final LockedKeys<K, V> locked = transactionsAndKeys.get(transactionId);
+        if (locked == null) {
             throw new RuntimeException("Invalid transaction id " + transactionId + " specified");
         }
-        return transactionsAndKeys.get(transactionId).get(key);
+
+        lock(locked, key, false);
+        if (locked.values.containsKey(key)) {
+            return locked.values.get(key);
+        }
+        // Nobody can write the key while we hold the lock, so it reads the same until we commit
+        return store.get(key);
     }
 
     // This is different than what is in the StaticTransactionalKVStore because this actually returns a value
     public void write(K key, V value, int transactionId) {
 
-        //The logic is that we already have checked that nothing else will be operating on the returned value
-        if (transactionsAndKeys.get(transactionId) == null) {
+        final LockedKeys<K, V> locked = transactionsAndKeys.get(transactionId);
+        if (locked == null) {
             throw new RuntimeException("Invalid transaction id " + transactionId + "specified");
         }
 
-        transactionsAndKeys.get(transactionId).put(key, value);
+        lock(locked, key, true);
+        locked.values.put(key, value);
+    }
+
+    private void lock(LockedKeys<K, V> locked, K key, boolean exclusive) {
+
+        final int stripe = lockManager.stripeFor(key);
+        if (locked.owner.holds(stripe, exclusive)) {
+            return;
+        }
+
+        final int transactionId = locked.owner.transactionId;
+        try {
+            lockManager.lock(locked.owner, stripe, exclusive);
+        } catch (TransactionAbortedException e) {
+            rollback(transactionId);
+            throw e;
+        } catch (InterruptedException e) {
+            rollback(transactionId);
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException(transactionId, "Interrupted while waiting for a lock");
+        }
     }
 
     public void commit(int transactionId) {
 
-        if (!transactionsAndKeys.containsKey(transactionId)) {
+        final LockedKeys<K, V> locked = transactionsAndKeys.remove(transactionId);
+        if (locked == null) {
             throw new RuntimeException("Transaction " + transactionId + " not valid. Failing.");
         }
 
-        copyFromTempStore(transactionsAndKeys.get(transactionId));
-        keysEnqueuedInTransactions.removeAll(transactionsAndKeys.get(transactionId).keySet());
-        transactionsAndKeys.remove(transactionId);
+        copyFromTempStore(locked.values);
+        // Hands the keys straight to the transactions that have waited longest for them
+        lockManager.unlockAll(locked.owner);
+    }
+
+    /**
+     * End the transaction without writing anything, and release its locks
+     *
+     * @param transactionId
+     */
+    public void rollback(int transactionId) {
+
+        final LockedKeys<K, V> locked = transactionsAndKeys.remove(transactionId);
+        if (locked == null) {
+            throw new RuntimeException("Transaction " + transactionId + " not valid. Failing.");
+        }
+        lockManager.unlockAll(locked.owner);
     }
 
     private void copyFromTempStore(Map<K, V> temporaryMap) {
 
-        for (K key : temporaryMap.keySet()) {
-            store.put(key, temporaryMap.get(key));
+        for (Map.Entry<K, V> entry : temporaryMap.entrySet()) {
+            if (entry.getValue() == null) {
+                store.remove(entry.getKey());
+            } else {
+                store.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * The locks a transaction holds, and the values it has written
+     */
+    static final class LockedKeys<K, V> {
+
+        final KeyLockManager.Owner owner;
+        final Map<K, V> values = new HashMap<K, V>();
+
+        LockedKeys(KeyLockManager.Owner owner) {
+            this.owner = owner;
         }
     }
 }
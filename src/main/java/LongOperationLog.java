@@ -0,0 +1,197 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a LongTransaction has done, with one entry per key it touched, like OperationLog. Values and
+ * deltas are kept as longs, so recording an operation never boxes.
+ *
+ * @param <K>
+ */
+class LongOperationLog<K> {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final byte READ = 1;
+    private static final byte WRITTEN = 2;
+    // Written, and the value written is that the key is gone
+    private static final byte REMOVED = 4;
+    private static final byte INCREMENTED = 8;
+
+    private Object[] keys;
+    // The value written, or the sum of the deltas added
+    private long[] values;
+    private byte[] flags;
+    private int size;
+
+    /**
+     * Note that the transaction read the key
+     *
+     * @param key
+     * @return the key's slot, to look at what else the transaction did to it
+     */
+    int recordRead(K key) {
+
+        final int slot = slotFor(key);
+        flags[slot] |= READ;
+        return slot;
+    }
+
+    /**
+     * Set the value the key will have when the transaction commits
+     *
+     * @param key
+     * @param value
+     */
+    void recordWrite(K key, long value) {
+
+        final int slot = slotFor(key);
+        flags[slot] = (byte) ((flags[slot] & READ) | WRITTEN);
+        values[slot] = value;
+    }
+
+    void recordRemove(K key) {
+
+        final int slot = slotFor(key);
+        flags[slot] = (byte) ((flags[slot] & READ) | WRITTEN | REMOVED);
+        values[slot] = 0;
+    }
+
+    /**
+     * Add a delta to the key. If the transaction already wrote the key, the value it wrote is changed,
+     * and a removed key comes back with the delta as its value. Otherwise the delta is added to what it
+     * has already added, to be applied at commit.
+     *
+     * @param key
+     * @param delta
+     */
+    void recordIncrement(K key, long delta) {
+
+        final int slot = slotFor(key);
+        if ((flags[slot] & (WRITTEN | INCREMENTED)) != 0) {
+            flags[slot] &= ~REMOVED;
+            values[slot] += delta;
+        } else {
+            flags[slot] |= INCREMENTED;
+            values[slot] = delta;
+        }
+    }
+
+    /**
+     * The number of slots, some of them empty, to go through with keyAt()
+     */
+    int capacity() {
+        return keys == null ? 0 : keys.length;
+    }
+
+    /**
+     * The key in the slot, or null if the slot is empty
+     */
+    @SuppressWarnings("unchecked")
+    K keyAt(int slot) {
+        return (K) keys[slot];
+    }
+
+    boolean wasRead(int slot) {
+        return (flags[slot] & READ) != 0;
+    }
+
+    boolean isWritten(int slot) {
+        return (flags[slot] & WRITTEN) != 0;
+    }
+
+    boolean isRemoved(int slot) {
+        return (flags[slot] & REMOVED) != 0;
+    }
+
+    /**
+     * Whether the key has deltas still to be added to its value at commit
+     */
+    boolean isIncremented(int slot) {
+        return (flags[slot] & INCREMENTED) != 0;
+    }
+
+    /**
+     * The value written to the slot's key, or the sum of the deltas added to it
+     */
+    long valueAt(int slot) {
+        return values[slot];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Every key the transaction touched, in no particular order
+     */
+    @SuppressWarnings("unchecked")
+    List<K> keys() {
+
+        List<K> touched = new ArrayList<K>(size);
+        for (int slot = 0; slot < capacity(); slot++) {
+            if (keys[slot] != null) {
+                touched.add((K) keys[slot]);
+            }
+        }
+        return touched;
+    }
+
+    /**
+     * The key's slot, which is claimed for it if it has none
+     */
+    private int slotFor(K key) {
+
+        if (key == null) {
+            throw new NullPointerException("Keys cannot be null");
+        }
+
+        if (keys == null) {
+            allocate(INITIAL_CAPACITY);
+        } else if ((size + 1) * 2 > keys.length) {
+            resize();
+        }
+
+        final int mask = keys.length - 1;
+        int slot = LongTransactionalKVStore.spread(key.hashCode()) & mask;
+        Object existing;
+        while ((existing = keys[slot]) != null) {
+            if (existing.equals(key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+
+        keys = new Object[capacity];
+        values = new long[capacity];
+        flags = new byte[capacity];
+    }
+
+    private void resize() {
+
+        final Object[] oldKeys = keys;
+        final long[] oldValues = values;
+        final byte[] oldFlags = flags;
+        allocate(oldKeys.length * 2);
+
+        final int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) {
+                continue;
+            }
+            int slot = LongTransactionalKVStore.spread(oldKeys[i].hashCode()) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+            flags[slot] = oldFlags[i];
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * A running transaction of a LongTransactionalKVStore, and the handle it is used through when begun with
+ * LongTransactionalKVStore.begin(). The same as Transaction, but with long values.
+ *
+ * @param <K>
+ */
+public class LongTransaction<K> {
+
+    private final int id;
+    // Reads see every commit up to and including this version, and nothing after it
+    private final long startVersion;
+    private final boolean readOnly;
+    private final LongTransactionalKVStore<K> store;
+
+    // What the transaction read, wrote and added to, by key. Null when read-only.
+    final LongOperationLog<K> log;
+
+    // Whether the int-ID methods can look it up
+    boolean registeredById;
+
+    // Committed or rolled back
+    private volatile boolean finished;
+
+    LongTransaction(LongTransactionalKVStore<K> store, int transactionId, long startVersion, boolean readOnly) {
+
+        this.store = store;
+        this.id = transactionId;
+        this.startVersion = startVersion;
+        this.readOnly = readOnly;
+        this.log = readOnly ? null : new LongOperationLog<K>();
+    }
+
+    public long read(K key) {
+        return store.read(this, key);
+    }
+
+    public boolean containsKey(K key) {
+        return store.containsKey(this, key);
+    }
+
+    public void write(K key, long value) {
+        store.write(this, key, value);
+    }
+
+    public void remove(K key) {
+        store.remove(this, key);
+    }
+
+    public void increment(K key, long delta) {
+        store.increment(this, key, delta);
+    }
+
+    public void commit() throws RetryLaterException {
+        store.commit(this);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public long getStartVersion() {
+        return startVersion;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    LongTransactionalKVStore<K> getStore() {
+        return store;
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    void finish() {
+        finished = true;
+    }
+}
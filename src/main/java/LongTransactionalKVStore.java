@@ -0,0 +1,611 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A TransactionalKVStore whose values are longs, for counters. Transactions behave the same way: each
+ * reads a snapshot as of the version it began at, a commit is rolled back if a key it read or wrote was
+ * written after that, increments are added to the value at commit time and so never conflict, and
+ * read-only transactions are never validated. A key that was never written, or was removed, reads as 0,
+ * and containsKey() tells the two apart.
+ * <p/>
+ * Nothing is boxed. The master copy is a single open-addressed table of parallel arrays, holding each
+ * key's newest value and version, and the value and version it replaced, inline. Versions older than
+ * that are only linked in while a running transaction's snapshot can still see them, and dropped the
+ * next time the key is written once none can.
+ * <p/>
+ * A commit locks the stripes of the keys it touched, as TransactionalKVStore's do, and is validated
+ * under them alone, so commits to different keys validate at the same time. Only the write-back takes
+ * the write lock of a StampedLock, which is short since it only touches primitive arrays. Reads take an
+ * optimistic stamp instead of the lock, and only read again, or fall back to the read lock, if a
+ * write-back got in the way.
+ * <p/>
+ * Unlike TransactionalKVStore, the store only lives in memory, and has no replayable transactions.
+ *
+ * @param <K>
+ */
+public class LongTransactionalKVStore<K> {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 3;
+
+    // Guards changes to the table. Write-backs hold the write lock; reads validate an optimistic stamp.
+    private final StampedLock tableLock = new StampedLock();
+
+    // Commits hold the stripes of the keys they touch from validation through write-back, so a key's
+    // version cannot change between the two
+    private final StripedLocks commitLocks = new StripedLocks(TransactionalKVStore.COMMIT_LOCK_STRIPES);
+
+    // Replaced by a bigger one when it fills up, so readers take one reference and stick to it
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+
+    // The logical clock. Only advanced under the write lock, so commits are published in order.
+    private long commitSequence = MetadataValue.NO_VERSION;
+    private volatile long committedVersion = MetadataValue.NO_VERSION;
+
+    // Every running transaction, whose snapshot may need versions older than a key's previous one
+    private final Set<LongTransaction<K>> activeSnapshots =
+            Collections.newSetFromMap(new ConcurrentHashMap<LongTransaction<K>, Boolean>());
+
+    // As in TransactionalKVStore: raised before activeSnapshots is looked through, and a snapshot older
+    // than it is taken again
+    private volatile long reclaimHorizon = MetadataValue.NO_VERSION;
+
+    // No running snapshot is older than this. Only raised, under the write lock, when a commit needs to
+    // know whether it can drop a version.
+    private long oldestSnapshot = MetadataValue.NO_VERSION;
+
+    // Transactions begun with an id of the caller's choosing
+    final Map<Integer, LongTransaction<K>> transactionIdToObjectMapping =
+            new ConcurrentHashMap<Integer, LongTransaction<K>>();
+
+    /**
+     * Start a transaction with an id allocated by the store, and return it. Reads, writes and the commit
+     * are then called on the transaction itself.
+     *
+     * @return
+     */
+    public LongTransaction<K> begin() {
+        return startSnapshot(Transaction.nextId(), false);
+    }
+
+    public LongTransaction<K> beginReadOnly() {
+        return startSnapshot(Transaction.nextId(), true);
+    }
+
+    public void begin(final int transactionId) {
+
+        if (transactionId < 0) {
+            throw new RuntimeException("Transaction id " + transactionId + " cannot be started because it is invalid");
+        }
+        register(startSnapshot(transactionId, false));
+    }
+
+    public void beginReadOnly(final int transactionId) {
+
+        if (transactionId < 0) {
+            throw new RuntimeException("Transaction id " + transactionId + " cannot be started because it is invalid");
+        }
+        register(startSnapshot(transactionId, true));
+    }
+
+    private void register(final LongTransaction<K> newTransaction) {
+
+        final int transactionId = newTransaction.getId();
+        newTransaction.registeredById = true;
+        if (transactionIdToObjectMapping.putIfAbsent(transactionId, newTransaction) != null) {
+            activeSnapshots.remove(newTransaction);
+            throw new RuntimeException("Transaction id " + transactionId + " cannot be started because it already exists");
+        }
+    }
+
+    private LongTransaction<K> startSnapshot(final int transactionId, final boolean readOnly) {
+
+        while (true) {
+
+            final long snapshot = committedVersion;
+            LongTransaction<K> transaction = new LongTransaction<K>(this, transactionId, snapshot, readOnly);
+            activeSnapshots.add(transaction);
+            if (snapshot >= reclaimHorizon) {
+                return transaction;
+            }
+
+            // A commit looked for the oldest snapshot after we read the version, and may not have seen us
+            activeSnapshots.remove(transaction);
+        }
+    }
+
+    /**
+     * The key's value as of the transaction's snapshot, or its own write if it made one. 0 if the key has
+     * no value.
+     *
+     * @param key
+     * @param transactionId
+     * @return
+     */
+    public long read(K key, final int transactionId) {
+        return read(validateTransactionId(transactionId), key);
+    }
+
+    long read(final LongTransaction<K> transaction, final K key) {
+
+        validateTransaction(transaction);
+        if (transaction.isReadOnly()) {
+            return lookup(key, transaction.getStartVersion(), false);
+        }
+
+        final LongOperationLog<K> log = transaction.log;
+        final int slot = log.recordRead(key);
+        if (log.isWritten(slot)) {
+            return log.valueAt(slot);
+        }
+
+        final long snapshotValue = lookup(key, transaction.getStartVersion(), false);
+        return log.isIncremented(slot) ? snapshotValue + log.valueAt(slot) : snapshotValue;
+    }
+
+    /**
+     * Whether the key has a value as of the transaction's snapshot, or after its own writes. Counts as a
+     * read of the key.
+     *
+     * @param key
+     * @param transactionId
+     * @return
+     */
+    public boolean containsKey(K key, final int transactionId) {
+        return containsKey(validateTransactionId(transactionId), key);
+    }
+
+    boolean containsKey(final LongTransaction<K> transaction, final K key) {
+
+        validateTransaction(transaction);
+        if (transaction.isReadOnly()) {
+            return lookup(key, transaction.getStartVersion(), true) != 0;
+        }
+
+        final LongOperationLog<K> log = transaction.log;
+        final int slot = log.recordRead(key);
+        if (log.isWritten(slot)) {
+            return !log.isRemoved(slot);
+        }
+        return log.isIncremented(slot) || lookup(key, transaction.getStartVersion(), true) != 0;
+    }
+
+    public void write(K key, long value, final int transactionId) {
+        write(validateTransactionId(transactionId), key, value);
+    }
+
+    void write(final LongTransaction<K> transaction, final K key, final long value) {
+
+        validateWritableTransaction(transaction);
+        transaction.log.recordWrite(key, value);
+    }
+
+    /**
+     * Add a delta to the key's value when the transaction commits, whatever the value is by then. See
+     * TransactionalKVStore.increment().
+     *
+     * @param key
+     * @param delta
+     * @param transactionId
+     */
+    public void increment(K key, long delta, final int transactionId) {
+        increment(validateTransactionId(transactionId), key, delta);
+    }
+
+    void increment(final LongTransaction<K> transaction, final K key, final long delta) {
+
+        validateWritableTransaction(transaction);
+        transaction.log.recordIncrement(key, delta);
+    }
+
+    public void remove(K key, final int transactionId) {
+        remove(validateTransactionId(transactionId), key);
+    }
+
+    void remove(final LongTransaction<K> transaction, final K key) {
+
+        validateWritableTransaction(transaction);
+        transaction.log.recordRemove(key);
+    }
+
+    public void commit(final int transactionId) throws RetryLaterException {
+        commit(validateTransactionId(transactionId));
+    }
+
+    void commit(final LongTransaction<K> transaction) throws RetryLaterException {
+
+        validateTransaction(transaction);
+        if (transaction.isReadOnly()) {
+            end(transaction);
+            return;
+        }
+
+        final LongOperationLog<K> log = transaction.log;
+        final int[] stripes = commitLocks.stripesFor(log.keys());
+        commitLocks.lockAll(stripes);
+        try {
+
+            // Only commits holding a key's stripe change its slot, so what this sees of the keys it holds
+            // is settled, even while other commits write other keys back
+            final Table current = table;
+            final long startVersion = transaction.getStartVersion();
+            for (int slot = 0; slot < log.capacity(); slot++) {
+
+                final K KEY = log.keyAt(slot);
+                if (KEY == null || (!log.wasRead(slot) && !log.isWritten(slot))) {
+                    continue;
+                }
+
+                final int tableSlot = current.find(KEY);
+                if (tableSlot >= 0 && current.versions[tableSlot] > startVersion) {
+                    end(transaction);
+                    throw new RetryLaterException("need to roll back transaction " + transaction.getId(), KEY,
+                            current.versions[tableSlot]);
+                }
+            }
+
+            // It will not read again, so its snapshot should not hold on to the versions this replaces
+            activeSnapshots.remove(transaction);
+
+            final long stamp = tableLock.writeLock();
+            try {
+                final long commitVersion = ++commitSequence;
+                writeBack(log, commitVersion);
+                committedVersion = commitVersion;
+            } finally {
+                tableLock.unlockWrite(stamp);
+            }
+        } finally {
+            commitLocks.unlockAll(stripes);
+        }
+
+        end(transaction);
+    }
+
+    private void end(final LongTransaction<K> transaction) {
+
+        transaction.finish();
+        activeSnapshots.remove(transaction);
+        if (transaction.registeredById) {
+            transactionIdToObjectMapping.remove(transaction.getId(), transaction);
+        }
+    }
+
+    /**
+     * Apply a validated transaction's writes and increments. Callers must hold the write lock.
+     */
+    private void writeBack(final LongOperationLog<K> log, final long COMMIT_VERSION) {
+
+        for (int slot = 0; slot < log.capacity(); slot++) {
+
+            final K KEY = log.keyAt(slot);
+            if (KEY == null || (!log.isWritten(slot) && !log.isIncremented(slot))) {
+                continue;
+            }
+
+            final int tableSlot = claim(KEY);
+            final Table current = table;
+            if (log.isWritten(slot)) {
+                addVersion(current, tableSlot, log.valueAt(slot), !log.isRemoved(slot), COMMIT_VERSION);
+            } else {
+                final long CURRENT_VALUE = current.isPresent(tableSlot) ? current.values[tableSlot] : 0;
+                addVersion(current, tableSlot, CURRENT_VALUE + log.valueAt(slot), true, COMMIT_VERSION);
+            }
+        }
+    }
+
+    /**
+     * Make the value newest, moving the newest one to previous. The previous one is only kept, in the
+     * key's history, if a running snapshot is older than the newest one, and so may still read it.
+     */
+    private void addVersion(final Table current, final int slot, final long value, final boolean present,
+                            final long version) {
+
+        final long newestVersion = current.versions[slot];
+        if (newestVersion != MetadataValue.NO_VERSION) {
+
+            final long previousVersion = current.previousVersions[slot];
+            if (previousVersion != MetadataValue.NO_VERSION && isVisibleBefore(newestVersion)) {
+                current.history[slot] = trim(new History(current.previousValues[slot], previousVersion,
+                        (current.present[slot] & Table.PREVIOUS_PRESENT) != 0, current.history[slot]));
+            } else {
+                current.history[slot] = null;
+            }
+
+            current.previousValues[slot] = current.values[slot];
+            current.previousVersions[slot] = newestVersion;
+            current.present[slot] = (current.present[slot] & Table.PRESENT) != 0 ? Table.PREVIOUS_PRESENT : 0;
+        }
+
+        current.values[slot] = value;
+        current.versions[slot] = version;
+        if (present) {
+            current.present[slot] |= Table.PRESENT;
+        }
+    }
+
+    /**
+     * Whether any running snapshot is older than the version. Callers must hold the write lock.
+     */
+    private boolean isVisibleBefore(final long version) {
+
+        if (version <= oldestSnapshot) {
+            return false;
+        }
+
+        final long horizon = committedVersion;
+        reclaimHorizon = horizon;
+
+        long oldest = horizon;
+        for (LongTransaction<K> transaction : activeSnapshots) {
+            oldest = Math.min(oldest, transaction.getStartVersion());
+        }
+        oldestSnapshot = oldest;
+        return version > oldest;
+    }
+
+    /**
+     * Cut the history after the newest version the oldest snapshot can see
+     */
+    private History trim(final History history) {
+
+        for (History version = history; version != null; version = version.older) {
+            if (version.version <= oldestSnapshot) {
+                version.older = null;
+                break;
+            }
+        }
+        return history;
+    }
+
+    /**
+     * The key's slot in the table, which is claimed for it if it has none, growing the table if need be.
+     * Callers must hold the write lock.
+     */
+    private int claim(final K key) {
+
+        Table current = table;
+        if ((current.size + 1) * 2 > current.keys.length) {
+            current = current.grow();
+            table = current;
+        }
+
+        final int mask = current.keys.length - 1;
+        int slot = spread(key.hashCode()) & mask;
+        Object existing;
+        while ((existing = current.keys[slot]) != null) {
+            if (existing.equals(key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        current.keys[slot] = key;
+        current.size++;
+        return slot;
+    }
+
+    /**
+     * The key's value as of the snapshot, or 0 if it had none. With presence set, 1 if it had a value and
+     * 0 if not.
+     */
+    private long lookup(final Object key, final long snapshot, final boolean presence) {
+
+        if (key == null) {
+            throw new NullPointerException("Keys cannot be null");
+        }
+
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+
+            final long stamp = tableLock.tryOptimisticRead();
+            if (stamp == 0) {
+                // A commit holds the lock right now
+                Thread.yield();
+                continue;
+            }
+            final long result = table.resolve(key, snapshot, presence);
+            if (tableLock.validate(stamp)) {
+                return result;
+            }
+        }
+
+        final long stamp = tableLock.readLock();
+        try {
+            return table.resolve(key, snapshot, presence);
+        } finally {
+            tableLock.unlockRead(stamp);
+        }
+    }
+
+    long getCommittedVersion() {
+        return committedVersion;
+    }
+
+    /**
+     * How many versions of the key are kept, for tests
+     */
+    int getVersionCount(final K key) {
+
+        final long stamp = tableLock.readLock();
+        try {
+            final Table current = table;
+            final int slot = current.find(key);
+            if (slot < 0 || current.versions[slot] == MetadataValue.NO_VERSION) {
+                return 0;
+            }
+            int count = current.previousVersions[slot] == MetadataValue.NO_VERSION ? 1 : 2;
+            for (History version = current.history[slot]; version != null; version = version.older) {
+                count++;
+            }
+            return count;
+        } finally {
+            tableLock.unlockRead(stamp);
+        }
+    }
+
+    private LongTransaction<K> validateTransactionId(int transactionId) {
+
+        if (transactionId < 0) {
+            throw new NoSuchTransactionException(transactionId);
+        }
+
+        LongTransaction<K> transaction = transactionIdToObjectMapping.get(transactionId);
+        if (transaction == null) {
+            throw new NoSuchTransactionException(transactionId);
+        }
+        return transaction;
+    }
+
+    private void validateTransaction(final LongTransaction<K> transaction) {
+
+        if (transaction.isFinished() || transaction.getStore() != this) {
+            throw new NoSuchTransactionException(transaction.getId());
+        }
+    }
+
+    private void validateWritableTransaction(final LongTransaction<K> transaction) {
+
+        validateTransaction(transaction);
+        if (transaction.isReadOnly()) {
+            throw new IllegalStateException("Transaction " + transaction.getId() + " was begun read-only");
+        }
+    }
+
+    static int spread(int hash) {
+        // As HashMap does, so keys with similar hashes don't end up in one long run
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * The master copy: an open-addressed table with linear probing, one slot per key ever written. A
+     * removed key keeps its slot, with no value present. Only changed under the write lock; readers may
+     * see it mid-change, and validate their stamp afterwards.
+     */
+    static final class Table {
+
+        static final byte PRESENT = 1;
+        static final byte PREVIOUS_PRESENT = 2;
+
+        final Object[] keys;
+        final long[] values;
+        // The version of the commit that last wrote the key, NO_VERSION until it has been written
+        final long[] versions;
+        final long[] previousValues;
+        final long[] previousVersions;
+        // Whether the newest and the previous version hold a value, or say the key was removed
+        final byte[] present;
+        // The versions before the previous one that a running snapshot may still see. Mostly null.
+        final History[] history;
+        int size;
+
+        Table(int capacity) {
+
+            keys = new Object[capacity];
+            values = new long[capacity];
+            versions = new long[capacity];
+            previousValues = new long[capacity];
+            previousVersions = new long[capacity];
+            present = new byte[capacity];
+            history = new History[capacity];
+        }
+
+        /**
+         * The key's slot, or -1 if it has none
+         */
+        int find(final Object key) {
+
+            final int mask = keys.length - 1;
+            int slot = spread(key.hashCode()) & mask;
+            Object existing;
+            while ((existing = keys[slot]) != null) {
+                if (existing.equals(key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        boolean isPresent(final int slot) {
+            return (present[slot] & PRESENT) != 0;
+        }
+
+        long resolve(final Object key, final long snapshot, final boolean presence) {
+
+            final int slot = find(key);
+            if (slot < 0) {
+                return 0;
+            }
+
+            final boolean found;
+            final long value;
+            if (versions[slot] <= snapshot) {
+                found = (present[slot] & PRESENT) != 0;
+                value = values[slot];
+            } else if (previousVersions[slot] != MetadataValue.NO_VERSION && previousVersions[slot] <= snapshot) {
+                found = (present[slot] & PREVIOUS_PRESENT) != 0;
+                value = previousValues[slot];
+            } else {
+                History version = history[slot];
+                while (version != null && version.version > snapshot) {
+                    version = version.older;
+                }
+                found = version != null && version.present;
+                value = version == null ? 0 : version.value;
+            }
+
+            if (presence) {
+                return found ? 1 : 0;
+            }
+            return found ? value : 0;
+        }
+
+        /**
+         * A table twice the size, with every slot copied over
+         */
+        Table grow() {
+
+            final Table bigger = new Table(keys.length * 2);
+            final int mask = bigger.keys.length - 1;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == null) {
+                    continue;
+                }
+                int slot = spread(keys[i].hashCode()) & mask;
+                while (bigger.keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                bigger.keys[slot] = keys[i];
+                bigger.values[slot] = values[i];
+                bigger.versions[slot] = versions[i];
+                bigger.previousValues[slot] = previousValues[i];
+                bigger.previousVersions[slot] = previousVersions[i];
+                bigger.present[slot] = present[i];
+                bigger.history[slot] = history[i];
+            }
+            bigger.size = size;
+            return bigger;
+        }
+    }
+
+    /**
+     * A version older than a key's previous one
+     */
+    static final class History {
+
+        final long value;
+        final long version;
+        final boolean present;
+        History older;
+
+        History(long value, long version, boolean present, History older) {
+            this.value = value;
+            this.version = version;
+            this.present = present;
+            this.older = older;
+        }
+    }
+}
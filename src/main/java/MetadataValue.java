@@ -1,36 +1,345 @@
-import java.util.Date;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
+/**
+ * The master store's record for a single key: its committed versions, newest first, so that a
+ * transaction can read the key as it was when the transaction started without anyone copying the store,
+ * and the version of the commit that last read it.
+ * <p/>
+ * Most keys only have one version anybody can see, so the newest value and its version are held in the
+ * record itself, and only the versions it replaced get a node of their own. The version of the newest
+ * value is the version of the commit that last wrote the key.
+ * <p/>
+ * Snapshots read without locking. While the newest version is being replaced its version reads as
+ * REPLACING, and a reader that sees the version change under it goes round again, so the value and
+ * version a reader gets always belong together.
+ *
+ * @param <V>
+ */
 public class MetadataValue<V> {
 
-    private V value;
-    private Date lastRead;
-    private Date lastWritten;
+    // Version stamp meaning the key has not been read, or written, by any commit yet
+    public static final long NO_VERSION = 0;
+    // Writer id of a key whose last write was not made by a transaction of this run, such as one
+    // loaded from a checkpoint or the write-ahead log
+    static final int NO_TRANSACTION = -1;
+    private static final long REPLACING = -1;
 
-    public MetadataValue(V v) {
-        this.value = v;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MetadataValue, Version> OLDER =
+            AtomicReferenceFieldUpdater.newUpdater(MetadataValue.class, Version.class, "older");
+
+    // The newest committed value, or a StoredValue standing in for it
+    private volatile Object newestValue;
+    private volatile long newestVersion = NO_VERSION;
+
+    // The versions the newest one replaced, newest first. Versions are only added by a commit, and only
+    // trimmed by the store's background reclaimer once no snapshot can see them any more.
+    private volatile Version<V> older;
+
+    private long lastRead = NO_VERSION;
+
+    // The id of the transaction whose commit wrote the newest version
+    private int lastWriterId = NO_TRANSACTION;
+
+    // The version of the last commit that wrote the key after reading something that a commit since its
+    // snapshot had overwritten. Only kept under serializable snapshot isolation.
+    private long lastOutConflictWrite = NO_VERSION;
+
+    // Whether this key is already waiting in the store's reclaim queue
+    volatile boolean reclaimPending;
+
+    /**
+     * A key that has not been written yet
+     */
+    public MetadataValue() {
     }
 
-    public V getValue() {
-        return value;
+    /**
+     * A key as loaded from a checkpoint, holding a single committed version whose value is decoded when
+     * first read
+     *
+     * @param value
+     * @param version
+     * @param <V>
+     * @return
+     */
+    static <V> MetadataValue<V> fromCheckpoint(Checkpoint.LazyValue value, long version) {
+
+        MetadataValue<V> loaded = new MetadataValue<V>();
+        loaded.newestValue = value;
+        loaded.newestVersion = version;
+        return loaded;
     }
 
-    public void setValue(V value) {
-        this.value = value;
+    /**
+     * The latest committed value
+     */
+    public V getValue() {
+        return getValueAsOf(Long.MAX_VALUE);
     }
 
-    public Date getLastRead() {
+    public long getLastRead() {
         return lastRead;
     }
 
-    public void setLastRead(Date lastRead) {
+    public void setLastRead(long lastRead) {
         this.lastRead = lastRead;
     }
 
-    public Date getLastWritten() {
-        return lastWritten;
+    /**
+     * The version of the last commit that wrote the key while it had a read-write antidependency going out
+     * to an earlier commit. Guarded by the key's commit lock, like lastRead.
+     */
+    long getLastOutConflictWrite() {
+        return lastOutConflictWrite;
+    }
+
+    void setLastOutConflictWrite(long lastOutConflictWrite) {
+        this.lastOutConflictWrite = lastOutConflictWrite;
+    }
+
+    /**
+     * The id of the transaction that made the last commit to write the key, or NO_TRANSACTION if it was
+     * loaded on opening the store. Guarded by the key's commit lock, like lastRead.
+     */
+    int getLastWriterId() {
+        return lastWriterId;
+    }
+
+    void setLastWriterId(int lastWriterId) {
+        this.lastWriterId = lastWriterId;
+    }
+
+    /**
+     * The version of the last commit that wrote the key. Only settled for callers holding the key's
+     * commit lock.
+     */
+    public long getLastWritten() {
+        return newestVersion;
+    }
+
+    /**
+     * Resolve the newest committed value whose version is at or before the given snapshot. If the key
+     * had not been written as of the snapshot, return null
+     *
+     * @param snapshotVersion
+     * @return
+     */
+    public V getValueAsOf(long snapshotVersion) {
+        return resolve(getStoredAsOf(snapshotVersion));
+    }
+
+    /**
+     * As getValueAsOf, but a value kept elsewhere is returned as the StoredValue standing in for it
+     *
+     * @param snapshotVersion
+     * @return
+     */
+    Object getStoredAsOf(long snapshotVersion) {
+
+        while (true) {
+
+            final long version = newestVersion;
+            if (version == REPLACING) {
+                Thread.yield();
+                continue;
+            }
+            if (version == NO_VERSION) {
+                return null;
+            }
+
+            if (version <= snapshotVersion) {
+                final Object value = newestValue;
+                if (newestVersion == version) {
+                    return value;
+                }
+                // Replaced while we were reading it
+                continue;
+            }
+
+            // The newest version is too new. The one it replaced was linked in before it was published.
+            for (Version<V> olderVersion = older; olderVersion != null; olderVersion = olderVersion.older) {
+                if (olderVersion.version <= snapshotVersion) {
+                    return olderVersion.value;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The newest committed version at or before the given snapshot, or null if there is none. Allocates
+     * when that is the newest version, so only meant for checkpoints.
+     *
+     * @param snapshotVersion
+     * @return
+     */
+    Version<V> getVersionAsOf(long snapshotVersion) {
+
+        while (true) {
+
+            final long version = newestVersion;
+            if (version == REPLACING) {
+                Thread.yield();
+                continue;
+            }
+            if (version == NO_VERSION) {
+                return null;
+            }
+
+            if (version <= snapshotVersion) {
+                final Object value = newestValue;
+                if (newestVersion == version) {
+                    return new Version<V>(value, version, null);
+                }
+                continue;
+            }
+
+            for (Version<V> olderVersion = older; olderVersion != null; olderVersion = olderVersion.older) {
+                if (olderVersion.version <= snapshotVersion) {
+                    return olderVersion;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Record a newly committed value. Callers must hold the store's commit lock for the key, and versions
+     * must be added in increasing order.
+     *
+     * @param value   the value, or a StoredValue standing in for it
+     * @param version
+     * @return true if an older version is still reachable and may later need to be reclaimed
+     */
+    boolean addVersion(Object value, long version) {
+
+        final long previous = newestVersion;
+        if (previous == NO_VERSION) {
+            newestValue = value;
+            newestVersion = version;
+            return false;
+        }
+
+        newestVersion = REPLACING;
+        // The reclaimer may be dropping the whole chain at the same time, so link on with a CAS, and the
+        // versions it drops are never linked back in
+        final Object replaced = newestValue;
+        Version<V> chain;
+        do {
+            chain = older;
+        } while (!OLDER.compareAndSet(this, chain, new Version<V>(replaced, previous, chain)));
+        newestValue = value;
+        newestVersion = version;
+        return true;
+    }
+
+    /**
+     * Unlink every version that is older than the newest version visible at oldestSnapshot. No
+     * transaction can read those any more.
+     *
+     * @param oldestSnapshot
+     * @param storage        where the values of the unlinked versions are freed from, if anywhere
+     * @return true if more than one version is still kept, meaning another pass is needed later
+     */
+    boolean reclaimVersionsBefore(long oldestSnapshot, ValueStorage storage) {
+
+        // Read in the opposite order to addVersion's writes, so a replacement in between is noticed
+        final Version<V> first = older;
+        final long newest = newestVersion;
+        if (first == null) {
+            return false;
+        }
+        if (newest == REPLACING) {
+            return true;
+        }
+
+        if (newest <= oldestSnapshot) {
+            // Every snapshot sees the newest version. If a commit replaced it meanwhile, there is more to
+            // reclaim next time.
+            if (!OLDER.compareAndSet(this, first, null)) {
+                return true;
+            }
+            free(first, storage);
+            return false;
+        }
+
+        for (Version<V> version = first; version != null; version = version.older) {
+            if (version.version <= oldestSnapshot) {
+                final Version<V> unlinked = version.older;
+                version.older = null;
+                free(unlinked, storage);
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Free the values of a chain of versions that nothing can read any more
+     */
+    private static void free(Version<?> versions, ValueStorage storage) {
+
+        if (storage == null) {
+            return;
+        }
+        for (Version<?> version = versions; version != null; version = version.older) {
+            if (version.value instanceof ValueStorage.Handle) {
+                storage.free((ValueStorage.Handle) version.value);
+            }
+        }
+    }
+
+    int getVersionCount() {
+
+        int count = newestVersion == NO_VERSION ? 0 : 1;
+        for (Version<V> version = older; version != null; version = version.older) {
+            count++;
+        }
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V resolve(Object stored) {
+        return stored instanceof StoredValue ? (V) ((StoredValue) stored).get() : (V) stored;
     }
 
-    public void setLastWritten(Date lastWritten) {
-        this.lastWritten = lastWritten;
+    /**
+     * Stands in for a value that is kept somewhere other than the heap, such as in a checkpoint file or
+     * a ValueStorage slab, and is only brought onto the heap when read
+     */
+    interface StoredValue {
+
+        Object get();
+    }
+
+    /**
+     * A single committed value of a key. The value and its version never change once published, only the
+     * link to the older version is cut when that version gets reclaimed.
+     *
+     * @param <V>
+     */
+    static class Version<V> {
+
+        private final Object value;
+        final long version;
+        Version<V> older;
+
+        Version(Object value, long version, Version<V> older) {
+            this.value = value;
+            this.version = version;
+            this.older = older;
+        }
+
+        V getValue() {
+            return resolve(value);
+        }
+
+        /**
+         * The value, or the StoredValue standing in for it
+         */
+        Object getStored() {
+            return value;
+        }
     }
 }
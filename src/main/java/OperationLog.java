@@ -0,0 +1,232 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a transaction has done, with one entry per key it touched. An entry records whether the key was
+ * read, and either the value last written to it or the sum of the deltas added to it. Writing a key
+ * again replaces the entry's value rather than adding another, so a commit costs the number of
+ * distinct keys, however many operations the transaction made.
+ * <p/>
+ * Entries are kept in parallel arrays, an open-addressed table with linear probing, so an operation on
+ * a key already in the log allocates nothing. The table is only allocated on the first operation.
+ * <p/>
+ * Only the transaction's own thread uses the log, except for retainedBytes(), which any thread may read.
+ *
+ * @param <K>
+ * @param <V>
+ */
+class OperationLog<K, V> {
+
+    private static final int INITIAL_CAPACITY = 8;
+    // For estimating the memory held, assuming compressed references
+    private static final int REFERENCE_BYTES = 4;
+    private static final int ARRAY_HEADER_BYTES = 16;
+
+    private static final byte READ = 1;
+    private static final byte WRITTEN = 2;
+    private static final byte INCREMENTED = 4;
+
+    private Object[] keys;
+    // The value written, or the sum of the deltas added
+    private Object[] values;
+    private byte[] flags;
+    private int size;
+    private int incremented;
+
+    // The bytes of the byte[] values written
+    private long valueBytes;
+    // What retainedBytes() returns. Only written by the owning thread, as the log changes, so that other
+    // threads can read it without going through the arrays.
+    private volatile long retainedBytes;
+
+    /**
+     * Note that the transaction read the key
+     *
+     * @param key
+     * @return the key's slot, to look at what else the transaction did to it
+     */
+    int recordRead(K key) {
+
+        final int slot = slotFor(key);
+        flags[slot] |= READ;
+        return slot;
+    }
+
+    /**
+     * Set the value the key will have when the transaction commits. A null value removes the key.
+     *
+     * @param key
+     * @param value
+     */
+    void recordWrite(K key, V value) {
+
+        final int slot = slotFor(key);
+        if ((flags[slot] & INCREMENTED) != 0) {
+            // Whatever was added before is overwritten
+            incremented--;
+        }
+        flags[slot] = (byte) ((flags[slot] & READ) | WRITTEN);
+        final long changedBytes = bytesOf(value) - bytesOf(values[slot]);
+        values[slot] = value;
+        if (changedBytes != 0) {
+            valueBytes += changedBytes;
+            retainedBytes += changedBytes;
+        }
+    }
+
+    /**
+     * Add a delta to the key. If the transaction already wrote the key, the value it wrote is changed;
+     * otherwise the delta is added to what it has already added, to be applied at commit.
+     *
+     * @param key
+     * @param delta an Integer or a Long
+     */
+    void recordIncrement(K key, V delta) {
+
+        final int slot = slotFor(key);
+        if ((flags[slot] & (WRITTEN | INCREMENTED)) != 0) {
+            values[slot] = StaticTransactionalKVStore.Increment.add(values[slot], delta);
+        } else {
+            flags[slot] |= INCREMENTED;
+            values[slot] = delta;
+            incremented++;
+        }
+    }
+
+    /**
+     * The number of slots, some of them empty, to go through with keyAt()
+     */
+    int capacity() {
+        return keys == null ? 0 : keys.length;
+    }
+
+    /**
+     * The key in the slot, or null if the slot is empty
+     */
+    @SuppressWarnings("unchecked")
+    K keyAt(int slot) {
+        return (K) keys[slot];
+    }
+
+    boolean wasRead(int slot) {
+        return (flags[slot] & READ) != 0;
+    }
+
+    boolean isWritten(int slot) {
+        return (flags[slot] & WRITTEN) != 0;
+    }
+
+    /**
+     * Whether the key has deltas still to be added to its value at commit
+     */
+    boolean isIncremented(int slot) {
+        return (flags[slot] & INCREMENTED) != 0;
+    }
+
+    /**
+     * The value written to the slot's key, or the sum of the deltas added to it
+     */
+    Object valueAt(int slot) {
+        return values[slot];
+    }
+
+    boolean hasIncrements() {
+        return incremented != 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Roughly how much memory the log holds on to: its own arrays, and any byte[] values written, but not
+     * the keys or other values. Can be called from any thread.
+     */
+    long retainedBytes() {
+        return retainedBytes;
+    }
+
+    private static long bytesOf(Object value) {
+        return value instanceof byte[] ? ARRAY_HEADER_BYTES + ((byte[]) value).length : 0;
+    }
+
+    /**
+     * Every key the transaction touched, in no particular order
+     */
+    @SuppressWarnings("unchecked")
+    List<K> keys() {
+
+        List<K> touched = new ArrayList<K>(size);
+        for (int slot = 0; slot < capacity(); slot++) {
+            if (keys[slot] != null) {
+                touched.add((K) keys[slot]);
+            }
+        }
+        return touched;
+    }
+
+    /**
+     * The key's slot, which is claimed for it if it has none
+     */
+    private int slotFor(K key) {
+
+        if (key == null) {
+            throw new NullPointerException("Keys cannot be null");
+        }
+
+        if (keys == null) {
+            allocate(INITIAL_CAPACITY);
+        } else if ((size + 1) * 2 > keys.length) {
+            resize();
+        }
+
+        final int mask = keys.length - 1;
+        int slot = spread(key.hashCode()) & mask;
+        Object existing;
+        while ((existing = keys[slot]) != null) {
+            if (existing.equals(key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+
+        keys = new Object[capacity];
+        values = new Object[capacity];
+        flags = new byte[capacity];
+        retainedBytes = 3 * ARRAY_HEADER_BYTES + (long) capacity * (2 * REFERENCE_BYTES + 1) + valueBytes;
+    }
+
+    private void resize() {
+
+        final Object[] oldKeys = keys;
+        final Object[] oldValues = values;
+        final byte[] oldFlags = flags;
+        allocate(oldKeys.length * 2);
+
+        final int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) {
+                continue;
+            }
+            int slot = spread(oldKeys[i].hashCode()) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+            flags[slot] = oldFlags[i];
+        }
+    }
+
+    private static int spread(int hash) {
+        // As HashMap does, so keys with similar hashes don't end up in one long run
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * An immutable hash map, where put() and remove() return a new map and leave this one as it was.
+ * <p/>
+ * It is a hash array mapped trie: a tree 32 wide, where each level is indexed by the next 5 bits of a
+ * key's hash, and each node only has room for the children it actually has, found through a bitmap of
+ * which of the 32 are there. A change copies the nodes on the path to its key, a handful at most, and
+ * shares the rest with the map it came from. Keys whose hashes are equal all the way down share a node
+ * that is looked through in turn.
+ * <p/>
+ * Since nothing in a map ever changes, any number of threads can read one without locks, and holding on
+ * to one is a snapshot. Null keys are allowed. Null values are not, since a key without a value is
+ * simply left out.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public final class PersistentHashMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    // Returned by find() for a key that is not there, since null may be a key
+    private static final Object NOT_FOUND = new Object();
+    // Stands in for the key of an entry that is a child node
+    private static final Object CHILD = new Object();
+
+    private static final PersistentHashMap<Object, Object> EMPTY =
+            new PersistentHashMap<Object, Object>(BitmapNode.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+
+        final Object value = root.find(0, hash(key), key);
+        return value == NOT_FOUND ? null : (V) value;
+    }
+
+    public boolean containsKey(Object key) {
+        return root.find(0, hash(key), key) != NOT_FOUND;
+    }
+
+    /**
+     * This map with the key given the value
+     *
+     * @param key
+     * @param value
+     * @return this map if the key already had the value
+     */
+    public PersistentHashMap<K, V> put(K key, V value) {
+
+        if (value == null) {
+            throw new IllegalArgumentException("A persistent map cannot hold a null value, for key " + key);
+        }
+
+        final boolean[] added = new boolean[1];
+        final Node newRoot = root.put(0, hash(key), key, value, added);
+        return newRoot == root ? this : new PersistentHashMap<K, V>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * This map without the key
+     *
+     * @param key
+     * @return this map if the key was not there
+     */
+    public PersistentHashMap<K, V> remove(Object key) {
+
+        final Node newRoot = root.remove(0, hash(key), key);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? PersistentHashMap.<K, V>empty() : new PersistentHashMap<K, V>(newRoot, size - 1);
+    }
+
+    static int hash(Object key) {
+
+        // Spread the high bits down, as HashMap does, since the top levels only look at the low bits
+        final int hash = key == null ? 0 : key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private abstract static class Node {
+
+        /**
+         * The key's value, or NOT_FOUND
+         */
+        abstract Object find(int shift, int hash, Object key);
+
+        /**
+         * This node with the key given the value, or this node if it already had it. Sets added[0] if
+         * the key was not there before.
+         */
+        abstract Node put(int shift, int hash, Object key, Object value, boolean[] added);
+
+        /**
+         * This node without the key, this node if it was not there, or null if nothing is left
+         */
+        abstract Node remove(int shift, int hash, Object key);
+    }
+
+    /**
+     * Up to 32 entries, one for each value of the 5 bits of the hash at this level. An entry is a key and
+     * its value, or CHILD and the node below.
+     */
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+        // Key and value, or CHILD and node, for each bit set in the bitmap, in order
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private static int bitFor(int shift, int hash) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private int indexOf(int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object find(int shift, int hash, Object key) {
+
+            final int bit = bitFor(shift, hash);
+            if ((bitmap & bit) == 0) {
+                return NOT_FOUND;
+            }
+
+            final int index = indexOf(bit);
+            final Object entryKey = array[index];
+            if (entryKey == CHILD) {
+                return ((Node) array[index + 1]).find(shift + BITS, hash, key);
+            }
+            return equal(key, entryKey) ? array[index + 1] : NOT_FOUND;
+        }
+
+        Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+
+            final int bit = bitFor(shift, hash);
+            final int index = indexOf(bit);
+
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                final Object[] grown = new Object[array.length + 2];
+                System.arraycopy(array, 0, grown, 0, index);
+                grown[index] = key;
+                grown[index + 1] = value;
+                System.arraycopy(array, index, grown, index + 2, array.length - index);
+                return new BitmapNode(bitmap | bit, grown);
+            }
+
+            final Object entryKey = array[index];
+            final Object entryValue = array[index + 1];
+            if (entryKey == CHILD) {
+                final Node child = (Node) entryValue;
+                final Node newChild = child.put(shift + BITS, hash, key, value, added);
+                return newChild == child ? this : with(index, CHILD, newChild);
+            }
+            if (equal(key, entryKey)) {
+                return entryValue == value ? this : with(index, key, value);
+            }
+
+            // Another key with the same bits at this level. Both go down a level.
+            added[0] = true;
+            return with(index, CHILD, pair(shift + BITS, entryKey, entryValue, hash, key, value));
+        }
+
+        Node remove(int shift, int hash, Object key) {
+
+            final int bit = bitFor(shift, hash);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+
+            final int index = indexOf(bit);
+            final Object entryKey = array[index];
+            if (entryKey == CHILD) {
+                final Node child = (Node) array[index + 1];
+                final Node newChild = child.remove(shift + BITS, hash, key);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild != null) {
+                    return with(index, CHILD, newChild);
+                }
+            } else if (!equal(key, entryKey)) {
+                return this;
+            }
+
+            if (bitmap == bit) {
+                return null;
+            }
+            final Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, index);
+            System.arraycopy(array, index + 2, shrunk, index, array.length - index - 2);
+            return new BitmapNode(bitmap & ~bit, shrunk);
+        }
+
+        private BitmapNode with(int index, Object key, Object value) {
+
+            final Object[] copy = array.clone();
+            copy[index] = key;
+            copy[index + 1] = value;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        /**
+         * A node holding two different keys
+         */
+        private static Node pair(int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+
+            final int hash1 = hash(key1);
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[]{key1, value1, key2, value2});
+            }
+            final boolean[] added = new boolean[1];
+            return EMPTY.put(shift, hash1, key1, value1, added).put(shift, hash2, key2, value2, added);
+        }
+    }
+
+    /**
+     * Keys whose hashes are all the same, as keys and values in turn
+     */
+    private static final class CollisionNode extends Node {
+
+        final int hash;
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Object key) {
+
+            for (int i = 0; i < array.length; i += 2) {
+                if (equal(key, array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Object find(int shift, int hash, Object key) {
+
+            final int index = hash == this.hash ? indexOf(key) : -1;
+            return index < 0 ? NOT_FOUND : array[index + 1];
+        }
+
+        Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+
+            if (hash != this.hash) {
+                // Put this node a level down, under the bits its hash has at this level
+                final Node parent = new BitmapNode(BitmapNode.bitFor(shift, this.hash), new Object[]{CHILD, this});
+                return parent.put(shift, hash, key, value, added);
+            }
+
+            final int index = indexOf(key);
+            if (index >= 0) {
+                if (array[index + 1] == value) {
+                    return this;
+                }
+                final Object[] copy = array.clone();
+                copy[index + 1] = value;
+                return new CollisionNode(hash, copy);
+            }
+
+            added[0] = true;
+            final Object[] grown = new Object[array.length + 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            grown[array.length] = key;
+            grown[array.length + 1] = value;
+            return new CollisionNode(hash, grown);
+        }
+
+        Node remove(int shift, int hash, Object key) {
+
+            final int index = hash == this.hash ? indexOf(key) : -1;
+            if (index < 0) {
+                return this;
+            }
+            if (array.length == 2) {
+                return null;
+            }
+            final Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, index);
+            System.arraycopy(array, index + 2, shrunk, index, array.length - index - 2);
+            return new CollisionNode(hash, shrunk);
+        }
+    }
+}
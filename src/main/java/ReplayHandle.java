@@ -0,0 +1,145 @@
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * What a caller gets back for a replayable transaction submitted to a ReplayScheduler. It can be
+ * polled for the transaction's status, waited on like any Future, or given callbacks to run once the
+ * transaction has committed or failed.
+ * <p/>
+ * A transaction only takes up a worker thread while it is actually running, so any number of them can
+ * be in flight at once.
+ */
+public class ReplayHandle implements Future<Void> {
+
+    public enum Status {
+        // Waiting for a worker
+        QUEUED,
+        RUNNING,
+        // Rolled back, and waiting for the commit it conflicted with before being run again
+        PARKED,
+        COMMITTED,
+        FAILED,
+        CANCELLED
+    }
+
+    private final CompletableFuture<Void> result = new CompletableFuture<Void>();
+    private volatile Status status = Status.QUEUED;
+    private volatile int attempts;
+
+    ReplayHandle() {
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * How many times the transaction has been run so far
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Run the callback once the transaction has committed. If it already has, the callback runs right
+     * away on the calling thread; otherwise on the worker that committed it, so it should be quick.
+     *
+     * @param callback
+     * @return this handle
+     */
+    public ReplayHandle whenCommitted(final Runnable callback) {
+
+        result.thenRun(callback);
+        return this;
+    }
+
+    /**
+     * Run the callback with the reason the transaction will never commit, once it is known. Runs on the
+     * same threads as whenCommitted callbacks.
+     *
+     * @param callback
+     * @return this handle
+     */
+    public ReplayHandle whenFailed(final Consumer<Throwable> callback) {
+
+        result.exceptionally(new Function<Throwable, Void>() {
+            public Void apply(Throwable failure) {
+                callback.accept(failure instanceof CompletionException && failure.getCause() != null ?
+                        failure.getCause() : failure);
+                return null;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * The outcome as a CompletableFuture, to compose with others
+     */
+    public CompletableFuture<Void> toCompletableFuture() {
+        return result;
+    }
+
+    /**
+     * Stop the transaction from being run again. One that is running right now finishes that run, and
+     * may still commit.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+
+        if (result.cancel(false)) {
+            status = Status.CANCELLED;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return result.isCancelled();
+    }
+
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    public Void get() throws InterruptedException, ExecutionException {
+        return result.get();
+    }
+
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return result.get(timeout, unit);
+    }
+
+    /**
+     * Called by a worker as it starts a run. False if the transaction was cancelled meanwhile.
+     */
+    boolean started() {
+
+        if (result.isDone()) {
+            return false;
+        }
+        attempts++;
+        status = Status.RUNNING;
+        return true;
+    }
+
+    void parked() {
+        status = Status.PARKED;
+    }
+
+    // The status is set first, so callbacks see it, and put back if the handle was cancelled meanwhile
+    void committed() {
+
+        status = Status.COMMITTED;
+        if (!result.complete(null)) {
+            status = Status.CANCELLED;
+        }
+    }
+
+    void failed(Throwable cause) {
+
+        status = Status.FAILED;
+        if (!result.completeExceptionally(cause)) {
+            status = Status.CANCELLED;
+        }
+    }
+}
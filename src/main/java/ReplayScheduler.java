@@ -0,0 +1,422 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs replayable transactions against a store, and re-runs them when they conflict, without sleeping
+ * on a guess of how long the conflict will last.
+ * <p/>
+ * A transaction that has to be rolled back is parked on the key it conflicted on, behind any others
+ * already waiting for that key. Once the commit that wrote the key is visible, the transaction at the
+ * head of the queue is re-run. The others stay parked until it is done, since they would most likely
+ * only conflict with it in turn: each key has at most one of its waiters running at a time, and the
+ * next one goes as soon as it finishes. A transaction that conflicts again on the same key goes back
+ * to the head of the queue, so a hot key cannot starve the transactions that were waiting first.
+ * <p/>
+ * Transactions run on a fixed number of worker threads, whatever the number in flight. A parked
+ * transaction is just an entry in a queue, not a blocked thread. A conflict that does not name a key is
+ * retried after the wait the exception asks for.
+ */
+public class ReplayScheduler {
+
+    private static final long IDLE_WORKER_TIMEOUT_MS = 1000;
+
+    // The job running on this thread, if any, for began() to tell which transaction its attempt uses
+    private static final ThreadLocal<Job> RUNNING_JOB = new ThreadLocal<Job>();
+
+    private final TransactionalKVStore<?, ?> store;
+    private final ScheduledThreadPoolExecutor workers;
+    private final TransactionalKVStore.CommitListener commitListener;
+
+    // Transactions waiting for a key to be written, by key. Queues are dropped once empty and idle.
+    private final ConcurrentHashMap<Object, KeyQueue> queues = new ConcurrentHashMap<Object, KeyQueue>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicInteger parked = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    // Set once the store can take no more commits. Parked transactions are failed rather than re-run.
+    private volatile Throwable storeFailure;
+
+    public ReplayScheduler(TransactionalKVStore<?, ?> store) {
+        this(store, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ReplayScheduler(TransactionalKVStore<?, ?> store, int workerThreads) {
+
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("A replay scheduler needs at least one worker, not " + workerThreads);
+        }
+
+        this.store = store;
+        this.workers = new ScheduledThreadPoolExecutor(workerThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "replay-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        workers.setKeepAliveTime(IDLE_WORKER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        workers.allowCoreThreadTimeOut(true);
+
+        this.commitListener = new TransactionalKVStore.CommitListener() {
+            public void committed(long commitVersion, Collection<?> keys) {
+                wake(keys);
+            }
+        };
+        store.addCommitListener(commitListener);
+    }
+
+    /**
+     * Run the transaction until it commits, or has been rolled back more than maxAttempts times.
+     *
+     * @param transaction
+     * @param arguments
+     * @param maxAttempts
+     * @return a handle on the transaction, which completes once it has committed, or exceptionally with
+     * why it never will
+     */
+    public ReplayHandle submit(TransactionalKVStore.ReplayableTransaction transaction, Object[] arguments,
+                               int maxAttempts) {
+
+        Job job = new Job(transaction, arguments, maxAttempts);
+        submitted.incrementAndGet();
+        execute(job);
+        return job.handle;
+    }
+
+    /**
+     * Stop taking transactions. Ones already running finish, but parked ones are not re-run.
+     */
+    public void shutdown() {
+
+        store.removeCommitListener(commitListener);
+        workers.shutdown();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * How many times a transaction was rolled back and had to be run again
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * How many transactions are parked right now, over all keys
+     */
+    public int getParkedCount() {
+        return parked.get();
+    }
+
+    /**
+     * How many transactions are parked on the given key right now
+     */
+    public int getQueueDepth(Object key) {
+
+        KeyQueue queue = queues.get(key);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.waiting.size();
+        }
+    }
+
+    /**
+     * The most transactions ever parked on a single key at once
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * The store has stopped taking commits, so fail every parked transaction, and any parked from now on,
+     * since the commits they wait for will never be visible
+     */
+    void storeFailed(Throwable cause) {
+
+        storeFailure = cause;
+        for (Object key : queues.keySet()) {
+            dispatch(key);
+        }
+    }
+
+    private void execute(Job job) {
+
+        try {
+            workers.execute(job);
+        } catch (RejectedExecutionException e) {
+            fail(job, e);
+        }
+    }
+
+    private void fail(Job job, Throwable cause) {
+
+        failed.incrementAndGet();
+        job.handle.failed(cause);
+    }
+
+    /**
+     * Queue a rolled back job behind the key it conflicted on
+     *
+     * @param heldKey the key whose turn the job was running in, if any
+     */
+    private void park(Job job, RetryLaterException conflict, Object heldKey) {
+
+        job.handle.parked();
+        final Object key = conflict.getConflictingKey();
+        if (key == null) {
+            try {
+                workers.schedule(job, conflict.getWaitTimeMs(), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                fail(job, e);
+            }
+            return;
+        }
+
+        job.awaitedVersion = conflict.getConflictingVersion();
+        parked.incrementAndGet();
+        while (true) {
+
+            KeyQueue queue = queues.get(key);
+            if (queue == null) {
+                queue = new KeyQueue();
+                KeyQueue existing = queues.putIfAbsent(key, queue);
+                if (existing != null) {
+                    queue = existing;
+                }
+            }
+
+            synchronized (queue) {
+                if (queue.retired) {
+                    // Emptied and dropped after we looked it up
+                    continue;
+                }
+                if (key.equals(heldKey)) {
+                    queue.waiting.addFirst(job);
+                } else {
+                    queue.waiting.addLast(job);
+                }
+                updateMaxQueueDepth(queue.waiting.size());
+            }
+            break;
+        }
+
+        // The commit may have become visible before we were queued, in which case nobody else will wake us
+        dispatch(key);
+    }
+
+    /**
+     * Start the next job parked on the key, unless one of them is already running or the commit the
+     * head is waiting for is not visible yet
+     */
+    private void dispatch(Object key) {
+
+        KeyQueue queue = queues.get(key);
+        if (queue == null) {
+            return;
+        }
+
+        final Throwable failure = storeFailure;
+        if (failure != null) {
+            final List<Job> abandoned = new ArrayList<Job>();
+            synchronized (queue) {
+                abandoned.addAll(queue.waiting);
+                queue.waiting.clear();
+                if (!queue.running) {
+                    queue.retired = true;
+                    queues.remove(key, queue);
+                }
+            }
+            for (Job job : abandoned) {
+                parked.decrementAndGet();
+                fail(job, new IllegalStateException("The store can take no more commits", failure));
+            }
+            return;
+        }
+
+        final Job next;
+        synchronized (queue) {
+            if (queue.retired || queue.running) {
+                return;
+            }
+            Job head = queue.waiting.peekFirst();
+            if (head == null) {
+                queue.retired = true;
+                queues.remove(key, queue);
+                return;
+            }
+            if (store.getCommittedVersion() < head.awaitedVersion) {
+                return;
+            }
+            next = queue.waiting.pollFirst();
+            queue.running = true;
+        }
+
+        parked.decrementAndGet();
+        next.heldKey = key;
+        execute(next);
+    }
+
+    /**
+     * A job that ran in the key's turn is done with it, one way or another
+     */
+    private void release(Object key) {
+
+        KeyQueue queue = queues.get(key);
+        if (queue != null) {
+            synchronized (queue) {
+                queue.running = false;
+            }
+        }
+        dispatch(key);
+    }
+
+    private void wake(Collection<?> keys) {
+
+        if (parked.get() == 0) {
+            return;
+        }
+        for (Object key : keys) {
+            if (queues.containsKey(key)) {
+                dispatch(key);
+            }
+        }
+    }
+
+    private void updateMaxQueueDepth(int depth) {
+
+        int max;
+        while (depth > (max = maxQueueDepth.get())) {
+            if (maxQueueDepth.compareAndSet(max, depth)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The transactions parked on one key, and whether one of them is running
+     */
+    private static class KeyQueue {
+
+        final Deque<Job> waiting = new ArrayDeque<Job>();
+        boolean running;
+        boolean retired;
+    }
+
+    /**
+     * Called by the store whenever a transaction begins. If the thread is running an attempt of a
+     * replayable transaction, the first transaction it begins is the one the attempt is recorded under.
+     */
+    static void began(int transactionId) {
+
+        final Job job = RUNNING_JOB.get();
+        if (job != null && job.attemptTransactionId < 0) {
+            job.attemptTransactionId = transactionId;
+        }
+    }
+
+    /**
+     * One submitted transaction, for as many attempts as it takes
+     */
+    private class Job implements Runnable {
+
+        final TransactionalKVStore.ReplayableTransaction transaction;
+        final Object[] arguments;
+        final int maxAttempts;
+        final ReplayHandle handle = new ReplayHandle();
+
+        // The version of the conflicting commit, while parked
+        long awaitedVersion;
+        // The key queue it was dispatched from, if any, which it holds until this run is over
+        Object heldKey;
+        // The transaction the current attempt began, or -1 until it begins one
+        int attemptTransactionId;
+
+        Job(TransactionalKVStore.ReplayableTransaction transaction, Object[] arguments, int maxAttempts) {
+
+            this.transaction = transaction;
+            this.arguments = arguments;
+            this.maxAttempts = maxAttempts;
+        }
+
+        public void run() {
+
+            final Object held = heldKey;
+            heldKey = null;
+            final TransactionEvents.ReplayAttempt event = new TransactionEvents.ReplayAttempt();
+            event.begin();
+            attemptTransactionId = -1;
+            RUNNING_JOB.set(this);
+            try {
+
+                if (!handle.started()) {
+                    // Cancelled while it waited
+                    return;
+                }
+                transaction.transaction(arguments, store);
+                completed.incrementAndGet();
+                emitAttempt(event, "committed", null);
+                handle.committed();
+            } catch (RetryLaterException rte) {
+
+                emitAttempt(event, "rolled back", rte.getConflictingKey());
+
+                final int failedAttempts = handle.getAttempts();
+                if (failedAttempts > maxAttempts) {
+                    fail(this, new RuntimeException("Could not commit transaction, even after " +
+                            failedAttempts + " attempts"));
+                } else {
+                    retries.incrementAndGet();
+                    store.getMetrics().recordRetry();
+                    if (rte.getConflictingKey() != null) {
+                        store.getConflictHeatmap().recordRetry(rte.getConflictingKey());
+                    }
+                    park(this, rte, held);
+                }
+            } catch (Throwable t) {
+                emitAttempt(event, "failed: " + t, null);
+                fail(this, t);
+            } finally {
+                RUNNING_JOB.remove();
+                // After parking, so a job that conflicted on the same key again keeps its place
+                if (held != null) {
+                    release(held);
+                }
+            }
+        }
+
+        private void emitAttempt(TransactionEvents.ReplayAttempt event, String outcome, Object conflictingKey) {
+
+            if (event.shouldCommit()) {
+                event.transactionId = attemptTransactionId;
+                event.attempt = handle.getAttempts();
+                event.outcome = outcome;
+                event.conflictingKey = conflictingKey == null ? null : String.valueOf(conflictingKey);
+                event.commit();
+            }
+        }
+    }
+}
@@ -6,14 +6,27 @@ public class RetryLaterException extends Exception {
     final String LOCALIZED_MESSAGE;
     private int msToWait = 250;
 
+    // The key whose commit made this one stale, and the version of that commit. Null and
+    // NO_VERSION when the conflict is not down to a single key.
+    private final Object conflictingKey;
+    private final long conflictingVersion;
+
     public RetryLaterException(int numMatches) {
         this.msToWait = 100 + 50 * numMatches;
         this.LOCALIZED_MESSAGE = "Please wait " + msToWait + " milliseconds before retrying request";
+        this.conflictingKey = null;
+        this.conflictingVersion = MetadataValue.NO_VERSION;
     }
 
     public RetryLaterException(String msg) {
+        this(msg, null, MetadataValue.NO_VERSION);
+    }
+
+    public RetryLaterException(String msg, Object conflictingKey, long conflictingVersion) {
 
         this.LOCALIZED_MESSAGE = msg;
+        this.conflictingKey = conflictingKey;
+        this.conflictingVersion = conflictingVersion;
     }
 
     @Override
@@ -21,9 +34,20 @@ public class RetryLaterException extends Exception {
         return LOCALIZED_MESSAGE;
     }
 
+    public Object getConflictingKey() {
+        return conflictingKey;
+    }
+
+    /**
+     * The commit version that wrote the conflicting key. Retrying before that commit is visible would
+     * just conflict again.
+     */
+    public long getConflictingVersion() {
+        return conflictingVersion;
+    }
+
     public int getWaitTimeMs() {
         this.msToWait = this.msToWait + (int) (Math.random() * 100);
-        System.out.println("Directing to wait " + this.msToWait + " milliseconds");
         return this.msToWait;
     }
 }
@@ -1,4 +1,7 @@
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A class designed to group operations into transactions and execute those transactions.
@@ -14,6 +17,14 @@ import java.util.*;
  * current state.
  * <p/>
  * As a result, so while this is a good first attempt, it is not very practical.
+ * <p/>
+ * What it is good for is bulk work. Since every transaction's operations are known before it commits,
+ * commitBatch() can tell which transactions touch none of the same keys, and run those in parallel.
+ * <p/>
+ * The data is held in a PersistentHashMap, which is never changed in place. A commit works out a new
+ * map from the current one, sharing all but the paths to the keys it writes, and makes it current with
+ * a single compare-and-set. A commit that fails part way leaves nothing behind, and a reader can take
+ * the current map with snapshot() and read it for as long as it likes, without locks.
  *
  * @param <K>
  * @param <V>
@@ -29,14 +40,19 @@ import java.util.*;
 public class StaticTransactionalKVStore<K, V> {
 
 
-    //Store is source of truth. It's the backing store.
-    private final Map<K, V> store;
+    // Transactions in a batch with no more keys than this between them are committed on the calling
+    // thread, rather than being handed to the pool
+    private static final int BATCH_SPLIT_THRESHOLD = 64;
+
+    //Store is source of truth. It's the backing store: the latest committed map, which is replaced whole
+    //by each commit. A key with no value is left out.
+    private final AtomicReference<PersistentHashMap<K, V>> store;
 
-    //This is the list of transactions that need to be processed
+    //This is the list of transactions that need to be processed. A transaction leaves it when it commits.
     Map<Integer, List<TransactionalUnit<K, V>>> transactionQueue;
 
     {
-        store = new HashMap<K, V>();
+        store = new AtomicReference<PersistentHashMap<K, V>>(PersistentHashMap.<K, V>empty());
         transactionQueue = new HashMap<Integer, List<TransactionalUnit<K, V>>>();
     }
 
@@ -75,30 +91,311 @@ public class StaticTransactionalKVStore<K, V> {
         transactionList.add(readRequest);
     }
 
+    /**
+     * A point-in-time view of every committed transaction so far, which later commits do not change
+     *
+     * @return
+     */
+    public PersistentHashMap<K, V> snapshot() {
+        return store.get();
+    }
+
     public List<TransactionalUnit<K, V>> commit(final int transactionId) {
 
-        /** TODO: Think of an atomic implementation. Likely this will just involve operating on
-         * a copy of the data until it succeeds or fails. Then the pointer will point to the new
-         * data structure and the old one will be discarded. In the case of failure, however, the
-         * pointer will not be switched and a failure will be returned.
-         */
+        final List<TransactionalUnit<K, V>> units = transactionQueue.remove(transactionId);
+        if (units == null) {
+            throw new RuntimeException("Attempting to commit a transaction for which there is no entry " +
+                    transactionId);
+        }
+        return apply(units);
+    }
+
+    /**
+     * Commit a transaction's units, which have already been taken off the queue
+     */
+    private List<TransactionalUnit<K, V>> apply(final List<TransactionalUnit<K, V>> units) {
+
+        // Work on the latest map until it can be swapped for the new one. If another commit got in first,
+        // start again from its map, so the reads see its writes.
+        while (true) {
+
+            final PersistentHashMap<K, V> committed = store.get();
+            final List<TransactionalUnit<K, V>> returnedResults = new ArrayList<TransactionalUnit<K, V>>();
+            final PersistentHashMap<K, V> updated = applyTo(committed, units, returnedResults);
+
+            if (updated == committed || store.compareAndSet(committed, updated)) {
+                return returnedResults;
+            }
+        }
+    }
+
+    /**
+     * Run a transaction's units against the map, adding each to the results, and return the map with
+     * its writes made. Nothing is published.
+     */
+    private PersistentHashMap<K, V> applyTo(final PersistentHashMap<K, V> map,
+                                            final List<TransactionalUnit<K, V>> units,
+                                            final List<TransactionalUnit<K, V>> returnedResults) {
 
-        List<TransactionalUnit<K, V>> returnedResults = new ArrayList<TransactionalUnit<K, V>>();
-        for (TransactionalUnit<K, V> individualCommit : transactionQueue.get(transactionId)) {
+        PersistentHashMap<K, V> updated = map;
+        for (TransactionalUnit<K, V> individualCommit : units) {
 
             K key = individualCommit.getKey();
             if (individualCommit instanceof IsolatedRead) {
 
-                //a read. populate the read object
-                ((IsolatedRead) individualCommit).setValue(store.get(key));
+                //a read. populate the read object, with what the transaction has written so far
+                ((IsolatedRead<K, V>) individualCommit).setValue(updated.get(key));
                 returnedResults.add(individualCommit);
             } else if (individualCommit instanceof ValueChange) {
                 //a write. Write it out.
-                store.put(key, individualCommit.getValue());
+                if (individualCommit.getValue() == null) {
+                    updated = updated.remove(key);
+                } else {
+                    updated = updated.put(key, individualCommit.getValue());
+                }
                 returnedResults.add(individualCommit);
             }
         }
-        return returnedResults;
+        return updated;
+    }
+
+    /**
+     * Commit many queued transactions at once, on the common fork-join pool. See
+     * commitBatch(Collection, ForkJoinPool).
+     *
+     * @param transactionIds
+     * @return
+     */
+    public Map<Integer, List<TransactionalUnit<K, V>>> commitBatch(Collection<Integer> transactionIds) {
+        return commitBatch(transactionIds, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Commit many queued transactions at once, with the same outcome as committing them one after the
+     * other in increasing order of id.
+     * <p/>
+     * The transactions are split into groups, such that no two groups use any of the same keys. A
+     * transaction goes in the same group as every other transaction it shares a key with, and every
+     * one they share a key with, and so on. Each group is committed in order of id, and the groups are
+     * worked out in parallel on the pool, since nothing one group does can be seen by another. Each
+     * group starts from the map as it was when the batch began, and keeps its writes to itself. Once
+     * every group is done, their writes are copied into one map, which is published with a single
+     * compare-and-set, so the groups never contend with one another for the store.
+     * <p/>
+     * If a commit from outside the batch gets in before that, the groups are run again from its map.
+     *
+     * @param transactionIds
+     * @param pool
+     * @return each transaction's results, as commit() returns them, in order of id
+     */
+    public Map<Integer, List<TransactionalUnit<K, V>>> commitBatch(Collection<Integer> transactionIds,
+                                                                   ForkJoinPool pool) {
+
+        final int[] ordered = new int[transactionIds.size()];
+        int count = 0;
+        for (Integer transactionId : new TreeSet<Integer>(transactionIds)) {
+            if (transactionQueue.get(transactionId) == null) {
+                throw new RuntimeException("Attempting to commit a transaction for which there is no entry " +
+                        transactionId);
+            }
+            ordered[count++] = transactionId;
+        }
+
+        // Taken off the queue here, since the queue is not safe to change from the pool's threads
+        final Map<Integer, List<TransactionalUnit<K, V>>> units = new HashMap<Integer, List<TransactionalUnit<K, V>>>();
+        for (int i = 0; i < count; i++) {
+            units.put(ordered[i], transactionQueue.remove(ordered[i]));
+        }
+
+        final int[][] groups = conflictFreeGroups(Arrays.copyOf(ordered, count), units);
+        final List<TransactionalUnit<K, V>>[][] results = newResults(groups.length);
+        final PersistentHashMap<K, V>[] groupMaps = newMaps(groups.length);
+        while (true) {
+
+            final PersistentHashMap<K, V> committed = store.get();
+            pool.invoke(new CommitGroups(groups, units, committed, groupMaps, results, 0, groups.length));
+
+            final PersistentHashMap<K, V> updated = merge(committed, groups, units, groupMaps);
+            if (updated == committed || store.compareAndSet(committed, updated)) {
+                break;
+            }
+        }
+
+        final Map<Integer, List<TransactionalUnit<K, V>>> resultsById =
+                new TreeMap<Integer, List<TransactionalUnit<K, V>>>();
+        for (int g = 0; g < groups.length; g++) {
+            for (int i = 0; i < groups[g].length; i++) {
+                resultsById.put(groups[g][i], results[g][i]);
+            }
+        }
+        return resultsById;
+    }
+
+    /**
+     * The map every group started from, with each key a group wrote set to what the group left it as.
+     * Groups share no keys, so the order they are copied in makes no difference.
+     */
+    private PersistentHashMap<K, V> merge(final PersistentHashMap<K, V> committed, final int[][] groups,
+                                          final Map<Integer, List<TransactionalUnit<K, V>>> units,
+                                          final PersistentHashMap<K, V>[] groupMaps) {
+
+        PersistentHashMap<K, V> merged = committed;
+        for (int g = 0; g < groups.length; g++) {
+
+            final PersistentHashMap<K, V> groupMap = groupMaps[g];
+            if (groupMap == committed) {
+                continue;
+            }
+            for (int transactionId : groups[g]) {
+                for (TransactionalUnit<K, V> unit : units.get(transactionId)) {
+                    if (!(unit instanceof ValueChange)) {
+                        continue;
+                    }
+                    final V value = groupMap.get(unit.getKey());
+                    merged = value == null ? merged.remove(unit.getKey()) : merged.put(unit.getKey(), value);
+                }
+            }
+        }
+        return merged;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K, V> List<TransactionalUnit<K, V>>[][] newResults(int groups) {
+        return new List[groups][];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K, V> List<TransactionalUnit<K, V>>[] newResultRow(int transactions) {
+        return new List[transactions];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K, V> PersistentHashMap<K, V>[] newMaps(int groups) {
+        return new PersistentHashMap[groups];
+    }
+
+    /**
+     * Split the transactions, in order of id, into groups that share no keys with one another, with
+     * each group still in order of id. Transactions sharing a key are joined with a union-find over
+     * their positions.
+     */
+    private int[][] conflictFreeGroups(int[] ordered, Map<Integer, List<TransactionalUnit<K, V>>> units) {
+
+        final int[] parent = new int[ordered.length];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+
+        // The first transaction to use each key, which every later one using it is joined with
+        final Map<K, Integer> firstUser = new HashMap<K, Integer>();
+        for (int i = 0; i < ordered.length; i++) {
+            for (TransactionalUnit<K, V> unit : units.get(ordered[i])) {
+                final Integer first = firstUser.get(unit.getKey());
+                if (first == null) {
+                    firstUser.put(unit.getKey(), i);
+                } else {
+                    union(parent, first, i);
+                }
+            }
+        }
+
+        final Map<Integer, List<Integer>> byRoot = new LinkedHashMap<Integer, List<Integer>>();
+        for (int i = 0; i < ordered.length; i++) {
+            final int root = find(parent, i);
+            List<Integer> group = byRoot.get(root);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                byRoot.put(root, group);
+            }
+            group.add(ordered[i]);
+        }
+
+        final int[][] groups = new int[byRoot.size()][];
+        int g = 0;
+        for (List<Integer> group : byRoot.values()) {
+            groups[g] = new int[group.size()];
+            for (int i = 0; i < group.size(); i++) {
+                groups[g][i] = group.get(i);
+            }
+            g++;
+        }
+        return groups;
+    }
+
+    private static int find(int[] parent, int i) {
+
+        while (parent[i] != i) {
+            // Halve the path on the way up
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+
+        final int rootA = find(parent, a);
+        final int rootB = find(parent, b);
+        if (rootA != rootB) {
+            // The earlier transaction stays the root, so groups keep the order of their first transaction
+            parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    /**
+     * Works out the writes of a range of groups, each from the same starting map, splitting the range in
+     * two for the pool while it holds enough transactions
+     */
+    private final class CommitGroups extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[][] groups;
+        private final Map<Integer, List<TransactionalUnit<K, V>>> units;
+        private final PersistentHashMap<K, V> committed;
+        private final PersistentHashMap<K, V>[] groupMaps;
+        private final List<TransactionalUnit<K, V>>[][] results;
+        private final int from;
+        private final int to;
+
+        CommitGroups(int[][] groups, Map<Integer, List<TransactionalUnit<K, V>>> units,
+                     PersistentHashMap<K, V> committed, PersistentHashMap<K, V>[] groupMaps,
+                     List<TransactionalUnit<K, V>>[][] results, int from, int to) {
+
+            this.groups = groups;
+            this.units = units;
+            this.committed = committed;
+            this.groupMaps = groupMaps;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+
+            int transactions = 0;
+            for (int g = from; g < to; g++) {
+                transactions += groups[g].length;
+            }
+
+            if (to - from == 1 || transactions <= BATCH_SPLIT_THRESHOLD) {
+                for (int g = from; g < to; g++) {
+                    PersistentHashMap<K, V> groupMap = committed;
+                    results[g] = newResultRow(groups[g].length);
+                    for (int i = 0; i < groups[g].length; i++) {
+                        results[g][i] = new ArrayList<TransactionalUnit<K, V>>();
+                        groupMap = applyTo(groupMap, units.get(groups[g][i]), results[g][i]);
+                    }
+                    groupMaps[g] = groupMap;
+                }
+                return;
+            }
+
+            final int middle = (from + to) >>> 1;
+            invokeAll(new CommitGroups(groups, units, committed, groupMaps, results, from, middle),
+                    new CommitGroups(groups, units, committed, groupMaps, results, middle, to));
+        }
     }
 
     public abstract static class TransactionalUnit<K, V> {
@@ -110,7 +407,7 @@ public class StaticTransactionalKVStore<K, V> {
         abstract V getValue();
     }
 
-    public static class IsolatedRead<K, V> extends TransactionalUnit {
+    public static class IsolatedRead<K, V> extends TransactionalUnit<K, V> {
 
         final private Date timestamp;
         private K key;
@@ -130,7 +427,7 @@ public class StaticTransactionalKVStore<K, V> {
             return this.timestamp;
         }
 
-        Object getValue() {
+        V getValue() {
             return this.value;
         }
 
@@ -139,7 +436,7 @@ public class StaticTransactionalKVStore<K, V> {
         }
     }
 
-    public static class ValueChange<K, V> extends TransactionalUnit {
+    public static class ValueChange<K, V> extends TransactionalUnit<K, V> {
 
         final private K key;
         final private V value;
@@ -166,6 +463,97 @@ public class StaticTransactionalKVStore<K, V> {
         }
     }
 
+    /**
+     * Adds a delta to whatever value the key holds when the transaction commits, rather than writing a
+     * value worked out from an earlier read. Increments to the same key commute, so concurrent ones
+     * can all commit instead of all but one being rolled back.
+     * <p/>
+     * Only Integer and Long values can be incremented. A key with no value starts from the delta.
+     *
+     * @param <K>
+     * @param <V>
+     */
+    public static class Increment<K, V> extends TransactionalUnit<K, V> {
+
+        final private K key;
+        final private V delta;
+        final private Date timestamp;
+
+        public Increment(K key, V delta) {
+
+            checkDelta(delta);
+            this.key = key;
+            this.delta = delta;
+            this.timestamp = new Date();
+        }
+
+        public Date getTimeStamp() {
+            return this.timestamp;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return delta;
+        }
+
+        /**
+         * Whether this delta can be added to the given value
+         *
+         * @param value
+         * @return
+         */
+        boolean appliesTo(Object value) {
+            return canAdd(value, delta);
+        }
+
+        /**
+         * The given value with this delta added to it
+         *
+         * @param value
+         * @return
+         */
+        @SuppressWarnings("unchecked")
+        V applyTo(V value) {
+            return (V) add(value, delta);
+        }
+
+        static void checkDelta(Object delta) {
+
+            if (!(delta instanceof Integer) && !(delta instanceof Long)) {
+                throw new IllegalArgumentException("Can only increment by an Integer or a Long, not " + delta);
+            }
+        }
+
+        /**
+         * Whether the delta can be added to the given value
+         */
+        static boolean canAdd(Object value, Object delta) {
+            return value == null || value.getClass() == delta.getClass();
+        }
+
+        /**
+         * The given value with the delta added to it. A null value is taken to be nothing yet, so the
+         * result is the delta.
+         */
+        static Object add(Object value, Object delta) {
+
+            if (value == null) {
+                return delta;
+            }
+            if (!canAdd(value, delta)) {
+                throw new IllegalArgumentException("Cannot add " + delta + " to " + value);
+            }
+            if (delta instanceof Integer) {
+                return (Integer) value + (Integer) delta;
+            }
+            return (Long) value + (Long) delta;
+        }
+    }
+
     /**
      * A remove is a ValueChange, except the value is set null.
      *
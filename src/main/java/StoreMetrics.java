@@ -0,0 +1,221 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What a TransactionalKVStore has been doing: how many transactions began, committed, were rolled back,
+ * retried or reaped, and how long each kind of operation took. Also how often something the store runs
+ * on the side failed: a commit listener, a checkpoint or a hot key report.
+ * <p/>
+ * Counters are LongAdders, so threads counting at the same time do not contend on one variable, and
+ * latencies go in a LatencyHistogram per operation. Nothing here takes a lock or writes anything out
+ * while it is being recorded.
+ * <p/>
+ * The metrics can be exported over JMX with register(). They are not by default, since the platform
+ * MBean server would then keep the store reachable until unregister() is called, or the store is closed.
+ */
+public class StoreMetrics implements StoreMetricsMBean {
+
+    static final String JMX_DOMAIN = "TransactionalKV";
+
+    private final LongAdder begins = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder aborts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder reaped = new LongAdder();
+    private final LongAdder listenerFailures = new LongAdder();
+    private final LongAdder checkpointFailures = new LongAdder();
+    private final LongAdder hotKeyReportFailures = new LongAdder();
+
+    final LatencyHistogram beginLatency = new LatencyHistogram();
+    final LatencyHistogram readLatency = new LatencyHistogram();
+    // Writes, removes and increments
+    final LatencyHistogram writeLatency = new LatencyHistogram();
+    final LatencyHistogram commitLatency = new LatencyHistogram();
+
+    // What the store holds right now, read when asked for
+    private final Gauges gauges;
+
+    // Everything registered by register(), to be unregistered again
+    private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+    StoreMetrics(Gauges gauges) {
+        this.gauges = gauges;
+    }
+
+    void recordBegin(long nanos) {
+        begins.increment();
+        beginLatency.record(nanos);
+    }
+
+    void recordCommit(long nanos) {
+        commits.increment();
+        commitLatency.record(nanos);
+    }
+
+    void recordAbort() {
+        aborts.increment();
+    }
+
+    void recordRetry() {
+        retries.increment();
+    }
+
+    void recordReaped() {
+        reaped.increment();
+    }
+
+    void recordListenerFailure() {
+        listenerFailures.increment();
+    }
+
+    void recordCheckpointFailure() {
+        checkpointFailures.increment();
+    }
+
+    void recordHotKeyReportFailure() {
+        hotKeyReportFailures.increment();
+    }
+
+    public long getBegins() {
+        return begins.sum();
+    }
+
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    /**
+     * Commits rolled back because of a conflict
+     */
+    public long getAborts() {
+        return aborts.sum();
+    }
+
+    /**
+     * Replayable transactions run again after being rolled back
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getReaped() {
+        return reaped.sum();
+    }
+
+    /**
+     * Commit listeners that threw. The commits they were told of happened regardless.
+     */
+    public long getListenerFailures() {
+        return listenerFailures.sum();
+    }
+
+    /**
+     * Scheduled checkpoints that failed. The log still holds everything they would have written.
+     */
+    public long getCheckpointFailures() {
+        return checkpointFailures.sum();
+    }
+
+    public long getHotKeyReportFailures() {
+        return hotKeyReportFailures.sum();
+    }
+
+    /**
+     * Transactions that have begun and not yet finished
+     */
+    public int getLiveTransactionCount() {
+        return gauges.getLiveTransactionCount();
+    }
+
+    /**
+     * Roughly how much memory the live transactions hold on to with what they have recorded
+     */
+    public long getRetainedTransactionBytes() {
+        return gauges.getRetainedTransactionBytes();
+    }
+
+    public LatencyHistogram getBeginLatency() {
+        return beginLatency;
+    }
+
+    public LatencyHistogram getReadLatency() {
+        return readLatency;
+    }
+
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    public LatencyHistogram getCommitLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * Register the counters with the platform MBean server as TransactionalKV:type=Store,name=[name],
+     * and each operation's latencies as TransactionalKV:type=Latency,store=[name],operation=[operation]
+     *
+     * @param name what to tell this store apart from others in the same process by
+     * @return the name the counters were registered under
+     */
+    public synchronized ObjectName register(String name) {
+
+        if (!registeredNames.isEmpty()) {
+            throw new IllegalStateException("Metrics are already registered as " + registeredNames.get(0));
+        }
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final String quoted = ObjectName.quote(name);
+        try {
+            register(server, new ObjectName(JMX_DOMAIN + ":type=Store,name=" + quoted), this);
+            register(server, latencyName(quoted, "begin"), beginLatency);
+            register(server, latencyName(quoted, "read"), readLatency);
+            register(server, latencyName(quoted, "write"), writeLatency);
+            register(server, latencyName(quoted, "commit"), commitLatency);
+        } catch (JMException e) {
+            unregister();
+            throw new IllegalStateException("Could not register the metrics of store " + name, e);
+        }
+        return registeredNames.get(0);
+    }
+
+    private static ObjectName latencyName(String quotedStore, String operation) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=Latency,store=" + quotedStore + ",operation=" + operation);
+    }
+
+    private void register(MBeanServer server, ObjectName objectName, Object mbean) throws JMException {
+
+        server.registerMBean(mbean, objectName);
+        registeredNames.add(objectName);
+    }
+
+    /**
+     * Take the metrics off the platform MBean server, if they were registered
+     */
+    public synchronized void unregister() {
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registeredNames) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                // Already gone
+            }
+        }
+        registeredNames.clear();
+    }
+
+    /**
+     * The gauges a store works out when they are read, rather than counting as it goes
+     */
+    interface Gauges {
+
+        int getLiveTransactionCount();
+
+        long getRetainedTransactionBytes();
+    }
+}
@@ -0,0 +1,25 @@
+/**
+ * The view of a store's StoreMetrics given over JMX
+ */
+public interface StoreMetricsMBean {
+
+    long getBegins();
+
+    long getCommits();
+
+    long getAborts();
+
+    long getRetries();
+
+    long getReaped();
+
+    int getLiveTransactionCount();
+
+    long getRetainedTransactionBytes();
+
+    long getListenerFailures();
+
+    long getCheckpointFailures();
+
+    long getHotKeyReportFailures();
+}
@@ -0,0 +1,103 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks that keys are hashed onto, so that locking a key costs no allocation and the
+ * number of locks does not grow with the number of keys. Two keys may share a stripe, which only
+ * means they are never committed at the same time.
+ * <p/>
+ * A set of keys is always locked in increasing stripe order. Since every caller takes its stripes in
+ * the same order, two callers whose key sets overlap cannot deadlock on one another.
+ */
+public class StripedLocks {
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+    private final int[] allStripes;
+
+    public StripedLocks(int minimumStripes) {
+
+        int size = 1;
+        while (size < minimumStripes) {
+            size <<= 1;
+        }
+
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+
+        this.allStripes = new int[size];
+        for (int i = 0; i < size; i++) {
+            allStripes[i] = i;
+        }
+    }
+
+    int stripeFor(Object key) {
+        return stripeFor(key, mask);
+    }
+
+    static int stripeFor(Object key, int mask) {
+
+        // Spread the high bits down, as HashMap does, so keys with similar hashes don't pile up
+        int hash = key == null ? 0 : key.hashCode();
+        hash ^= (hash >>> 16);
+        return hash & mask;
+    }
+
+    /**
+     * The distinct stripes covering the given keys, in the order they must be locked
+     *
+     * @param keys
+     * @return
+     */
+    int[] stripesFor(Collection<?> keys) {
+        return stripesFor(keys, mask);
+    }
+
+    /**
+     * The same for any set of stripes, given one less than their number, a power of two
+     */
+    static int[] stripesFor(Collection<?> keys, int mask) {
+
+        int[] indexes = new int[keys.size()];
+        int count = 0;
+        for (Object key : keys) {
+            indexes[count++] = stripeFor(key, mask);
+        }
+
+        Arrays.sort(indexes);
+
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || indexes[distinct - 1] != indexes[i]) {
+                indexes[distinct++] = indexes[i];
+            }
+        }
+        return distinct == indexes.length ? indexes : Arrays.copyOf(indexes, distinct);
+    }
+
+    /**
+     * Every stripe, in the order they must be locked, for a caller that needs no key to change. Must not
+     * be modified.
+     */
+    int[] allStripes() {
+        return allStripes;
+    }
+
+    void lockAll(int[] orderedStripes) {
+
+        for (int stripe : orderedStripes) {
+            stripes[stripe].lock();
+        }
+    }
+
+    void unlockAll(int[] orderedStripes) {
+
+        for (int i = orderedStripes.length - 1; i >= 0; i--) {
+            stripes[orderedStripes[i]].unlock();
+        }
+    }
+}
@@ -1,27 +1,199 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
+ * A running transaction, and the handle it is used through when begun with TransactionalKVStore.begin().
+ * It carries everything the store keeps per transaction, so calls on it go straight to its state.
+ * <p/>
  * Created by aleks on 10/22/15.
  */
-public class Transaction {
+public class Transaction<K, V> {
+
+    // Ids are handed out to each thread in blocks, so threads only meet on the shared counter once a block
+    private static final int ID_BLOCK_SIZE = 1024;
+    private static final AtomicInteger NEXT_ID_BLOCK = new AtomicInteger();
+    private static final int RUNNING = 0;
+    private static final int COMMITTING = 1;
+    private static final int FINISHED = 2;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Transaction> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Transaction.class, "state");
+
+    private static final ThreadLocal<int[]> ID_BLOCK = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            // next id, ids left
+            return new int[2];
+        }
+    };
+
+    // A ScannedRange, and its slot in the list
+    private static final long RETAINED_BYTES_PER_RANGE = 40;
 
     private final int id;
-    private final Date startTime;
+    // The store version this transaction's snapshot was taken at. Reads see every commit up to and
+    // including this version, and nothing after it.
+    private final long startVersion;
+    // Read-only transactions keep no reads or writes, and are never validated
+    private final boolean readOnly;
+    private final TransactionalKVStore<K, V> store;
     private Date endTime;
 
+    // What the transaction read, wrote and added to, by key. Anything it did not write it reads from the
+    // master map as of its start version. Null when read-only.
+    final OperationLog<K, V> log;
+
+    // The key ranges it scanned, as far as it got through each, for commit to validate. Null until it
+    // scans, and always null when read-only. Added to with addScannedRange().
+    List<TransactionalKVStore.ScannedRange<K>> scannedRanges;
+    // What scannedRanges holds on to, for other threads to read
+    private volatile long scannedRangeBytes;
+
+    // Under serializable snapshot isolation, whether a commit since it began overwrote something it read.
+    // Worked out when it is validated.
+    boolean outConflict;
+
+    // Whether the int-ID methods can look it up
+    boolean registeredById;
+
+    // Running, committing, or committed, rolled back or reaped
+    private volatile int state = RUNNING;
+
+    // When it began, and when it was last used, in ticks of the store's TransactionReaper
+    long startTick;
+    volatile long lastActiveTick;
+    // Its place in the reaper's wheel, if it is being reaped
+    TransactionReaper.Ticket reaperTicket;
+
     public Transaction(int transactionId) {
+        this(transactionId, 0);
+    }
+
+    public Transaction(int transactionId, long startVersion) {
+        this(null, transactionId, startVersion, false);
+    }
+
+    Transaction(TransactionalKVStore<K, V> store, int transactionId, long startVersion, boolean readOnly) {
 
-        startTime = new Date();
+        this.store = store;
         this.id = transactionId;
-        System.out.println("Starting transaction " + transactionId + " at " + startTime.getTime());
+        this.startVersion = startVersion;
+        this.readOnly = readOnly;
+        this.log = readOnly ? null : new OperationLog<K, V>();
+    }
+
+    /**
+     * A transaction id that no other call has returned, until the ids run out at Integer.MAX_VALUE and
+     * start again from 0.
+     */
+    public static int nextId() {
+
+        final int[] block = ID_BLOCK.get();
+        if (block[1] == 0) {
+            block[0] = NEXT_ID_BLOCK.getAndAdd(ID_BLOCK_SIZE) & Integer.MAX_VALUE;
+            block[1] = ID_BLOCK_SIZE;
+        }
+        block[1]--;
+        return block[0]++;
+    }
+
+    public V read(K key) {
+        return store().read(this, key);
+    }
+
+    /**
+     * See TransactionalKVStore.readView()
+     */
+    public ByteBuffer readView(K key) {
+        return store().readView(this, key);
+    }
+
+    /**
+     * See TransactionalKVStore.scan()
+     */
+    public Iterator<Map.Entry<K, V>> scan(K from, K to, int limit) {
+        return store().scan(this, from, to, limit);
+    }
+
+    public void write(K key, V value) {
+        store().write(this, key, value);
+    }
+
+    public void remove(K key) {
+        store().remove(this, key);
+    }
+
+    public void increment(K key, V delta) {
+        store().increment(this, key, delta);
+    }
+
+    public void commit() throws RetryLaterException {
+        store().commit(this);
     }
 
     public int getId() {
         return id;
     }
 
-    public Date getStartTime() {
-        return startTime;
+    public long getStartVersion() {
+        return startVersion;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    TransactionalKVStore<K, V> getStore() {
+        return store;
+    }
+
+    boolean isFinished() {
+        return state == FINISHED;
+    }
+
+    /**
+     * Claim the transaction for its commit, unless it has already finished or is being committed
+     */
+    boolean startCommit() {
+        return STATE.compareAndSet(this, RUNNING, COMMITTING);
+    }
+
+    /**
+     * Finish the transaction without committing it, unless it has already finished or is being committed
+     */
+    boolean abandon() {
+        return STATE.compareAndSet(this, RUNNING, FINISHED);
+    }
+
+    void finish() {
+
+        state = FINISHED;
+        if (reaperTicket != null) {
+            reaperTicket.transaction = null;
+        }
+    }
+
+    void addScannedRange(TransactionalKVStore.ScannedRange<K> range) {
+
+        if (scannedRanges == null) {
+            scannedRanges = new ArrayList<TransactionalKVStore.ScannedRange<K>>();
+        }
+        scannedRanges.add(range);
+        scannedRangeBytes += RETAINED_BYTES_PER_RANGE;
+    }
+
+    /**
+     * Roughly how much memory the transaction's operation log and scanned ranges hold on to. Can be
+     * called from any thread, since it only reads counters the transaction's own thread keeps up to date.
+     */
+    long retainedBytes() {
+        return (log == null ? 0 : log.retainedBytes()) + scannedRangeBytes;
     }
 
     public Date getEndTime() {
@@ -32,6 +204,11 @@ public class Transaction {
         this.endTime = endTime;
     }
 
+    private TransactionalKVStore<K, V> store() {
 
-    // TODO: Add public static method to get unique transaction id
+        if (store == null) {
+            throw new IllegalStateException("Transaction " + id + " was not begun on a store");
+        }
+        return store;
+    }
 }
@@ -0,0 +1,19 @@
+/**
+ * The transaction was rolled back by the store, rather than by its client, and anything it wrote is
+ * gone. It can be run again from the start.
+ */
+public class TransactionAbortedException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    final int transactionId;
+
+    public TransactionAbortedException(int transactionId, String reason) {
+        super("Transaction " + transactionId + " was rolled back: " + reason);
+        this.transactionId = transactionId;
+    }
+
+    public int getTransactionId() {
+        return transactionId;
+    }
+}
@@ -0,0 +1,128 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the life of a transaction, so a recording shows commits and
+ * rollbacks next to the garbage collections and lock contention that happened at the same time.
+ * <p/>
+ * Events are created and begun on every call, and only filled in when shouldCommit() says the event
+ * is enabled and over its threshold. While recording is off, the JIT compiles that down to nothing:
+ * the event never escapes, so it is not even allocated. Keys are recorded as their toString(), which
+ * is only called for events that are committed.
+ */
+final class TransactionEvents {
+
+    static final String CATEGORY = "TransactionalKV";
+
+    private TransactionEvents() {
+    }
+
+    @Name("transactionalkv.Begin")
+    @Label("Transaction Begin")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Begin extends Event {
+
+        @Label("Transaction Id")
+        int transactionId;
+
+        @Label("Start Version")
+        long startVersion;
+
+        @Label("Read Only")
+        boolean readOnly;
+    }
+
+    @Name("transactionalkv.Read")
+    @Label("Transaction Read")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Read extends Event {
+
+        @Label("Transaction Id")
+        int transactionId;
+
+        @Label("Key")
+        String key;
+    }
+
+    @Name("transactionalkv.Write")
+    @Label("Transaction Write")
+    @Description("A write, remove or increment recorded by a transaction, to be applied when it commits")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Write extends Event {
+
+        @Label("Transaction Id")
+        int transactionId;
+
+        @Label("Key")
+        String key;
+
+        @Label("Operation")
+        String operation;
+    }
+
+    @Name("transactionalkv.Commit")
+    @Label("Transaction Commit")
+    @Category(CATEGORY)
+    static final class Commit extends Event {
+
+        @Label("Transaction Id")
+        int transactionId;
+
+        @Label("Key Count")
+        int keyCount;
+
+        @Label("Commit Version")
+        @Description("Not set for a read-only transaction, which does not write anything")
+        long commitVersion;
+    }
+
+    @Name("transactionalkv.Rollback")
+    @Label("Transaction Rollback")
+    @Description("A transaction that ended without committing")
+    @Category(CATEGORY)
+    static final class Rollback extends Event {
+
+        @Label("Transaction Id")
+        int transactionId;
+
+        @Label("Key Count")
+        int keyCount;
+
+        @Label("Reason")
+        String reason;
+
+        @Label("Conflicting Key")
+        String conflictingKey;
+
+        @Label("Conflicting Version")
+        long conflictingVersion;
+    }
+
+    @Name("transactionalkv.ReplayAttempt")
+    @Label("Replay Attempt")
+    @Description("One run of a replayable transaction")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ReplayAttempt extends Event {
+
+        // The first transaction the attempt began, or -1 if it began none
+        @Label("Transaction Id")
+        int transactionId;
+
+        @Label("Attempt")
+        int attempt;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Label("Conflicting Key")
+        String conflictingKey;
+    }
+}
@@ -0,0 +1,142 @@
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Aborts a store's transactions that have been idle, or running, for longer than the store allows, so
+ * that a client that begins a transaction and goes away does not keep its snapshot and operation log
+ * alive for good.
+ * <p/>
+ * Transactions sit in a hashed timer wheel: one bucket per tick, going round, with each transaction in
+ * the bucket of the tick it is due to expire on. Each tick only looks at one bucket. A transaction that
+ * has been used since it was put in the bucket, and so is not due yet, is moved on to the bucket of its
+ * new deadline rather than being touched on every operation.
+ * <p/>
+ * The wheel holds a Ticket per transaction rather than the transaction, and the ticket lets go of it
+ * when it finishes, so finished transactions are not kept until their bucket comes round.
+ */
+class TransactionReaper implements Runnable {
+
+    private static final int WHEEL_SIZE = 512;
+
+    private final WeakReference<TransactionalKVStore<?, ?>> storeReference;
+    private final Queue<Ticket>[] wheel;
+
+    final long tickMs;
+    // Zero when there is no limit
+    private final long idleTicks;
+    private final long lifetimeTicks;
+
+    // Only advanced by the reaper's own thread
+    private volatile long currentTick;
+    volatile ScheduledFuture<?> scheduledRun;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TransactionReaper(TransactionalKVStore<?, ?> store, long idleTimeoutMs, long maxLifetimeMs) {
+
+        this.storeReference = new WeakReference<TransactionalKVStore<?, ?>>(store);
+        this.wheel = new Queue[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<Ticket>();
+        }
+
+        // A few ticks per timeout, so transactions are aborted not long after their deadline
+        long shortest = idleTimeoutMs == 0 ? maxLifetimeMs :
+                maxLifetimeMs == 0 ? idleTimeoutMs : Math.min(idleTimeoutMs, maxLifetimeMs);
+        this.tickMs = Math.max(10, Math.min(1000, shortest / 4));
+        this.idleTicks = ticksFor(idleTimeoutMs);
+        this.lifetimeTicks = ticksFor(maxLifetimeMs);
+    }
+
+    private long ticksFor(long timeoutMs) {
+        return timeoutMs == 0 ? 0 : Math.max(1, (timeoutMs + tickMs - 1) / tickMs);
+    }
+
+    long currentTick() {
+        return currentTick;
+    }
+
+    /**
+     * Start the clock on a transaction that has just begun
+     */
+    void track(Transaction<?, ?> transaction) {
+
+        transaction.startTick = currentTick;
+        transaction.lastActiveTick = transaction.startTick;
+        final Ticket ticket = new Ticket(transaction);
+        transaction.reaperTicket = ticket;
+        schedule(ticket, deadline(transaction));
+    }
+
+    private long deadline(Transaction<?, ?> transaction) {
+
+        long deadline = Long.MAX_VALUE;
+        if (idleTicks != 0) {
+            deadline = transaction.lastActiveTick + idleTicks;
+        }
+        if (lifetimeTicks != 0) {
+            deadline = Math.min(deadline, transaction.startTick + lifetimeTicks);
+        }
+        return deadline;
+    }
+
+    private void schedule(Ticket ticket, long deadline) {
+
+        // Never the bucket being emptied right now, which would only be looked at again a round later
+        final long tick = Math.max(deadline, currentTick + 2);
+        wheel[(int) (tick & (WHEEL_SIZE - 1))].add(ticket);
+    }
+
+    public void run() {
+
+        TransactionalKVStore<?, ?> store = storeReference.get();
+        if (store == null) {
+            if (scheduledRun != null) {
+                scheduledRun.cancel(false);
+            }
+            return;
+        }
+
+        final long tick = currentTick + 1;
+        currentTick = tick;
+
+        final Queue<Ticket> bucket = wheel[(int) (tick & (WHEEL_SIZE - 1))];
+        final List<Ticket> due = new ArrayList<Ticket>();
+        Ticket ticket;
+        while ((ticket = bucket.poll()) != null) {
+            due.add(ticket);
+        }
+
+        for (Ticket candidate : due) {
+
+            final Transaction<?, ?> transaction = candidate.transaction;
+            if (transaction == null || transaction.isFinished()) {
+                continue;
+            }
+
+            final long deadline = deadline(transaction);
+            if (deadline > tick) {
+                // Used since, or due on a later round of the wheel
+                schedule(candidate, deadline);
+            } else {
+                store.reap(transaction);
+            }
+        }
+    }
+
+    /**
+     * A transaction's place in the wheel
+     */
+    static final class Ticket {
+
+        // Cleared once the transaction finishes
+        volatile Transaction<?, ?> transaction;
+
+        Ticket(Transaction<?, ?> transaction) {
+            this.transaction = transaction;
+        }
+    }
+}
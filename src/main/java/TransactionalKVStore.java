@@ -1,4 +1,12 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * The purpose of this class is to store key-values and accept
@@ -18,39 +26,274 @@ import java.util.*;
  * <p/>
  * The canonical example is a bank account where there are two concurrent
  * appends. The later transaction will need to be retried because the data
- * it used (initial amount) has become stale.
+ * it used (initial amount) has become stale. A transaction that only needs
+ * to add to a counter can use increment() instead, which is applied to the
+ * value at commit time and so never goes stale.
  * <p/>
  * A secondary feature of this KV store is the ability to re-run sets of
  * anonymous instructions, of arbitrarily complex logic. This way a user
- * will just need to send a request once and then poll (no need to resubmit).
+ * will just need to send a request once and then poll (no need to resubmit):
+ * submitReplayableTransactionAsync() hands back a ReplayHandle to poll or
+ * attach callbacks to. A rolled back replayable transaction is parked on the key it conflicted
+ * on and re-run once the commit that wrote it is visible, rather than after
+ * a fixed sleep. See ReplayScheduler.
+ * <p/>
+ * begin() returns the transaction itself, with an id allocated by the
+ * store, to read, write and commit through. It carries its own state, so
+ * those calls need no lookups. The methods taking a transaction id of the
+ * caller's choosing look the transaction up and then do the same.
+ * <p/>
+ * Snapshots are multi-versioned rather than copied. Every commit is stamped
+ * with the next store version and adds a new version to each key it writes,
+ * while a transaction simply remembers the version it started at. Reads
+ * resolve the newest version at or before that point, so begin() costs the
+ * same regardless of how many keys are stored. Versions older than what the
+ * oldest running transaction can see are unlinked in the background.
+ * <p/>
+ * Transactions that only read can be started with beginReadOnly(). They
+ * read straight from the version chains, record nothing per read, are
+ * never validated, and their commit only marks them finished.
+ * <p/>
+ * Commits do not share a global lock. A committing transaction locks the
+ * stripes covering the keys it touched, in stripe order, and validates and
+ * writes back under those alone, so transactions over disjoint keys commit
+ * in parallel. Commit versions may be handed out in one order and finish in
+ * another, so a version only becomes visible to new snapshots once every
+ * version before it has finished writing back.
+ * <p/>
+ * Given a data directory, the store is durable: each commit's changes are
+ * appended to a write-ahead log, and commit() only returns once the record
+ * is on disk. Concurrent commits share a single force of the log. Opening a
+ * store on the same directory replays the log to rebuild the master map.
+ * If the log cannot be written, the commit fails and is never made
+ * visible, and the store takes no more commits.
+ * <p/>
+ * A durable store also checkpoints the master map periodically. A checkpoint
+ * is written from a snapshot, like a transaction reads, so commits are not
+ * held up by it. Once it is on disk, the log it covers is deleted, and a
+ * restart maps the latest checkpoint and replays only the log after it.
+ * <p/>
+ * Given a ValueStorage, committed byte[] values are copied off the heap into
+ * its slabs, and only a handle to each stays in the master map. readView()
+ * returns a read-only view of a value where it is stored, without copying
+ * it. A value's space is freed for reuse once the version reclaimer finds no
+ * snapshot can see it any more.
+ * <p/>
+ * Keys are also kept in order, in a skip list next to the master map, so
+ * scan() can go through a range of them from the transaction's snapshot.
+ * The ranges a transaction scanned are validated at commit like its reads:
+ * a key inserted, changed or removed in a scanned range since the
+ * transaction began rolls it back. Scanning needs keys that are Comparable
+ * with one another.
+ * <p/>
+ * With setTransactionTimeouts(), a TransactionReaper aborts transactions
+ * that were begun and then left idle, or running too long, so that a client
+ * that goes away does not keep its snapshot and operation log in memory.
+ * <p/>
+ * setIsolationLevel() chooses what rolls a commit back. By default it is
+ * any key the transaction read, wrote or scanned being written since it
+ * began. Snapshot isolation only checks the keys it wrote, and serializable
+ * snapshot isolation tracks read-write antidependencies between concurrent
+ * transactions and only rolls back the ones that could close a cycle. See
+ * IsolationLevel.
+ * <p/>
+ * getMetrics() counts what the store does and how long it takes, and can
+ * export that over JMX. Nothing is written to the console on the way: a
+ * commit listener, checkpoint or hot key report that fails is counted
+ * there, and logged through java.util.logging.
+ * getConflictHeatmap() tracks which keys commits are rolled back on the most.
+ * Each step of a transaction is also a Java Flight Recorder event; see
+ * TransactionEvents.
  */
 public class TransactionalKVStore<K, V> {
 
     final public static int DEFAULT_MAX_HANDLED_ATTEMPTS = 100;
-    private final int SLEEP_CONST_MS = 1;
+    final static long VERSION_RECLAIM_INTERVAL_MS = 100;
+    final static int COMMIT_LOCK_STRIPES = 1024;
+    final static long CHECKPOINT_INTERVAL_MS = 60 * 1000;
+
+    private static final Logger logger = Logger.getLogger(TransactionalKVStore.class.getName());
+
+    // Shared by all stores for housekeeping that should stay off the transaction path
+    private static final ScheduledExecutorService BACKGROUND_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "transactional-kv-background");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     //The master copy of the data. Considered the source of truth. Only updated in the commit function.
-    HashMap<K, MetadataValue<V>> masterMap = new HashMap<K, MetadataValue<V>>();
+    //Read directly by running transactions, which resolve the version matching their snapshot.
+    ConcurrentHashMap<K, MetadataValue<V>> masterMap = new ConcurrentHashMap<K, MetadataValue<V>>();
+
+    // The same entries as the master map, in key order, for scans. Added to whenever the master map is.
+    // Given up on, and emptied, once a key turns out not to be Comparable with the others.
+    final ConcurrentSkipListMap<K, MetadataValue<V>> orderedIndex = new ConcurrentSkipListMap<K, MetadataValue<V>>();
+    private volatile boolean unorderedKeys;
+
+    // The logical clock of the store. Every commit takes the next value, so "written after the
+    // transaction started" is an exact comparison of two longs.
+    private final AtomicLong commitSequence = new AtomicLong(MetadataValue.NO_VERSION);
+
+    // The newest version whose commit, and every commit before it, has finished writing back. A
+    // transaction's snapshot is whatever this was when it began.
+    private volatile long committedVersion = MetadataValue.NO_VERSION;
+
+    // Committers waiting for the commits before theirs to be published wait on this
+    private final Object publishMonitor = new Object();
+
+    // Set once a commit has been written back but could not be logged. That commit, and so every one
+    // after it, can never be published, and the store takes no more commits.
+    private volatile IOException logFailure;
+    // The lowest version that was written back and could not be logged
+    private volatile long failedVersion = Long.MAX_VALUE;
+    private static final int PUBLISH_SPINS = 64;
+
+    // Commits lock the stripes of the keys they touch, rather than the whole store
+    private final StripedLocks commitLocks = new StripedLocks(COMMIT_LOCK_STRIPES);
+
+    // Every running transaction, read-only or not, whose snapshot must not be reclaimed
+    private final Set<Transaction<K, V>> activeSnapshots =
+            Collections.newSetFromMap(new ConcurrentHashMap<Transaction<K, V>, Boolean>());
+
+    // Versions older than what is visible at this one may be being reclaimed. The reclaimer raises it
+    // before looking through activeSnapshots, and a snapshot registered too late to be seen, and older
+    // than this, is taken again. Since both sides write before they read, at least one of them notices
+    // the other, without taking a lock.
+    private volatile long reclaimHorizon = MetadataValue.NO_VERSION;
+
+    // Where commits are logged and checkpointed. Both null when the store only lives in memory.
+    private final WriteAheadLog writeAheadLog;
+    private final File dataDirectory;
+
+    // Where committed byte[] values are kept, off the heap. Null to keep them in the master map.
+    private final ValueStorage valueStorage;
+
+    // Only one checkpoint is written at a time. The one being written holds on to the versions visible
+    // at its snapshot the same way a running transaction does.
+    private final Object checkpointMonitor = new Object();
+    private volatile long checkpointSnapshot = Long.MAX_VALUE;
+    private long lastCheckpointVersion = MetadataValue.NO_VERSION;
+    private ScheduledFuture<?> scheduledCheckpoints;
+
+    // Keys holding more than one version, which the background reclaimer needs to look at
+    private final Queue<K> reclaimQueue = new ConcurrentLinkedQueue<K>();
+
+    // Told about every commit once it is visible
+    private final List<CommitListener> commitListeners = new CopyOnWriteArrayList<CommitListener>();
+
+    // What rolls a commit back
+    private volatile IsolationLevel isolationLevel = IsolationLevel.SERIALIZABLE;
+
+    // Under serializable snapshot isolation, the ranges scanned by committed transactions that running
+    // ones may not have seen, so a write into one is known to come after the scan. Trimmed by the reclaimer.
+    private final Queue<ScannedRange<K>> committedScans = new ConcurrentLinkedQueue<ScannedRange<K>>();
+
+    // Runs the transactions given to submitReplayableTransaction. Created on first use.
+    private ReplayScheduler replayScheduler;
+
+    // Aborts abandoned transactions. Null unless transaction timeouts are set.
+    private volatile TransactionReaper transactionReaper;
+
+    private final StoreMetrics metrics = new StoreMetrics(new StoreMetrics.Gauges() {
+        public int getLiveTransactionCount() {
+            return TransactionalKVStore.this.getLiveTransactionCount();
+        }
+
+        public long getRetainedTransactionBytes() {
+            return TransactionalKVStore.this.getRetainedTransactionBytes();
+        }
+    });
+    private final ConflictHeatmap conflictHeatmap = new ConflictHeatmap();
 
-    // Helper data structure for keeping track of transactions, based on their id.
-    // Updated at the begin and the commit methods
+    // Helper data structure for keeping track of transactions begun with an id of the caller's choosing.
+    // Updated at the begin and the commit methods. The units of work and local state of a transaction are
+    // kept on the Transaction itself.
 
-    Map<Integer, Transaction> transactionIdToObjectMapping = new HashMap<Integer, Transaction>();
-    // Data structure of the ongoing transactions and the units of work they are performing
-    // Updated in the read/write section
+    Map<Integer, Transaction<K, V>> transactionIdToObjectMapping = new ConcurrentHashMap<Integer, Transaction<K, V>>();
 
-    Map<Transaction, List<StaticTransactionalKVStore.TransactionalUnit>>
-            transactionDeltas =
-            new HashMap<Transaction, List<StaticTransactionalKVStore.TransactionalUnit>>();
+    public TransactionalKVStore() {
+        this((ValueStorage) null);
+    }
 
     /**
-     * This data structure keeps a mapping of each transaction and its understanding of the world
-     * It will contain a deep copy of all the values, so that if the master is changed, it will remain the same
-     * <p/>
-     * Updated in the read/write section.
+     * A store that lives in memory, and keeps committed byte[] values in the given storage
+     *
+     * @param valueStorage
+     */
+    public TransactionalKVStore(ValueStorage valueStorage) {
+
+        this.writeAheadLog = null;
+        this.dataDirectory = null;
+        this.valueStorage = valueStorage;
+        scheduleVersionReclaimer();
+    }
+
+    /**
+     * A store that logs every commit to a write-ahead log in the given directory. The latest checkpoint
+     * is loaded and the log written after it is replayed first, so the store starts out as it was after
+     * its last acknowledged commit.
+     *
+     * @param dataDirectory
+     * @throws IOException
+     */
+    public TransactionalKVStore(File dataDirectory) throws IOException {
+        this(dataDirectory, null);
+    }
+
+    /**
+     * A durable store, as above, that keeps committed byte[] values in the given storage. Values loaded
+     * from a checkpoint stay in the mapped checkpoint file instead until they are overwritten.
+     *
+     * @param dataDirectory
+     * @param valueStorage
+     * @throws IOException
      */
-    Map<Transaction, Map<K, MetadataValue<V>>> transactionStates = new
-            HashMap<Transaction, Map<K, MetadataValue<V>>>();
+    public TransactionalKVStore(File dataDirectory, ValueStorage valueStorage) throws IOException {
+
+        if (!dataDirectory.isDirectory() && !dataDirectory.mkdirs()) {
+            throw new IOException("Could not create data directory " + dataDirectory);
+        }
+        this.dataDirectory = dataDirectory;
+        this.valueStorage = valueStorage;
+
+        File checkpoint = Checkpoint.latest(dataDirectory);
+        if (checkpoint != null) {
+            lastCheckpointVersion = Checkpoint.load(checkpoint, masterMap);
+            commitSequence.set(lastCheckpointVersion);
+            for (Map.Entry<K, MetadataValue<V>> entry : masterMap.entrySet()) {
+                index(entry.getKey(), entry.getValue());
+            }
+        }
+
+        this.writeAheadLog = WriteAheadLog.open(dataDirectory, lastCheckpointVersion,
+                new WriteAheadLog.ReplayHandler() {
+                    public void apply(long commitVersion,
+                                      List<StaticTransactionalKVStore.ValueChange<Object, Object>> changes) {
+                        replayCommit(commitVersion, changes);
+                    }
+                });
+        // In case we stopped after writing a checkpoint, but before getting rid of what it replaced
+        writeAheadLog.deleteSegmentsThrough(lastCheckpointVersion);
+        Checkpoint.deleteOlderThan(dataDirectory, lastCheckpointVersion);
+
+        committedVersion = commitSequence.get();
+        scheduleVersionReclaimer();
+
+        Checkpointer checkpointer = new Checkpointer(this);
+        scheduledCheckpoints = BACKGROUND_EXECUTOR.scheduleWithFixedDelay(checkpointer,
+                CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        checkpointer.scheduledRun = scheduledCheckpoints;
+    }
+
+    private void scheduleVersionReclaimer() {
+
+        VersionReclaimer reclaimer = new VersionReclaimer(this);
+        reclaimer.scheduledRun = BACKGROUND_EXECUTOR.scheduleWithFixedDelay(reclaimer,
+                VERSION_RECLAIM_INTERVAL_MS, VERSION_RECLAIM_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
 
     /**
      * This method will evaluate whether a transaction, t, in the given context of the transactionalUnits,
@@ -60,55 +303,59 @@ public class TransactionalKVStore<K, V> {
      * Rule 1: If you are about to commit a read, there should not be any write commits on that key after
      * your transaction was started
      * <p/>
-     * Info needed: 1. The commit timestamp of the write to that value.
-     * 2. The transactions start time of the transaction you're trying to commit
+     * Info needed: 1. The commit version of the write to that value.
+     * 2. The start version of the transaction you're trying to commit
      *
      * @param t
-     * @param transactionalUnits
      * @param masterMap
      * @return
      */
-    static boolean needToRollBack(final Transaction t, final List<StaticTransactionalKVStore.TransactionalUnit> transactionalUnits, final HashMap masterMap) {
+    static boolean needToRollBack(final Transaction<?, ?> t, final Map<?, ? extends MetadataValue<?>> masterMap) {
+        return findConflict(t, masterMap) != null;
+    }
 
-        if (transactionalUnits.size() == 0) {
-            System.out.println("WARNING: transaction " + t.getId() + " had no associated transactionalUnits!!");
-        }
+    /**
+     * The same check as needToRollBack, but returns the first key written since the transaction started,
+     * or null if there is none
+     */
+    static Object findConflict(final Transaction<?, ?> t, final Map<?, ? extends MetadataValue<?>> masterMap) {
 
-        for (StaticTransactionalKVStore.TransactionalUnit unit : transactionalUnits) {
+        final OperationLog<?, ?> log = t.log;
+        final long T_START_VERSION = t.getStartVersion();
+        for (int slot = 0; slot < log.capacity(); slot++) {
 
-            final Date T_START_TIME = t.getStartTime();
-            final Object KEY = unit.getKey();
+            final Object KEY = log.keyAt(slot);
+            if (KEY == null || (!log.wasRead(slot) && !log.isWritten(slot))) {
+                // An increment did not read anything, so there is nothing for a later write to invalidate
+                continue;
+            }
 
-            MetadataValue returnedValue = (MetadataValue) masterMap.get(KEY);
+            MetadataValue<?> returnedValue = masterMap.get(KEY);
             if (returnedValue != null) {
 
                 // common case. there was already an entry there
-                final Date LAST_MASTER_WRITTEN = returnedValue.getLastWritten();
-                if (LAST_MASTER_WRITTEN != null) {
+                final long LAST_MASTER_WRITTEN = returnedValue.getLastWritten();
+                if (LAST_MASTER_WRITTEN != MetadataValue.NO_VERSION) {
 
                     // There has been a write
 
-                    //if (LAST_MASTER_WRITTEN.after(T_START_TIME) || LAST_MASTER_WRITTEN.equals(T_START_TIME)) {
-                    if (LAST_MASTER_WRITTEN.getTime() >= T_START_TIME.getTime()) {
+                    if (LAST_MASTER_WRITTEN > T_START_VERSION) {
 
                         // If a write was committed after the transaction started, the state of the world (and hence the read)
                         // is invalidated
-
-                        System.out.println("Transaction " + t.getId() + " key " + KEY + ", for which there was a read transaction at "
-                                + unit.getTimeStamp().getTime() + ", was had a write commit at " +
-                                LAST_MASTER_WRITTEN.getTime() + " which is after the transaction started");
-                        return true;
+                        return KEY;
                     }
                 }
             }
         }
 
-        return false;
+        return null;
     }
 
     /**
-     * The logic here is that in this single-threaded server, if there were transactions that
-     * dirtied values used, then a simple server-side replay should fix everything.
+     * The logic here is that if there were transactions that dirtied values used, then a simple
+     * server-side replay should fix everything. The transaction is run by the store's ReplayScheduler,
+     * and this waits until it has committed.
      *
      * @param w
      * @throws InterruptedException
@@ -117,238 +364,1515 @@ public class TransactionalKVStore<K, V> {
             arguments, TransactionalKVStore store, Integer maxAttempts) throws
             InterruptedException {
 
+        try {
+            submitReplayableTransactionAsync(w, arguments, store, maxAttempts).get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException("Replayable transaction failed", cause);
+        }
+    }
+
+    /**
+     * Hand the transaction to the store's ReplayScheduler and return straight away. The handle can be
+     * polled for the transaction's status, or given callbacks for when it commits or fails.
+     *
+     * @param w
+     * @param arguments
+     * @param store
+     * @param maxAttempts
+     * @return
+     */
+    public static ReplayHandle submitReplayableTransactionAsync(ReplayableTransaction w, Object[]
+            arguments, TransactionalKVStore<?, ?> store, Integer maxAttempts) {
+
         if (maxAttempts == null) {
             maxAttempts = DEFAULT_MAX_HANDLED_ATTEMPTS;
         }
+        return store.getReplayScheduler().submit(w, arguments, maxAttempts);
+    }
 
-        int attempts = 0;
-        while (true) {
-
-            try {
+    /**
+     * The scheduler that submitReplayableTransaction runs transactions on
+     */
+    public synchronized ReplayScheduler getReplayScheduler() {
 
-                //Expectation is that commit should occur here
-                w.transaction(arguments, store);
-                // if no exception thrown
-                break;
-            } catch (RetryLaterException rte) {
-
-                System.out.println(rte.getLocalizedMessage());
-                Thread.sleep(rte.getWaitTimeMs());
-                attempts++;
-                if (attempts > maxAttempts) {
-                    throw new RuntimeException("Could not commit transaction, even after " +
-                            attempts + " attempts");
-                }
-            }
+        if (replayScheduler == null) {
+            replayScheduler = new ReplayScheduler(this);
         }
+        return replayScheduler;
     }
 
-    synchronized public void begin(final int transactionId) throws InterruptedException {
+    /**
+     * Be told about every commit, with the keys it touched, once new snapshots can see it. Listeners are
+     * called on the committing thread, after the commit has succeeded, so they should be quick.
+     *
+     * @param listener
+     */
+    public void addCommitListener(CommitListener listener) {
+        commitListeners.add(listener);
+    }
 
-        if (transactionId < 0) {
-            throw new RuntimeException("Transaction id " + transactionId + " cannot be started because it is invalid");
+    public void removeCommitListener(CommitListener listener) {
+        commitListeners.remove(listener);
+    }
+
+    /**
+     * Abort transactions that go unused for longer than idleTimeout, or that are still running maxLifetime
+     * after they began, releasing their snapshot and everything they recorded. Either may be 0 for no
+     * limit, and both 0 turns reaping off. Only transactions begun afterwards are covered.
+     *
+     * @param idleTimeout
+     * @param maxLifetime
+     * @param unit
+     */
+    public synchronized void setTransactionTimeouts(long idleTimeout, long maxLifetime, TimeUnit unit) {
+
+        if (idleTimeout < 0 || maxLifetime < 0) {
+            throw new IllegalArgumentException("Timeouts cannot be negative");
         }
 
-        if (transactionIdToObjectMapping.containsKey(transactionId)) {
-            throw new RuntimeException("Transaction id " + transactionId + " cannot be started because it already exists");
+        if (transactionReaper != null) {
+            transactionReaper.scheduledRun.cancel(false);
+            transactionReaper = null;
+        }
+        if (idleTimeout == 0 && maxLifetime == 0) {
+            return;
         }
 
-        Transaction newTransaction = new Transaction(transactionId);
+        TransactionReaper reaper = new TransactionReaper(this, toMillis(idleTimeout, unit), toMillis(maxLifetime, unit));
+        reaper.scheduledRun = BACKGROUND_EXECUTOR.scheduleAtFixedRate(reaper, reaper.tickMs, reaper.tickMs,
+                TimeUnit.MILLISECONDS);
+        transactionReaper = reaper;
+    }
 
-        //Make a deep copy of all objects inside this array
-        transactionIdToObjectMapping.put(transactionId, newTransaction);
-        transactionStates.put(newTransaction, (HashMap<K, MetadataValue<V>>) masterMap.clone());
-        transactionDeltas.put(newTransaction, new ArrayList<StaticTransactionalKVStore.TransactionalUnit>());
+    private static long toMillis(long timeout, TimeUnit unit) {
+        // Rounded up, so a short timeout is not taken as none
+        return timeout == 0 ? 0 : Math.max(1, unit.toMillis(timeout));
     }
 
     /**
-     * Read the current value for a given key. If it is not present, return null
-     * <p/>
-     * Side effect is that it updates the timestamp for last read
-     *
-     * @param key
-     * @param transactionId
-     * @return
+     * Abort a transaction the TransactionReaper found idle, or running too long, unless it has finished
+     * or started to commit since
      */
-    public V read(K key, final int transactionId) throws InterruptedException {
-
-        Transaction transaction = validateTransactionId(transactionId);
-
-        final StaticTransactionalKVStore.IsolatedRead<K, V> read = new StaticTransactionalKVStore.IsolatedRead(key);
+    @SuppressWarnings("unchecked")
+    void reap(final Transaction<?, ?> abandoned) {
 
-        List<StaticTransactionalKVStore.TransactionalUnit> returnedTransactionList = transactionDeltas.get(transaction);
-        if (returnedTransactionList == null) {
-            throw new IllegalStateException("Expected transaction with id " + transaction.getId() + " to not be null");
+        final Transaction<K, V> transaction = (Transaction<K, V>) abandoned;
+        if (!transaction.abandon()) {
+            return;
         }
+        end(transaction);
+        metrics.recordReaped();
+        emitRollback(new TransactionEvents.Rollback(), transaction, "Reaped", null, MetadataValue.NO_VERSION);
+    }
+
+    /**
+     * Choose what rolls a commit back. Applies to every commit from now on, so it is meant to be set before
+     * transactions begin.
+     *
+     * @param isolationLevel
+     */
+    public void setIsolationLevel(IsolationLevel isolationLevel) {
 
-        returnedTransactionList.add(read);
-        Map<K, MetadataValue<V>> localTransactionState = transactionStates.get(transaction);
-        if (localTransactionState == null) {
-            throw new IllegalStateException("Local transaction state for transaction " +
-                    transaction.getId() + " cannot be null");
+        if (isolationLevel == null) {
+            throw new IllegalArgumentException("An isolation level is needed");
         }
+        this.isolationLevel = isolationLevel;
+    }
 
-        MetadataValue<V> metadataValue = localTransactionState.get(key);
+    public IsolationLevel getIsolationLevel() {
+        return isolationLevel;
+    }
 
-        if (metadataValue == null) {
+    /**
+     * Transactions that have begun and not yet finished
+     */
+    public int getLiveTransactionCount() {
+        return activeSnapshots.size();
+    }
 
-            //if there have been no requests on this key
-            MetadataValue<V> v = new MetadataValue<V>((V) null);
-            v.setLastWritten(null);
-            v.setLastRead(new Date());
+    /**
+     * Roughly how much memory the live transactions hold on to with what they have recorded, not
+     * counting the versions their snapshots keep from being reclaimed
+     */
+    public long getRetainedTransactionBytes() {
 
-            // save the fact that someone attempted to read this value before it was written
-            localTransactionState.put(key, v);
-            return null;
+        long bytes = 0;
+        for (Transaction<K, V> transaction : activeSnapshots) {
+            bytes += transaction.retainedBytes();
         }
+        return bytes;
+    }
 
-        return metadataValue.getValue();
+    public long getReapedTransactionCount() {
+        return metrics.getReaped();
     }
 
-    public void write(K key, V value, final int transactionId) throws InterruptedException {
+    /**
+     * Counters and latencies of the store's operations. See StoreMetrics.register() to export them over
+     * JMX.
+     */
+    public StoreMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The keys commits have been rolled back on the most
+     */
+    public ConflictHeatmap getConflictHeatmap() {
+        return conflictHeatmap;
+    }
 
-        Transaction transaction = validateTransactionId(transactionId);
-        final StaticTransactionalKVStore.ValueChange<K, V> write = new StaticTransactionalKVStore.ValueChange<K, V>(key, value);
+    /**
+     * Hand the reporter the topN most conflicted keys every period, and start counting again after each,
+     * so every report covers one period. Runs until the returned future is cancelled.
+     *
+     * @param period
+     * @param unit
+     * @param topN
+     * @param reporter
+     * @return
+     */
+    public ScheduledFuture<?> reportHotKeys(long period, TimeUnit unit, final int topN,
+                                            final ConflictHeatmap.Reporter reporter) {
+
+        // Only holds the heatmap and the metrics, so a forgotten report does not keep the whole store around
+        final ConflictHeatmap heatmap = conflictHeatmap;
+        final StoreMetrics storeMetrics = metrics;
+        return BACKGROUND_EXECUTOR.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+
+                final long total;
+                final List<ConflictHeatmap.HotKey> hotKeys;
+                synchronized (heatmap) {
+                    total = heatmap.getTotalConflicts();
+                    hotKeys = heatmap.snapshot(topN, true);
+                }
+                try {
+                    reporter.report(hotKeys, total);
+                } catch (RuntimeException e) {
+                    // A failed report should not stop the next ones
+                    storeMetrics.recordHotKeyReportFailure();
+                    logger.log(Level.WARNING, "Hot key report failed", e);
+                }
+            }
+        }, period, period, unit);
+    }
 
-        transactionDeltas.get(transaction).add(write);
-        transactionStates.get(transaction).put(key, new MetadataValue<V>(value));
+    /**
+     * Start a transaction with an id allocated by the store, and return it. Reads, writes and the commit
+     * are then called on the transaction itself. It is not registered under its id, so the methods taking
+     * a transaction id do not know about it.
+     *
+     * @return
+     */
+    public Transaction<K, V> begin() {
+        return startSnapshot(Transaction.nextId(), false);
     }
 
     /**
-     * Logically removes a given KV pair from the store, but in practice, keeps the metadata around
-     * the transaction.
-     * <p/>
-     * TODO: Figure out the semantics of what happens if someone is trying to update this value?
-     * Do we have a distinction between create (new) vs. update. It's currently all muddled as
-     * an upsert.
-     * <p/>
-     * A remove should be a degenerate case of a ValueChange, where the new value is null.
+     * Start a read-only transaction with an id allocated by the store. See beginReadOnly(int).
      *
-     * @param key
+     * @return
      */
-    public void remove(K key, final int transactionId) {
+    public Transaction<K, V> beginReadOnly() {
+        return startSnapshot(Transaction.nextId(), true);
+    }
 
-        Transaction transaction = validateTransactionId(transactionId);
-        final StaticTransactionalKVStore.ValueChange<K, V> remove = new StaticTransactionalKVStore
-                .Remove<K, V>(key);
+    public void begin(final int transactionId) throws InterruptedException {
 
-        transactionDeltas.get(transaction).add(remove);
-        MetadataValue valueToBeRemoved = transactionStates.get(transaction).get(key);
-        if (valueToBeRemoved == null) {
-            //it doesn't already exist. Is it worth adding a value saying that we tried to remove
-            // it?
-            transactionStates.get(transaction).put(key, new MetadataValue<V>(null));
-        } else {
-            transactionStates.get(transaction).put(key, valueToBeRemoved);
+        if (transactionId < 0) {
+            throw new RuntimeException("Transaction id " + transactionId + " cannot be started because it is invalid");
+        }
+
+        if (transactionIdToObjectMapping.containsKey(transactionId)) {
+            throw new RuntimeException("Transaction id " + transactionId + " cannot be started because it already exists");
         }
 
+        // The snapshot is just the current version. Nothing is copied.
+        register(startSnapshot(transactionId, false));
     }
 
-    synchronized public void commit(final int transactionId) throws RetryLaterException, InterruptedException {
+    /**
+     * Start a transaction that will only read. It sees the store as of the latest commit, and nothing
+     * committed after it, like any other transaction, but none of its reads are recorded, there is
+     * nothing to validate, and commit() just ends it. write(), remove() and increment() are refused.
+     *
+     * @param transactionId
+     */
+    public void beginReadOnly(final int transactionId) {
+
+        if (transactionId < 0) {
+            throw new RuntimeException("Transaction id " + transactionId + " cannot be started because it is invalid");
+        }
 
-        // Add some padding to make sure that events that are not supposed to occur in
-        // the same milliseconds aren't treated as though they do
+        register(startSnapshot(transactionId, true));
+    }
 
-        Thread.sleep(SLEEP_CONST_MS);
-        final Date COMMIT_START_TIME = new Date();
+    /**
+     * Make a transaction available to the methods taking a transaction id
+     */
+    private void register(final Transaction<K, V> newTransaction) {
 
-        System.out.println(COMMIT_START_TIME.getTime() + "--Will attempt to commit on transactionId " + transactionId);
-        Transaction transaction = validateTransactionId(transactionId);
-        if (transaction == null) {
-            String message = "About to commit, but there" +
-                    " is no transaction available with transaction id " + transactionId;
-            System.out.println(message);
-            throw new IllegalStateException(message);
+        final int transactionId = newTransaction.getId();
+        newTransaction.registeredById = true;
+        if (transactionIdToObjectMapping.putIfAbsent(transactionId, newTransaction) != null) {
+            end(newTransaction);
+            throw new RuntimeException("Transaction id " + transactionId + " cannot be started because it already exists");
+        }
+    }
+
+    /**
+     * Create a transaction at the latest committed version and register its snapshot, so the versions
+     * it can see are kept until it finishes.
+     */
+    private Transaction<K, V> startSnapshot(final int transactionId, final boolean readOnly) {
+
+        final long started = System.nanoTime();
+        final TransactionEvents.Begin event = new TransactionEvents.Begin();
+        event.begin();
+        while (true) {
+
+            final long snapshot = committedVersion;
+            Transaction<K, V> transaction = new Transaction<K, V>(this, transactionId, snapshot, readOnly);
+            activeSnapshots.add(transaction);
+            if (snapshot >= reclaimHorizon) {
+                final TransactionReaper reaper = transactionReaper;
+                if (reaper != null) {
+                    reaper.track(transaction);
+                }
+                metrics.recordBegin(System.nanoTime() - started);
+                ReplayScheduler.began(transactionId);
+                if (event.shouldCommit()) {
+                    event.transactionId = transactionId;
+                    event.startVersion = snapshot;
+                    event.readOnly = readOnly;
+                    event.commit();
+                }
+                return transaction;
+            }
+
+            // A reclaim pass started after we read the version, and may not have seen us
+            activeSnapshots.remove(transaction);
         }
+    }
+
+    /**
+     * Read the value for a given key as of the transaction's snapshot, or its own write if it made one.
+     * If it is not present, return null
+     * <p/>
+     * Side effect is that it updates the timestamp for last read
+     *
+     * @param key
+     * @param transactionId
+     * @return
+     */
+    public V read(K key, final int transactionId) throws InterruptedException {
+        return read(validateTransactionId(transactionId), key);
+    }
 
-        if (needToRollBack(transaction)) {
-            transactionStates.remove(transaction);
-            transactionDeltas.remove(transactionId);
-            String message = "need to roll back transaction " + transactionId;
-            System.out.println(message);
-            throw new RetryLaterException(message);
+    V read(final Transaction<K, V> transaction, final K key) {
+
+        final long started = System.nanoTime();
+        final TransactionEvents.Read event = new TransactionEvents.Read();
+        event.begin();
+        try {
+            return readValue(transaction, key);
+        } finally {
+            metrics.readLatency.record(System.nanoTime() - started);
+            if (event.shouldCommit()) {
+                event.transactionId = transaction.getId();
+                event.key = String.valueOf(key);
+                event.commit();
+            }
         }
+    }
 
-        // Now that we know that nothing needs to be rolled back from this transaction
-        for (StaticTransactionalKVStore.TransactionalUnit transactionalUnit : transactionDeltas.get(transaction)) {
+    @SuppressWarnings("unchecked")
+    private V readValue(final Transaction<K, V> transaction, final K key) {
 
-            final K KEY = (K) transactionalUnit.getKey();
-            MetadataValue<V> currentV = masterMap.get(KEY);
-            if (transactionalUnit instanceof StaticTransactionalKVStore.ValueChange) {
+        validateTransaction(transaction);
+        if (transaction.isReadOnly()) {
+            MetadataValue<V> masterValue = masterMap.get(key);
+            return masterValue == null ? null : masterValue.getValueAsOf(transaction.getStartVersion());
+        }
 
-                //do an upsert on v
-                if (!masterMap.containsKey(KEY)) {
+        final OperationLog<K, V> log = transaction.log;
+        final int slot = log.recordRead(key);
+        if (log.isWritten(slot)) {
+            return (V) log.valueAt(slot);
+        }
 
-                    // First write
-                    MetadataValue<V> vForInsert = new MetadataValue<V>((V) transactionalUnit.getValue());
-                    vForInsert.setLastWritten(COMMIT_START_TIME);
-                    vForInsert.setLastRead(null);
-                    System.out.println("-----First write " + transactionId);
-                    masterMap.put(KEY, vForInsert);
-                } else {
+        MetadataValue<V> masterValue = masterMap.get(key);
+        V snapshotValue = masterValue == null ? null : masterValue.getValueAsOf(transaction.getStartVersion());
+        if (log.isIncremented(slot)) {
+            // Reading the key makes the increments depend on the snapshot value after all, which the read
+            // recorded above will validate
+            return (V) StaticTransactionalKVStore.Increment.add(snapshotValue, log.valueAt(slot));
+        }
 
-                    // Update
-                    currentV.setValue((V) transactionalUnit.getValue());
-                    currentV.setLastWritten(COMMIT_START_TIME);
-                }
-            } else if (transactionalUnit instanceof StaticTransactionalKVStore.IsolatedRead) {
+        return snapshotValue;
+    }
 
-                //update, unless this is a read of a value that does not exist
-                if (currentV != null) {
-                    currentV.setLastRead(((StaticTransactionalKVStore.IsolatedRead<K, V>) transactionalUnit).getTimeStamp());
-                } else {
-                    // if there is no entry for this in the master map, but there was a read
-                    // we need to inform the system that someone read null, which I guess is a read.
+    /**
+     * Read the value for a given key as read() does, as a read-only buffer. A value kept in the store's
+     * ValueStorage is not copied, and the view is only good until the transaction ends. Only for byte[]
+     * values.
+     *
+     * @param key
+     * @param transactionId
+     * @return the value, or null if there is none
+     */
+    public ByteBuffer readView(K key, final int transactionId) {
+        return readView(validateTransactionId(transactionId), key);
+    }
 
-                    Map<K, MetadataValue<V>> localTransactionState = transactionStates.get(transaction);
-                    localTransactionState.get(KEY).setLastRead(COMMIT_START_TIME);
-                    masterMap.put(KEY, localTransactionState.get(KEY));
-                }
-            } else {
-                Thread.sleep(SLEEP_CONST_MS);
-                throw new IllegalStateException("Unrecognized form of Transaction");
+    ByteBuffer readView(final Transaction<K, V> transaction, final K key) {
+
+        validateTransaction(transaction);
+        if (!transaction.isReadOnly()) {
+            final OperationLog<K, V> log = transaction.log;
+            final int slot = log.recordRead(key);
+            if (log.isWritten(slot) || log.isIncremented(slot)) {
+                // Its own value, which is on the heap anyway
+                return view(read(transaction, key));
             }
         }
 
-        // At this point, all members of the transaction have been committed in order
-        // all LR/LR updated. Now it's time for housekeeping
+        MetadataValue<V> masterValue = masterMap.get(key);
+        return view(masterValue == null ? null : masterValue.getStoredAsOf(transaction.getStartVersion()));
+    }
+
+    private static ByteBuffer view(Object stored) {
 
-        // Transaction is over. Release locks and remove all references to it.
-        transactionDeltas.remove(transaction); // this transaction no longer running
-        transactionStates.remove(transaction); // if it's not running, we don't need its copy of the data
-        transactionIdToObjectMapping.remove(transactionId); //we will no longer need to do lookups
+        if (stored == null) {
+            return null;
+        }
+        if (stored instanceof ValueStorage.Handle) {
+            return ((ValueStorage.Handle) stored).view();
+        }
+        if (stored instanceof MetadataValue.StoredValue) {
+            stored = ((MetadataValue.StoredValue) stored).get();
+        }
+        if (!(stored instanceof byte[])) {
+            throw new IllegalStateException("Only byte[] values can be read as a buffer, not " + stored);
+        }
+        return ByteBuffer.wrap((byte[]) stored).asReadOnlyBuffer();
+    }
 
-        System.out.println(new Date().getTime() + "--Just finished commit on transactionId " + transactionId);
-        Thread.sleep(SLEEP_CONST_MS);
+    /**
+     * Go through the keys from from, inclusive, to to, exclusive, in order, with their values as of the
+     * transaction's snapshot, merged with the transaction's own writes made before the scan. Either
+     * bound may be null to leave that end open. At most limit entries are returned.
+     * <p/>
+     * Entries are looked up as the iterator is advanced, and only as far as it is advanced. Commit
+     * validates the range up to the last key the iterator got to, or all of it if it ran out, so a key
+     * inserted, changed or removed there since the transaction began rolls the transaction back.
+     *
+     * @param from
+     * @param to
+     * @param limit
+     * @param transactionId
+     * @return
+     */
+    public Iterator<Map.Entry<K, V>> scan(K from, K to, int limit, final int transactionId) {
+        return scan(validateTransactionId(transactionId), from, to, limit);
     }
 
-    private Transaction validateTransactionId(int transactionId) {
-        if (transactionId < 0) {
-            throw new NoSuchTransactionException(transactionId);
-        }
+    Iterator<Map.Entry<K, V>> scan(final Transaction<K, V> transaction, final K from, final K to, final int limit) {
 
-        Transaction transaction = transactionIdToObjectMapping.get(transactionId);
-        if (transaction == null) {
-            throw new NoSuchTransactionException(transactionId);
+        validateTransaction(transaction);
+        if (unorderedKeys) {
+            throw new UnsupportedOperationException("Keys must be Comparable with one another to be scanned");
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive, not " + limit);
         }
 
-        if (!transactionDeltas.containsKey(transaction)) {
+        ScannedRange<K> range = null;
+        final TreeMap<K, Boolean> ownKeys = new TreeMap<K, Boolean>();
+        if (!transaction.isReadOnly()) {
 
-            throw new NoSuchTransactionException(transactionId);
+            range = new ScannedRange<K>(from, to);
+            transaction.addScannedRange(range);
+
+            final OperationLog<K, V> log = transaction.log;
+            for (int slot = 0; slot < log.capacity(); slot++) {
+                final K KEY = log.keyAt(slot);
+                if (KEY != null && (log.isWritten(slot) || log.isIncremented(slot)) && range.covers(KEY)) {
+                    ownKeys.put(KEY, Boolean.TRUE);
+                }
+            }
         }
 
-        return transaction;
+        return new ScanIterator(transaction, slice(from, true, to, false).entrySet().iterator(),
+                ownKeys.keySet().iterator(), range, limit);
     }
 
-    /* Check that since the transaction started, that no conflicting things have happened in the
-     * master store
+    /**
+     * The part of the ordered index between the bounds, either of which may be null
      */
-    boolean needToRollBack(Transaction t) {
-        return TransactionalKVStore.needToRollBack(t, transactionDeltas.get(t), masterMap);
+    private NavigableMap<K, MetadataValue<V>> slice(K from, boolean fromInclusive, K to, boolean toInclusive) {
+
+        if (from == null && to == null) {
+            return orderedIndex;
+        }
+        if (from == null) {
+            return orderedIndex.headMap(to, toInclusive);
+        }
+        if (to == null) {
+            return orderedIndex.tailMap(from, fromInclusive);
+        }
+        if (compareKeys(from, to) > 0) {
+            return new TreeMap<K, MetadataValue<V>>();
+        }
+        return orderedIndex.subMap(from, fromInclusive, to, toInclusive);
     }
 
-    boolean needToRollBack(final int transactionId) {
-        return needToRollBack(validateTransactionId(transactionId));
+    /**
+     * The first key written in any range the transaction scanned since the transaction began, or null if
+     * there is none. Callers must hold every commit stripe.
+     */
+    private Object findRangeConflict(final Transaction<K, V> transaction) {
+
+        if (transaction.scannedRanges == null) {
+            return null;
+        }
+
+        final long T_START_VERSION = transaction.getStartVersion();
+        for (ScannedRange<K> range : transaction.scannedRanges) {
+            for (Map.Entry<K, MetadataValue<V>> entry : seen(range).entrySet()) {
+                if (entry.getValue().getLastWritten() > T_START_VERSION) {
+                    return entry.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The part of the ordered index a scan got through
+     */
+    private NavigableMap<K, MetadataValue<V>> seen(final ScannedRange<K> range) {
+
+        if (range.exhausted) {
+            return slice(range.from, true, range.to, false);
+        }
+        if (range.lastKey != null) {
+            return slice(range.from, true, range.lastKey, true);
+        }
+        // Never advanced, so nothing in it was seen
+        return new TreeMap<K, MetadataValue<V>>();
+    }
+
+    /**
+     * Under snapshot isolation, the first key the transaction wrote that was also written since it began,
+     * or null if there is none. Increments are applied to the newest value, so they do not count.
+     */
+    static Object findWriteConflict(final Transaction<?, ?> t, final Map<?, ? extends MetadataValue<?>> masterMap) {
+
+        final OperationLog<?, ?> log = t.log;
+        final long T_START_VERSION = t.getStartVersion();
+        for (int slot = 0; slot < log.capacity(); slot++) {
+
+            final Object KEY = log.keyAt(slot);
+            if (KEY == null || !log.isWritten(slot)) {
+                continue;
+            }
+
+            MetadataValue<?> returnedValue = masterMap.get(KEY);
+            if (returnedValue != null && returnedValue.getLastWritten() > T_START_VERSION) {
+                return KEY;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Under serializable snapshot isolation, a key to roll the transaction back on, or null if it can
+     * commit. Callers must hold the stripes of every key it touched, or every stripe if it scanned.
+     * <p/>
+     * A commit since the transaction began that wrote a key it read, or a key in a range it scanned, is
+     * an antidependency going out of it: it has to come before that commit in any serial order. A commit
+     * since it began that read, scanned or wrote a key it writes is a dependency coming in. A transaction
+     * with both is rolled back, as is one whose outgoing antidependency is to a commit that already had
+     * one going out of its own, since that commit would then have both. Which of its outgoing
+     * antidependencies the transaction had is noted on it, for its writes to carry.
+     */
+    private Object findDangerousStructure(final Transaction<K, V> transaction) {
+
+        final OperationLog<K, V> log = transaction.log;
+        final long T_START_VERSION = transaction.getStartVersion();
+        Object outConflictKey = null;
+        boolean inConflict = false;
+
+        for (int slot = 0; slot < log.capacity(); slot++) {
+
+            final K KEY = log.keyAt(slot);
+            if (KEY == null) {
+                continue;
+            }
+
+            final MetadataValue<V> value = masterMap.get(KEY);
+            if (log.wasRead(slot) && value != null && value.getLastWritten() > T_START_VERSION) {
+                if (value.getLastOutConflictWrite() > T_START_VERSION) {
+                    return KEY;
+                }
+                if (outConflictKey == null) {
+                    outConflictKey = KEY;
+                }
+            }
+
+            if (!inConflict && (log.isWritten(slot) || log.isIncremented(slot))) {
+                inConflict = value != null && (value.getLastRead() > T_START_VERSION ||
+                        value.getLastWritten() > T_START_VERSION) || scannedSince(KEY, T_START_VERSION);
+            }
+        }
+
+        if (transaction.scannedRanges != null) {
+            for (ScannedRange<K> range : transaction.scannedRanges) {
+                for (Map.Entry<K, MetadataValue<V>> entry : seen(range).entrySet()) {
+
+                    final MetadataValue<V> value = entry.getValue();
+                    if (value.getLastWritten() > T_START_VERSION) {
+                        if (value.getLastOutConflictWrite() > T_START_VERSION) {
+                            return entry.getKey();
+                        }
+                        if (outConflictKey == null) {
+                            outConflictKey = entry.getKey();
+                        }
+                    }
+                }
+            }
+        }
+
+        transaction.outConflict = outConflictKey != null;
+        return inConflict ? outConflictKey : null;
+    }
+
+    /**
+     * Whether a transaction committed after the given version scanned over the key
+     */
+    private boolean scannedSince(final K key, final long version) {
+
+        for (ScannedRange<K> range : committedScans) {
+            if (range.commitVersion > version && range.sawKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void write(K key, V value, final int transactionId) throws InterruptedException {
+        write(validateTransactionId(transactionId), key, value);
+    }
+
+    void write(final Transaction<K, V> transaction, final K key, final V value) {
+
+        final long started = System.nanoTime();
+        final TransactionEvents.Write event = new TransactionEvents.Write();
+        event.begin();
+        validateWritableTransaction(transaction);
+        transaction.log.recordWrite(key, value);
+        metrics.writeLatency.record(System.nanoTime() - started);
+        emitWrite(event, transaction, key, "write");
+    }
+
+    private static void emitWrite(TransactionEvents.Write event, Transaction<?, ?> transaction, Object key,
+                                  String operation) {
+
+        if (event.shouldCommit()) {
+            event.transactionId = transaction.getId();
+            event.key = String.valueOf(key);
+            event.operation = operation;
+            event.commit();
+        }
+    }
+
+    /**
+     * Add a delta to the key's value. Unlike a read followed by a write, this does not depend on the
+     * value in the transaction's snapshot: the delta is added to whatever value the key has when the
+     * transaction commits, so concurrent increments of the same key do not roll each other back.
+     * <p/>
+     * Values must be Integers or Longs, and the delta of the same type. A key without a value starts
+     * from the delta.
+     *
+     * @param key
+     * @param delta
+     * @param transactionId
+     */
+    public void increment(K key, V delta, final int transactionId) {
+        increment(validateTransactionId(transactionId), key, delta);
+    }
+
+    void increment(final Transaction<K, V> transaction, final K key, final V delta) {
+
+        final long started = System.nanoTime();
+        final TransactionEvents.Write event = new TransactionEvents.Write();
+        event.begin();
+        validateWritableTransaction(transaction);
+        StaticTransactionalKVStore.Increment.checkDelta(delta);
+        transaction.log.recordIncrement(key, delta);
+        metrics.writeLatency.record(System.nanoTime() - started);
+        emitWrite(event, transaction, key, "increment");
+    }
+
+    /**
+     * Logically removes a given KV pair from the store, but in practice, keeps the metadata around
+     * the transaction.
+     * <p/>
+     * TODO: Figure out the semantics of what happens if someone is trying to update this value?
+     * Do we have a distinction between create (new) vs. update. It's currently all muddled as
+     * an upsert.
+     * <p/>
+     * A remove should be a degenerate case of a ValueChange, where the new value is null.
+     *
+     * @param key
+     */
+    public void remove(K key, final int transactionId) {
+        remove(validateTransactionId(transactionId), key);
+    }
+
+    void remove(final Transaction<K, V> transaction, final K key) {
+
+        final long started = System.nanoTime();
+        final TransactionEvents.Write event = new TransactionEvents.Write();
+        event.begin();
+        validateWritableTransaction(transaction);
+        // From here on, this transaction should see the key as gone
+        transaction.log.recordWrite(key, null);
+        metrics.writeLatency.record(System.nanoTime() - started);
+        emitWrite(event, transaction, key, "remove");
+    }
+
+    public void commit(final int transactionId) throws RetryLaterException, InterruptedException {
+        commit(validateTransactionId(transactionId));
+    }
+
+    void commit(final Transaction<K, V> transaction) throws RetryLaterException {
+
+        final long started = System.nanoTime();
+        // Only one of them is committed, depending on how it ends
+        final TransactionEvents.Commit commitEvent = new TransactionEvents.Commit();
+        final TransactionEvents.Rollback rollbackEvent = new TransactionEvents.Rollback();
+        commitEvent.begin();
+        rollbackEvent.begin();
+        validateTransaction(transaction);
+        final int transactionId = transaction.getId();
+        if (!transaction.startCommit()) {
+            // Reaped, or committed by another thread, since
+            throw new NoSuchTransactionException(transactionId);
+        }
+        if (logFailure != null && !transaction.isReadOnly()) {
+            end(transaction);
+            emitRollback(rollbackEvent, transaction, "The write-ahead log has failed", null,
+                    MetadataValue.NO_VERSION);
+            throw new IllegalStateException("Transaction " + transactionId +
+                    " cannot commit, since the write-ahead log has failed", logFailure);
+        }
+        if (transaction.isReadOnly()) {
+            // Everything it read was consistent as of its snapshot, so there is nothing to check or write
+            end(transaction);
+            metrics.recordCommit(System.nanoTime() - started);
+            emitCommit(commitEvent, transaction, 0, MetadataValue.NO_VERSION);
+            return;
+        }
+
+        final OperationLog<K, V> log = transaction.log;
+        final List<K> keys = log.keys();
+        final boolean hasIncrements = log.hasIncrements();
+
+        // Serializing for the log is the expensive part, so do it before taking any locks. Increments are
+        // logged as the values they resolve to, which are only known under the locks.
+        byte[] logPayload = null;
+        if (writeAheadLog != null && !hasIncrements) {
+            final List<StaticTransactionalKVStore.ValueChange<K, V>> changes = writtenValues(log);
+            if (!changes.isEmpty()) {
+                logPayload = WriteAheadLog.encode(changes);
+            }
+        }
+
+        // Validation and write-back only need the keys this transaction touched to hold still, unless it
+        // scanned, when no key may be inserted into what it scanned either
+        final int[] stripes = transaction.scannedRanges == null ?
+                commitLocks.stripesFor(keys) : commitLocks.allStripes();
+        long commitVersion = MetadataValue.NO_VERSION;
+        long logSequence = 0;
+        boolean logged = false;
+        try {
+            commitLocks.lockAll(stripes);
+            try {
+
+                final IsolationLevel level = isolationLevel;
+                Object conflictingKey;
+                String reason;
+                if (level == IsolationLevel.SNAPSHOT) {
+                    conflictingKey = findWriteConflict(transaction, masterMap);
+                    reason = "A key it wrote was written since it began";
+                } else if (level == IsolationLevel.SERIALIZABLE_SNAPSHOT) {
+                    conflictingKey = findDangerousStructure(transaction);
+                    reason = "Commits since it began both depend on it and are depended on by it";
+                } else {
+                    conflictingKey = findConflict(transaction, masterMap);
+                    reason = "A key it read or wrote was written since it began";
+                    if (conflictingKey == null) {
+                        conflictingKey = findRangeConflict(transaction);
+                        reason = "A range it scanned was written since it began";
+                    }
+                }
+                if (conflictingKey != null) {
+                    end(transaction);
+                    final MetadataValue<V> conflictingValue = masterMap.get(conflictingKey);
+                    final long conflictingVersion = conflictingValue.getLastWritten();
+                    metrics.recordAbort();
+                    conflictHeatmap.recordConflict(conflictingKey, transactionId, conflictingValue.getLastWriterId(),
+                            conflictingVersion);
+                    emitRollback(rollbackEvent, transaction, reason, conflictingKey, conflictingVersion);
+                    String message = "need to roll back transaction " + transactionId;
+                    throw new RetryLaterException(message, conflictingKey, conflictingVersion);
+                }
+
+                if (hasIncrements && !incrementsApply(log)) {
+                    end(transaction);
+                    emitRollback(rollbackEvent, transaction, "An increment did not apply to its key's value",
+                            null, MetadataValue.NO_VERSION);
+                    throw new IllegalArgumentException("Transaction " + transactionId +
+                            " increments a key whose value is not a number of the same type as the delta");
+                }
+
+                // Now that we know that nothing needs to be rolled back from this transaction, take the next
+                // tick of the logical clock. Everything this commit reads or writes is stamped with it.
+                // Log records for the same key are appended in version order, since they share a stripe.
+                commitVersion = commitSequence.incrementAndGet();
+                List<StaticTransactionalKVStore.ValueChange<K, V>> applied = writeBack(log, commitVersion,
+                        transactionId, level == IsolationLevel.SERIALIZABLE_SNAPSHOT && transaction.outConflict);
+                if (level == IsolationLevel.SERIALIZABLE_SNAPSHOT && transaction.scannedRanges != null) {
+                    for (ScannedRange<K> range : transaction.scannedRanges) {
+                        range.commitVersion = commitVersion;
+                        committedScans.add(range);
+                    }
+                }
+                if (logPayload != null) {
+                    logSequence = writeAheadLog.append(commitVersion, logPayload);
+                } else if (writeAheadLog != null && !applied.isEmpty()) {
+                    logSequence = writeAheadLog.append(commitVersion, WriteAheadLog.encode(applied));
+                }
+            } finally {
+                commitLocks.unlockAll(stripes);
+            }
+
+            // The commit is only acknowledged, and only visible to new snapshots, once it is on disk.
+            // Other committers' records get forced along with this one.
+            if (logSequence != 0) {
+                writeAheadLog.awaitDurable(logSequence);
+            }
+            logged = true;
+        } catch (IOException e) {
+            // It has already been written back, so it is never published, and neither is anything after it
+            logFailed(e, commitVersion);
+            end(transaction);
+            emitRollback(rollbackEvent, transaction, "Could not be made durable: " + e, null,
+                    MetadataValue.NO_VERSION);
+            throw new IllegalStateException("Transaction " + transactionId + " could not be made durable", e);
+        } finally {
+            if (commitVersion != MetadataValue.NO_VERSION && logged && !publish(commitVersion)) {
+                end(transaction);
+                emitRollback(rollbackEvent, transaction, "An earlier commit could not be made durable", null,
+                        MetadataValue.NO_VERSION);
+                throw new IllegalStateException("Transaction " + transactionId +
+                        " cannot be made visible, since an earlier commit could not be made durable", logFailure);
+            }
+        }
+
+        // Transaction is over. Release its snapshot and its id.
+        end(transaction);
+        metrics.recordCommit(System.nanoTime() - started);
+        emitCommit(commitEvent, transaction, keys.size(), commitVersion);
+
+        for (CommitListener listener : commitListeners) {
+            try {
+                listener.committed(commitVersion, keys);
+            } catch (RuntimeException e) {
+                // The commit has happened regardless
+                metrics.recordListenerFailure();
+                logger.log(Level.WARNING, "Commit listener failed after version " + commitVersion, e);
+            }
+        }
+    }
+
+    private static void emitCommit(TransactionEvents.Commit event, Transaction<?, ?> transaction, int keyCount,
+                                   long commitVersion) {
+
+        if (event.shouldCommit()) {
+            event.transactionId = transaction.getId();
+            event.keyCount = keyCount;
+            event.commitVersion = commitVersion;
+            event.commit();
+        }
+    }
+
+    private static void emitRollback(TransactionEvents.Rollback event, Transaction<?, ?> transaction,
+                                     String reason, Object conflictingKey, long conflictingVersion) {
+
+        if (event.shouldCommit()) {
+            event.transactionId = transaction.getId();
+            event.keyCount = transaction.isReadOnly() ? 0 : transaction.log.size();
+            event.reason = reason;
+            event.conflictingKey = conflictingKey == null ? null : String.valueOf(conflictingKey);
+            event.conflictingVersion = conflictingVersion;
+            event.commit();
+        }
+    }
+
+    /**
+     * Finish a transaction: it can no longer be used, its snapshot can be reclaimed, and its id is free
+     */
+    private void end(final Transaction<K, V> transaction) {
+
+        transaction.finish();
+        activeSnapshots.remove(transaction);
+        if (transaction.registeredById) {
+            transactionIdToObjectMapping.remove(transaction.getId(), transaction);
+        }
+    }
+
+    /**
+     * Apply one transaction found in the write-ahead log. Only used while the store is being opened, so
+     * there are no snapshots to keep older versions for.
+     */
+    @SuppressWarnings("unchecked")
+    private void replayCommit(long commitVersion,
+                              List<StaticTransactionalKVStore.ValueChange<Object, Object>> changes) {
+
+        for (StaticTransactionalKVStore.ValueChange<Object, Object> change : changes) {
+
+            MetadataValue<V> replayed = new MetadataValue<V>();
+            replayed.addVersion(toStored(change.getValue()), commitVersion);
+            masterMap.put((K) change.getKey(), replayed);
+            index((K) change.getKey(), replayed);
+        }
+
+        if (commitVersion > commitSequence.get()) {
+            commitSequence.set(commitVersion);
+        }
+    }
+
+    /**
+     * Write a checkpoint of every commit published so far, then delete the log and the checkpoints it
+     * makes redundant. Commits carry on while it is written. Also run periodically in the background.
+     *
+     * @return the version the checkpoint was taken at
+     * @throws IOException
+     */
+    public long checkpoint() throws IOException {
+
+        if (writeAheadLog == null) {
+            throw new IllegalStateException("A store without a data directory cannot be checkpointed");
+        }
+
+        synchronized (checkpointMonitor) {
+
+            // Commits after this point go to a new segment, so the old ones can go once the checkpoint is
+            // written
+            writeAheadLog.roll();
+
+            // Pinned the same way a transaction's snapshot is
+            long snapshot;
+            do {
+                snapshot = committedVersion;
+                checkpointSnapshot = snapshot;
+            } while (snapshot < reclaimHorizon);
+
+            try {
+                if (snapshot != lastCheckpointVersion) {
+                    Checkpoint.write(dataDirectory, masterMap, snapshot);
+                    lastCheckpointVersion = snapshot;
+                }
+            } finally {
+                checkpointSnapshot = Long.MAX_VALUE;
+            }
+
+            writeAheadLog.deleteSegmentsThrough(snapshot);
+            Checkpoint.deleteOlderThan(dataDirectory, snapshot);
+            return snapshot;
+        }
+    }
+
+    /**
+     * Release the write-ahead log, if there is one, and stop the replay scheduler. The store should not be
+     * used afterwards.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+
+        synchronized (this) {
+            if (replayScheduler != null) {
+                replayScheduler.shutdown();
+            }
+            if (transactionReaper != null) {
+                transactionReaper.scheduledRun.cancel(false);
+            }
+        }
+        metrics.unregister();
+
+        if (writeAheadLog != null) {
+            synchronized (checkpointMonitor) {
+                scheduledCheckpoints.cancel(false);
+                writeAheadLog.close();
+            }
+        }
+    }
+
+    WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * Check, before anything is written back, that every increment in the transaction can be added to
+     * the value its key has by now. Callers must hold the stripes of every key the transaction touched.
+     */
+    private boolean incrementsApply(final OperationLog<K, V> log) {
+
+        for (int slot = 0; slot < log.capacity(); slot++) {
+
+            final K KEY = log.keyAt(slot);
+            if (KEY == null || !log.isIncremented(slot)) {
+                continue;
+            }
+            MetadataValue<V> masterValue = masterMap.get(KEY);
+            final V current = masterValue == null ? null : masterValue.getValueAsOf(Long.MAX_VALUE);
+            if (!StaticTransactionalKVStore.Increment.canAdd(current, log.valueAt(slot))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The values a transaction wrote, one per key, for the write-ahead log
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> List<StaticTransactionalKVStore.ValueChange<K, V>> writtenValues(
+            final OperationLog<K, V> log) {
+
+        final List<StaticTransactionalKVStore.ValueChange<K, V>> changes =
+                new ArrayList<StaticTransactionalKVStore.ValueChange<K, V>>();
+        for (int slot = 0; slot < log.capacity(); slot++) {
+            final K KEY = log.keyAt(slot);
+            if (KEY != null && log.isWritten(slot)) {
+                changes.add(valueChange(KEY, (V) log.valueAt(slot)));
+            }
+        }
+        return changes;
+    }
+
+    private static <K, V> StaticTransactionalKVStore.ValueChange<K, V> valueChange(final K KEY, final V VALUE) {
+        return VALUE == null ? new StaticTransactionalKVStore.Remove<K, V>(KEY) :
+                new StaticTransactionalKVStore.ValueChange<K, V>(KEY, VALUE);
+    }
+
+    /**
+     * Apply a validated transaction's operations to the master map. Callers must hold the stripes of
+     * every key the transaction touched.
+     *
+     * @param writerId    the id of the committing transaction, kept with each key it writes
+     * @param outConflict whether to mark the keys written as written by a transaction with a read-write
+     *                    antidependency going out to an earlier commit
+     * @return the values written, with increments resolved, for the write-ahead log
+     */
+    @SuppressWarnings("unchecked")
+    private List<StaticTransactionalKVStore.ValueChange<K, V>> writeBack(final OperationLog<K, V> log,
+                                                                   final long COMMIT_VERSION,
+                                                                   final int writerId,
+                                                                   final boolean outConflict) {
+
+        final List<StaticTransactionalKVStore.ValueChange<K, V>> applied =
+                new ArrayList<StaticTransactionalKVStore.ValueChange<K, V>>();
+        for (int slot = 0; slot < log.capacity(); slot++) {
+
+            final K KEY = log.keyAt(slot);
+            if (KEY == null) {
+                continue;
+            }
+
+            MetadataValue<V> currentV = masterMap.get(KEY);
+            if (log.isWritten(slot)) {
+
+                final V VALUE = (V) log.valueAt(slot);
+                currentV = writeValue(KEY, currentV, VALUE, COMMIT_VERSION);
+                applied.add(valueChange(KEY, VALUE));
+            } else if (log.isIncremented(slot)) {
+
+                // Added to the newest value, whatever this transaction saw. Every earlier commit to this key
+                // has finished writing back, since it held the same stripe.
+                final V CURRENT_VALUE = currentV == null ? null : currentV.getValueAsOf(COMMIT_VERSION);
+                final V NEW_VALUE = (V) StaticTransactionalKVStore.Increment.add(CURRENT_VALUE, log.valueAt(slot));
+                currentV = writeValue(KEY, currentV, NEW_VALUE, COMMIT_VERSION);
+                applied.add(new StaticTransactionalKVStore.ValueChange<K, V>(KEY, NEW_VALUE));
+            }
+
+            if (log.isWritten(slot) || log.isIncremented(slot)) {
+                currentV.setLastWriterId(writerId);
+                if (outConflict) {
+                    currentV.setLastOutConflictWrite(COMMIT_VERSION);
+                }
+            }
+
+            if (log.wasRead(slot)) {
+
+                //update, unless this is a read of a value that does not exist
+                if (currentV != null) {
+                    currentV.setLastRead(COMMIT_VERSION);
+                } else {
+                    // if there is no entry for this in the master map, but there was a read
+                    // we need to inform the system that someone read null, which I guess is a read.
+                    MetadataValue<V> readMissing = new MetadataValue<V>();
+                    readMissing.setLastRead(COMMIT_VERSION);
+                    masterMap.put(KEY, readMissing);
+                    index(KEY, readMissing);
+                }
+            }
+        }
+
+        // At this point, all members of the transaction have been committed
+        // all LR/LR updated.
+        return applied;
+    }
+
+    /**
+     * Upsert a key's value as of the given commit version
+     *
+     * @return the key's entry in the master map
+     */
+    private MetadataValue<V> writeValue(final K KEY, final MetadataValue<V> currentV, final V VALUE,
+                                        final long COMMIT_VERSION) {
+
+        final Object STORED = toStored(VALUE);
+        if (currentV == null) {
+
+            // First write
+            MetadataValue<V> vForInsert = new MetadataValue<V>();
+            vForInsert.addVersion(STORED, COMMIT_VERSION);
+            masterMap.put(KEY, vForInsert);
+            index(KEY, vForInsert);
+            return vForInsert;
+        } else {
+
+            // Update
+            if (currentV.addVersion(STORED, COMMIT_VERSION) && !currentV.reclaimPending) {
+                currentV.reclaimPending = true;
+                reclaimQueue.add(KEY);
+            }
+            return currentV;
+        }
+    }
+
+    /**
+     * Add a master map entry to the ordered index, unless keys have turned out not to be Comparable
+     */
+    private void index(final K KEY, final MetadataValue<V> value) {
+
+        if (unorderedKeys) {
+            return;
+        }
+        if (!(KEY instanceof Comparable)) {
+            unorderedKeys = true;
+            orderedIndex.clear();
+            return;
+        }
+
+        try {
+            orderedIndex.put(KEY, value);
+        } catch (ClassCastException e) {
+            // Comparable, but not with the keys already there
+            unorderedKeys = true;
+            orderedIndex.clear();
+        }
+    }
+
+    /**
+     * The value as the master map holds it: a handle to a copy in the value storage for byte[] values,
+     * if there is one, and the value itself otherwise
+     */
+    private Object toStored(final Object value) {
+
+        if (valueStorage != null && value instanceof byte[]) {
+            return valueStorage.store((byte[]) value);
+        }
+        return value;
+    }
+
+    /**
+     * Make a commit version visible to new snapshots. Versions are handed out before write-back and
+     * commits over disjoint keys finish in any order, so wait for the version just before this one.
+     * Commits reach here after their log record is durable, and those are forced in batches, so the
+     * wait is short.
+     *
+     * @return false if an earlier version could not be logged, so this one can never be published either
+     */
+    private boolean publish(final long version) {
+
+        for (int spins = 0; committedVersion != version - 1 && spins < PUBLISH_SPINS; spins++) {
+            Thread.yield();
+        }
+
+        boolean interrupted = false;
+        synchronized (publishMonitor) {
+            while (committedVersion != version - 1) {
+                if (failedVersion < version) {
+                    // Waiting for a version that will never be published
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return false;
+                }
+                try {
+                    publishMonitor.wait();
+                } catch (InterruptedException e) {
+                    // The commit has been written back, so it has to be published regardless
+                    interrupted = true;
+                }
+            }
+            committedVersion = version;
+            publishMonitor.notifyAll();
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    /**
+     * Stop the store taking commits, since one at the given version was written back and could not be
+     * logged. Committers waiting to publish after it give up, as do replayable transactions parked on a
+     * commit that will never be visible.
+     */
+    private void logFailed(final IOException e, final long version) {
+
+        final ReplayScheduler scheduler;
+        synchronized (publishMonitor) {
+            if (logFailure == null) {
+                logFailure = e;
+            }
+            failedVersion = Math.min(failedVersion, version);
+            publishMonitor.notifyAll();
+        }
+        synchronized (this) {
+            scheduler = replayScheduler;
+        }
+        if (scheduler != null) {
+            scheduler.storeFailed(e);
+        }
+    }
+
+    long getCommittedVersion() {
+        return committedVersion;
+    }
+
+    private Transaction<K, V> validateTransactionId(int transactionId) {
+        if (transactionId < 0) {
+            throw new NoSuchTransactionException(transactionId);
+        }
+
+        Transaction<K, V> transaction = transactionIdToObjectMapping.get(transactionId);
+        if (transaction == null) {
+            throw new NoSuchTransactionException(transactionId);
+        }
+
+        return transaction;
+    }
+
+    private void validateTransaction(final Transaction<K, V> transaction) {
+
+        if (transaction.isFinished() || transaction.getStore() != this) {
+            throw new NoSuchTransactionException(transaction.getId());
+        }
+
+        final TransactionReaper reaper = transactionReaper;
+        if (reaper != null) {
+            transaction.lastActiveTick = reaper.currentTick();
+        }
+    }
+
+    private void validateWritableTransaction(final Transaction<K, V> transaction) {
+
+        validateTransaction(transaction);
+        if (transaction.isReadOnly()) {
+            throw new IllegalStateException("Transaction " + transaction.getId() + " was begun read-only");
+        }
+    }
+
+    /* Check that since the transaction started, that no conflicting things have happened in the
+     * master store
+     */
+    boolean needToRollBack(Transaction<K, V> t) {
+        if (t.isReadOnly()) {
+            return false;
+        }
+        return TransactionalKVStore.needToRollBack(t, masterMap) || findRangeConflict(t) != null;
+    }
+
+    boolean needToRollBack(final int transactionId) {
+        return needToRollBack(validateTransactionId(transactionId));
+    }
+
+    /**
+     * The oldest snapshot any running transaction may still read from. Raises the reclaim horizon first,
+     * so that a transaction beginning meanwhile either shows up here or takes a newer snapshot.
+     */
+    private long oldestActiveSnapshot() {
+
+        final long horizon = committedVersion;
+        reclaimHorizon = horizon;
+
+        long oldest = Math.min(horizon, checkpointSnapshot);
+        for (Transaction<K, V> transaction : activeSnapshots) {
+            oldest = Math.min(oldest, transaction.getStartVersion());
+        }
+        return oldest;
+    }
+
+    /**
+     * Unlink the versions that no running transaction can see any more. Run periodically in the
+     * background, but safe to call at any time.
+     */
+    synchronized void reclaimObsoleteVersions() {
+
+        final long oldestSnapshot = oldestActiveSnapshot();
+
+        // A scan committed at or before every snapshot comes before every running transaction anyway
+        final Iterator<ScannedRange<K>> scans = committedScans.iterator();
+        while (scans.hasNext()) {
+            if (scans.next().commitVersion <= oldestSnapshot) {
+                scans.remove();
+            }
+        }
+
+        // Keys that still hold several versions go back on the queue, but only after this pass
+        List<K> stillVersioned = new ArrayList<K>();
+        K key;
+        while ((key = reclaimQueue.poll()) != null) {
+
+            MetadataValue<V> value = masterMap.get(key);
+            if (value == null) {
+                continue;
+            }
+
+            value.reclaimPending = false;
+            if (value.reclaimVersionsBefore(oldestSnapshot, valueStorage)) {
+                value.reclaimPending = true;
+                stillVersioned.add(key);
+            }
+        }
+        reclaimQueue.addAll(stillVersioned);
+    }
+
+    /**
+     * Runs the version reclaimer for one store. Only holds the store weakly, so an abandoned store can
+     * still be garbage collected, at which point the task cancels itself.
+     */
+    private static class VersionReclaimer implements Runnable {
+
+        private final WeakReference<TransactionalKVStore<?, ?>> storeReference;
+        volatile ScheduledFuture<?> scheduledRun;
+
+        VersionReclaimer(TransactionalKVStore<?, ?> store) {
+            this.storeReference = new WeakReference<TransactionalKVStore<?, ?>>(store);
+        }
+
+        public void run() {
+
+            TransactionalKVStore<?, ?> store = storeReference.get();
+            if (store == null) {
+                if (scheduledRun != null) {
+                    scheduledRun.cancel(false);
+                }
+                return;
+            }
+
+            store.reclaimObsoleteVersions();
+        }
+    }
+
+    /**
+     * Periodically checkpoints one store, holding it weakly like the VersionReclaimer
+     */
+    private static class Checkpointer implements Runnable {
+
+        private final WeakReference<TransactionalKVStore<?, ?>> storeReference;
+        volatile ScheduledFuture<?> scheduledRun;
+
+        Checkpointer(TransactionalKVStore<?, ?> store) {
+            this.storeReference = new WeakReference<TransactionalKVStore<?, ?>>(store);
+        }
+
+        public void run() {
+
+            TransactionalKVStore<?, ?> store = storeReference.get();
+            if (store == null) {
+                if (scheduledRun != null) {
+                    scheduledRun.cancel(false);
+                }
+                return;
+            }
+
+            try {
+                store.checkpoint();
+            } catch (Exception e) {
+                // Keep the schedule going. The log still has everything, and the next run will try again.
+                store.metrics.recordCheckpointFailure();
+                logger.log(Level.WARNING, "Checkpoint failed", e);
+            }
+        }
+    }
+
+    /**
+     * Compare two keys of a store whose keys are Comparable with one another, as scans require
+     */
+    @SuppressWarnings("unchecked")
+    static int compareKeys(Object a, Object b) {
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    /**
+     * A key range a transaction scanned, and how far through it the scan got
+     */
+    static final class ScannedRange<K> {
+
+        final K from;
+        final K to;
+        // The last key the scan got to, and whether it got to the end of the range
+        K lastKey;
+        boolean exhausted;
+        // The version the transaction that scanned it committed at, under serializable snapshot isolation
+        volatile long commitVersion = MetadataValue.NO_VERSION;
+
+        ScannedRange(K from, K to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        boolean covers(K key) {
+            return (from == null || compareKeys(from, key) <= 0) && (to == null || compareKeys(to, key) > 0);
+        }
+
+        /**
+         * Whether the key is in the part of the range the scan got through
+         */
+        boolean sawKey(K key) {
+            return covers(key) && (exhausted || lastKey != null && compareKeys(lastKey, key) >= 0);
+        }
+    }
+
+    /**
+     * Merges a slice of the ordered index, read as of a transaction's snapshot, with the keys the
+     * transaction wrote itself, looking each entry up only when it is needed
+     */
+    private class ScanIterator implements Iterator<Map.Entry<K, V>> {
+
+        private final Transaction<K, V> transaction;
+        private final Iterator<Map.Entry<K, MetadataValue<V>>> committed;
+        private final Iterator<K> ownKeys;
+        // Null for a read-only transaction, which is not validated
+        private final ScannedRange<K> range;
+        private int remaining;
+
+        private Map.Entry<K, MetadataValue<V>> nextCommitted;
+        private K nextOwnKey;
+        private Map.Entry<K, V> next;
+
+        ScanIterator(Transaction<K, V> transaction, Iterator<Map.Entry<K, MetadataValue<V>>> committed,
+                     Iterator<K> ownKeys, ScannedRange<K> range, int limit) {
+
+            this.transaction = transaction;
+            this.committed = committed;
+            this.ownKeys = ownKeys;
+            this.range = range;
+            this.remaining = limit;
+            this.nextCommitted = committed.hasNext() ? committed.next() : null;
+            this.nextOwnKey = ownKeys.hasNext() ? ownKeys.next() : null;
+        }
+
+        public boolean hasNext() {
+
+            if (next != null) {
+                return true;
+            }
+            if (remaining == 0) {
+                return false;
+            }
+            validateTransaction(transaction);
+
+            while (nextCommitted != null || nextOwnKey != null) {
+
+                final int order = nextCommitted == null ? 1 : nextOwnKey == null ? -1 :
+                        compareKeys(nextCommitted.getKey(), nextOwnKey);
+
+                final K key;
+                final V value;
+                if (order < 0) {
+                    key = nextCommitted.getKey();
+                    value = nextCommitted.getValue().getValueAsOf(transaction.getStartVersion());
+                    nextCommitted = committed.hasNext() ? committed.next() : null;
+                } else {
+                    // The transaction's own write wins over what was committed for the same key
+                    key = nextOwnKey;
+                    value = read(transaction, key);
+                    if (order == 0) {
+                        nextCommitted = committed.hasNext() ? committed.next() : null;
+                    }
+                    nextOwnKey = ownKeys.hasNext() ? ownKeys.next() : null;
+                }
+
+                if (value != null) {
+                    if (range != null) {
+                        range.lastKey = key;
+                    }
+                    remaining--;
+                    next = new AbstractMap.SimpleImmutableEntry<K, V>(key, value);
+                    return true;
+                }
+            }
+
+            if (range != null) {
+                range.exhausted = true;
+            }
+            return false;
+        }
+
+        public Map.Entry<K, V> next() {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Map.Entry<K, V> entry = next;
+            next = null;
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Told about commits, once they are visible to new snapshots
+     */
+    public interface CommitListener {
+
+        /**
+         * @param commitVersion
+         * @param keys          every key the transaction read or wrote
+         */
+        void committed(long commitVersion, Collection<?> keys);
     }
 
     /**
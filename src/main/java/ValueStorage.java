@@ -0,0 +1,239 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps byte[] values outside the Java heap, so a store holding many large values does not give the
+ * garbage collector more to copy and scan. Only a small Handle per value stays on the heap.
+ * <p/>
+ * Values live in slabs: direct ByteBuffers, or files mapped into memory when given a directory. Space
+ * is handed out in power-of-two blocks. Freed blocks go on a free list for their size and are reused
+ * before the slab is bumped any further. A value too big for a slab gets a buffer of its own.
+ * <p/>
+ * A store frees a value once no transaction's snapshot can see it any more, so a view of a value is
+ * only good until the transaction that read it ends.
+ */
+public class ValueStorage {
+
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+    private static final int MIN_BLOCK_SHIFT = 4;
+
+    private final int slabSize;
+    // Null for direct slabs
+    private final File directory;
+
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private ByteBuffer currentSlab;
+    private int currentSlabIndex = -1;
+    private int bumpOffset;
+
+    // Per block size, the freed blocks as slab index << 32 | offset
+    private final long[][] freeBlocks;
+    private final int[] freeCounts;
+
+    private long allocatedBytes;
+
+    /**
+     * Direct slabs of the default size
+     */
+    public ValueStorage() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    public ValueStorage(int slabSize) {
+        this(null, slabSize);
+    }
+
+    /**
+     * Slabs mapped from files in the given directory. The files are deleted once mapped, so the values
+     * are only kept as long as the process runs, like direct slabs, but the operating system can page
+     * them out.
+     *
+     * @param directory
+     * @param slabSize  a power of two
+     */
+    public ValueStorage(File directory, int slabSize) {
+
+        if (Integer.bitCount(slabSize) != 1 || slabSize < 1 << MIN_BLOCK_SHIFT) {
+            throw new IllegalArgumentException("Slab size must be a power of two of at least " +
+                    (1 << MIN_BLOCK_SHIFT) + ", not " + slabSize);
+        }
+        this.slabSize = slabSize;
+        this.directory = directory;
+
+        final int blockSizes = Integer.numberOfTrailingZeros(slabSize) - MIN_BLOCK_SHIFT + 1;
+        freeBlocks = new long[blockSizes][];
+        freeCounts = new int[blockSizes];
+    }
+
+    /**
+     * Copy a value into the storage
+     *
+     * @param value
+     * @return the handle to read and free it through
+     */
+    public Handle store(byte[] value) {
+
+        final Handle handle = allocate(value.length);
+        ByteBuffer out = handle.buffer.duplicate();
+        out.position(handle.offset);
+        out.put(value);
+        return handle;
+    }
+
+    /**
+     * Give a value's space back, to be reused by a later value of a similar size. The handle must not be
+     * read afterwards.
+     *
+     * @param handle
+     */
+    public synchronized void free(Handle handle) {
+
+        if (handle.sizeClass < 0) {
+            // A buffer of its own, which the garbage collector releases along with the handle
+            allocatedBytes -= handle.length;
+            return;
+        }
+
+        if (freeBlocks[handle.sizeClass] == null) {
+            freeBlocks[handle.sizeClass] = new long[16];
+        } else if (freeCounts[handle.sizeClass] == freeBlocks[handle.sizeClass].length) {
+            long[] grown = new long[freeBlocks[handle.sizeClass].length * 2];
+            System.arraycopy(freeBlocks[handle.sizeClass], 0, grown, 0, freeCounts[handle.sizeClass]);
+            freeBlocks[handle.sizeClass] = grown;
+        }
+        freeBlocks[handle.sizeClass][freeCounts[handle.sizeClass]++] =
+                ((long) handle.slabIndex << 32) | handle.offset;
+        allocatedBytes -= blockSize(handle.sizeClass);
+    }
+
+    /**
+     * The bytes taken up by values that have not been freed, rounded up to their blocks
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public synchronized int getSlabCount() {
+        return slabs.size();
+    }
+
+    private synchronized Handle allocate(int length) {
+
+        final int sizeClass = sizeClass(length);
+        if (sizeClass < 0) {
+            allocatedBytes += length;
+            return new Handle(ByteBuffer.allocateDirect(length), -1, 0, length, -1);
+        }
+
+        final int blockSize = blockSize(sizeClass);
+        allocatedBytes += blockSize;
+
+        if (freeCounts[sizeClass] > 0) {
+            final long block = freeBlocks[sizeClass][--freeCounts[sizeClass]];
+            final int slabIndex = (int) (block >>> 32);
+            return new Handle(slabs.get(slabIndex), slabIndex, (int) block, length, sizeClass);
+        }
+
+        if (currentSlab == null || bumpOffset + blockSize > slabSize) {
+            // What is left of the current slab is too small for this block, and stays unused
+            currentSlab = newSlab();
+            slabs.add(currentSlab);
+            currentSlabIndex = slabs.size() - 1;
+            bumpOffset = 0;
+        }
+
+        final Handle handle = new Handle(currentSlab, currentSlabIndex, bumpOffset, length, sizeClass);
+        bumpOffset += blockSize;
+        return handle;
+    }
+
+    private ByteBuffer newSlab() {
+
+        if (directory == null) {
+            return ByteBuffer.allocateDirect(slabSize);
+        }
+
+        try {
+            File file = File.createTempFile("slab-", ".values", directory);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // The mapping outlives the channel
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, slabSize);
+            } finally {
+                raf.close();
+                file.delete();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not map a value slab in " + directory, e);
+        }
+    }
+
+    /**
+     * The index of the smallest block size that holds the length, or -1 if it is bigger than a slab
+     */
+    private int sizeClass(int length) {
+
+        if (length > slabSize) {
+            return -1;
+        }
+        final int shift = Math.max(MIN_BLOCK_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(length - 1, 0)));
+        return shift - MIN_BLOCK_SHIFT;
+    }
+
+    private static int blockSize(int sizeClass) {
+        return 1 << (sizeClass + MIN_BLOCK_SHIFT);
+    }
+
+    /**
+     * Where one value is kept. This is all that stays on the heap.
+     */
+    public static final class Handle implements MetadataValue.StoredValue {
+
+        private final ByteBuffer buffer;
+        private final int slabIndex;
+        private final int offset;
+        private final int length;
+        private final int sizeClass;
+
+        Handle(ByteBuffer buffer, int slabIndex, int offset, int length, int sizeClass) {
+
+            this.buffer = buffer;
+            this.slabIndex = slabIndex;
+            this.offset = offset;
+            this.length = length;
+            this.sizeClass = sizeClass;
+        }
+
+        /**
+         * A copy of the value, on the heap
+         */
+        public Object get() {
+
+            final byte[] value = new byte[length];
+            ByteBuffer in = buffer.duplicate();
+            in.position(offset);
+            in.get(value);
+            return value;
+        }
+
+        /**
+         * The value where it is stored, without copying it
+         */
+        public ByteBuffer view() {
+
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.limit(offset + length);
+            return view.slice().asReadOnlyBuffer();
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+}
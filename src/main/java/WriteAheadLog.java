@@ -0,0 +1,448 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of committed transactions. Each record holds the commit version and the
+ * ValueChange/Remove deltas of one transaction, so replaying the log from the start rebuilds the
+ * master map.
+ * <p/>
+ * Appending only queues the record in memory. Committers then wait for their record to become
+ * durable, and whichever of them gets there first writes out everything queued so far and forces it
+ * with a single fsync, while the others wait. Under load, a whole batch of commits shares one
+ * force(), instead of each paying for its own (group commit).
+ * <p/>
+ * Record layout: [int payload length][int CRC32 of payload][long commit version][payload]. The
+ * payload is the Java serialization of the deltas, so keys and values must be Serializable. A record
+ * that is cut short or fails its checksum marks the end of the log: it was being written when the
+ * process stopped, and its commit was never acknowledged.
+ * <p/>
+ * The log is kept as numbered segment files in one directory, and only the newest segment is
+ * appended to. Once a checkpoint covers every record in an older segment, that segment is deleted,
+ * so a restart only reads the log written since the last checkpoint.
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final int HEADER_BYTES = 4 + 4 + 8;
+    private static final byte VALUE_CHANGE = 1;
+    private static final byte REMOVE = 2;
+    private static final String SEGMENT_PREFIX = "transactions-";
+    private static final String SEGMENT_SUFFIX = ".wal";
+
+    private final File directory;
+
+    // The segment being appended to, and the newest commit version appended to it
+    private FileChannel channel;
+    private long segmentNumber;
+    private long segmentMaxVersion;
+
+    // Segments that are no longer appended to, by number, with the newest commit version in each
+    private final SortedMap<Long, Long> closedSegments = new TreeMap<Long, Long>();
+    private long replayedCount;
+
+    // Records appended but not yet handed to a flush
+    private List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+    private long appendedSequence;
+    private long durableSequence;
+    private boolean flushInProgress;
+    private long flushCount;
+    private IOException failure;
+
+    private WriteAheadLog(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Open the log in a directory for appending, first replaying every complete record already in it.
+     * Anything after the last complete record is cut off.
+     *
+     * @param directory
+     * @param afterVersion records at or before this commit version are already covered by a checkpoint,
+     *                     and are skipped rather than replayed
+     * @param handler      receives each committed transaction, in log order
+     * @return
+     * @throws IOException
+     */
+    public static WriteAheadLog open(File directory, long afterVersion, ReplayHandler handler) throws IOException {
+
+        WriteAheadLog log = new WriteAheadLog(directory);
+        List<Long> segments = listSegments(directory);
+        for (int i = 0; i < segments.size(); i++) {
+
+            final long number = segments.get(i);
+            FileChannel segment = FileChannel.open(segmentFile(directory, number).toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            log.segmentMaxVersion = MetadataValue.NO_VERSION;
+            final long validLength = log.replay(segment, afterVersion, handler);
+
+            if (i < segments.size() - 1) {
+
+                // Only the newest segment can have been cut short. Every other one was forced before the
+                // log moved on from it.
+                final long size = segment.size();
+                segment.close();
+                if (validLength != size) {
+                    throw new IOException("Write-ahead log segment " + segmentFile(directory, number) +
+                            " is damaged at offset " + validLength);
+                }
+                log.closedSegments.put(number, log.segmentMaxVersion);
+            } else {
+                segment.truncate(validLength);
+                segment.position(validLength);
+                log.channel = segment;
+                log.segmentNumber = number;
+            }
+        }
+
+        if (log.channel == null) {
+            log.segmentNumber = 1;
+            log.segmentMaxVersion = MetadataValue.NO_VERSION;
+            log.channel = createSegment(directory, log.segmentNumber);
+        }
+        return log;
+    }
+
+    static File segmentFile(File directory, long number) {
+        return new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static List<Long> listSegments(File directory) throws IOException {
+
+        String[] names = directory.list();
+        if (names == null) {
+            throw new IOException("Could not list write-ahead log directory " + directory);
+        }
+
+        List<Long> segments = new ArrayList<Long>();
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static FileChannel createSegment(File directory, long number) throws IOException {
+
+        return FileChannel.open(segmentFile(directory, number).toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private long replay(FileChannel channel, long afterVersion, ReplayHandler handler) throws IOException {
+
+        final long size = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        long position = 0;
+        while (position + HEADER_BYTES <= size) {
+
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            final int length = header.getInt();
+            final int checksum = header.getInt();
+            final long version = header.getLong();
+            if (length < 0 || position + HEADER_BYTES + length > size) {
+                break;
+            }
+
+            final ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, position + HEADER_BYTES);
+            if (checksum != checksum(payload.array())) {
+                break;
+            }
+
+            // Records a checkpoint already covers still have to be checked, to find where the log ends,
+            // but there is no need to deserialize them
+            if (version > afterVersion) {
+                handler.apply(version, decode(payload.array()));
+                replayedCount++;
+            }
+            segmentMaxVersion = Math.max(segmentMaxVersion, version);
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Write-ahead log ended in the middle of a record");
+            }
+        }
+    }
+
+    private static int checksum(byte[] payload) {
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Turn a transaction's deltas into a log payload. Done before the commit takes any locks, since it is
+     * the expensive part of logging.
+     *
+     * @param changes
+     * @return
+     */
+    static byte[] encode(List<? extends StaticTransactionalKVStore.ValueChange<?, ?>> changes) {
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeInt(changes.size());
+            for (StaticTransactionalKVStore.ValueChange<?, ?> change : changes) {
+                out.writeByte(change instanceof StaticTransactionalKVStore.Remove ? REMOVE : VALUE_CHANGE);
+                out.writeObject(change.getKey());
+                if (!(change instanceof StaticTransactionalKVStore.Remove)) {
+                    out.writeObject(change.getValue());
+                }
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not serialize transaction for the write-ahead log", e);
+        }
+    }
+
+    private static List<StaticTransactionalKVStore.ValueChange<Object, Object>> decode(byte[] payload)
+            throws IOException {
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+        try {
+            final int count = in.readInt();
+            List<StaticTransactionalKVStore.ValueChange<Object, Object>> changes =
+                    new ArrayList<StaticTransactionalKVStore.ValueChange<Object, Object>>(count);
+            for (int i = 0; i < count; i++) {
+                final byte type = in.readByte();
+                final Object key = in.readObject();
+                if (type == REMOVE) {
+                    changes.add(new StaticTransactionalKVStore.Remove<Object, Object>(key));
+                } else {
+                    changes.add(new StaticTransactionalKVStore.ValueChange<Object, Object>(key, in.readObject()));
+                }
+            }
+            return changes;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Write-ahead log refers to a class that is not available", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Queue a committed transaction for writing. The commit is not durable until awaitDurable returns for
+     * the sequence number handed back here.
+     *
+     * @param commitVersion
+     * @param payload       from encode()
+     * @return
+     */
+    public synchronized long append(long commitVersion, byte[] payload) {
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        record.putInt(payload.length);
+        record.putInt(checksum(payload));
+        record.putLong(commitVersion);
+        record.put(payload);
+        record.flip();
+
+        pending.add(record);
+        segmentMaxVersion = Math.max(segmentMaxVersion, commitVersion);
+        return ++appendedSequence;
+    }
+
+    /**
+     * Block until the record with the given sequence number is on disk. If no flush is running, the
+     * caller becomes the one that flushes, taking every record queued so far along with its own.
+     *
+     * @param sequence
+     * @throws IOException if the log could not be written. The log is unusable from then on.
+     */
+    public void awaitDurable(long sequence) throws IOException {
+
+        // A committer that has already changed the master map has to see its record through, so an
+        // interrupt only gets passed on once the wait is over
+        boolean interrupted = false;
+        try {
+            while (true) {
+
+                final List<ByteBuffer> batch;
+                final long batchEnd;
+                final FileChannel target;
+                synchronized (this) {
+                    while (true) {
+                        if (failure != null) {
+                            throw new IOException("Write-ahead log can no longer be written to", failure);
+                        }
+                        if (durableSequence >= sequence) {
+                            return;
+                        }
+                        if (!flushInProgress) {
+                            break;
+                        }
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+
+                    flushInProgress = true;
+                    batch = pending;
+                    batchEnd = appendedSequence;
+                    target = channel;
+                    pending = new ArrayList<ByteBuffer>();
+                }
+
+                IOException error = null;
+                try {
+                    write(target, batch);
+                    target.force(false);
+                } catch (IOException e) {
+                    error = e;
+                }
+
+                synchronized (this) {
+                    flushInProgress = false;
+                    if (error != null) {
+                        failure = error;
+                    } else {
+                        durableSequence = batchEnd;
+                        flushCount++;
+                    }
+                    notifyAll();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void write(FileChannel channel, List<ByteBuffer> batch) throws IOException {
+
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    /**
+     * How many times the log has been forced to disk. Compared with the number of commits, this shows how
+     * well commits are being grouped.
+     */
+    public synchronized long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * Start appending to a new segment. Records already forced stay in the old segment, and anything
+     * still queued goes to the new one.
+     *
+     * @throws IOException
+     */
+    public synchronized void roll() throws IOException {
+
+        // The flush in progress writes to the current segment, so let it finish first
+        boolean interrupted = false;
+        try {
+            while (flushInProgress) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (failure != null) {
+            throw new IOException("Write-ahead log can no longer be written to", failure);
+        }
+
+        FileChannel next = createSegment(directory, segmentNumber + 1);
+        channel.close();
+        closedSegments.put(segmentNumber, segmentMaxVersion);
+
+        channel = next;
+        segmentNumber++;
+        segmentMaxVersion = MetadataValue.NO_VERSION;
+        for (ByteBuffer record : pending) {
+            segmentMaxVersion = Math.max(segmentMaxVersion, record.getLong(8));
+        }
+    }
+
+    /**
+     * Delete the segments no longer appended to whose records are all at or before the given commit
+     * version. Called once a checkpoint of that version is safely on disk.
+     *
+     * @param checkpointVersion
+     * @throws IOException
+     */
+    public synchronized void deleteSegmentsThrough(long checkpointVersion) throws IOException {
+
+        Iterator<Map.Entry<Long, Long>> segments = closedSegments.entrySet().iterator();
+        while (segments.hasNext()) {
+
+            Map.Entry<Long, Long> segment = segments.next();
+            if (segment.getValue() > checkpointVersion) {
+                // Keep the log contiguous from the oldest segment still needed
+                break;
+            }
+
+            File file = segmentFile(directory, segment.getKey());
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not delete write-ahead log segment " + file);
+            }
+            segments.remove();
+        }
+    }
+
+    synchronized File getCurrentSegment() {
+        return segmentFile(directory, segmentNumber);
+    }
+
+    synchronized int getClosedSegmentCount() {
+        return closedSegments.size();
+    }
+
+    /**
+     * How many transactions were replayed when the log was opened, not counting those skipped because a
+     * checkpoint already covered them
+     */
+    long getReplayedCount() {
+        return replayedCount;
+    }
+
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Receives the transactions found in the log when it is opened
+     */
+    public interface ReplayHandler {
+
+        void apply(long commitVersion, List<StaticTransactionalKVStore.ValueChange<Object, Object>> changes);
+    }
+}
@@ -0,0 +1,165 @@
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests around restarting a store from a checkpoint plus the tail of the write-ahead log.
+ */
+public class TestCheckpoints {
+
+    final static String KEY_1 = "key1";
+    final static String KEY_2 = "key2";
+    final static String KEY_3 = "key3";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    /**
+     * Given:  A store that was checkpointed, then had keys overwritten, removed and added
+     * Assert: A restart sees the latest value of every key, and only replays the commits made after the
+     *         checkpoint
+     */
+    public void testRestartReplaysOnlyLogAfterCheckpoint() throws Exception {
+
+        final File dataDirectory = folder.newFolder("store");
+
+        TransactionalKVStore<String, Object> store = new TransactionalKVStore<String, Object>(dataDirectory);
+        store.begin(1);
+        store.write(KEY_1, 10, 1);
+        store.write(KEY_2, "twenty", 1);
+        store.commit(1);
+
+        final long checkpointVersion = store.checkpoint();
+        Assert.assertEquals(store.getCommittedVersion(), checkpointVersion);
+
+        store.begin(2);
+        store.write(KEY_1, 11L, 2);
+        store.remove(KEY_2, 2);
+        store.commit(2);
+
+        store.begin(3);
+        store.write(KEY_3, new byte[]{3}, 3);
+        store.commit(3);
+
+        final long versionBeforeRestart = store.getCommittedVersion();
+        store.close();
+
+        TransactionalKVStore<String, Object> reopened = new TransactionalKVStore<String, Object>(dataDirectory);
+        Assert.assertEquals("Only the two commits after the checkpoint should have been replayed",
+                2, reopened.getWriteAheadLog().getReplayedCount());
+        Assert.assertEquals(versionBeforeRestart, reopened.getCommittedVersion());
+
+        reopened.begin(4);
+        Assert.assertEquals(11L, reopened.read(KEY_1, 4));
+        Assert.assertNull("A key removed after the checkpoint came back", reopened.read(KEY_2, 4));
+        Assert.assertEquals(3, ((byte[]) reopened.read(KEY_3, 4))[0]);
+        reopened.commit(4);
+        reopened.close();
+    }
+
+    @Test
+    /**
+     * Given:  A store reopened from a checkpoint
+     * Assert: Values are only decoded when read, and a new checkpoint carries undecoded values over intact
+     */
+    public void testCheckpointedValuesDecodedLazily() throws Exception {
+
+        final File dataDirectory = folder.newFolder("lazy");
+
+        TransactionalKVStore<String, String> store = new TransactionalKVStore<String, String>(dataDirectory);
+        store.begin(1);
+        store.write(KEY_1, "one", 1);
+        store.write(KEY_2, "two", 1);
+        store.commit(1);
+        store.checkpoint();
+        store.close();
+
+        TransactionalKVStore<String, String> reopened = new TransactionalKVStore<String, String>(dataDirectory);
+        Checkpoint.LazyValue version1 =
+                (Checkpoint.LazyValue) reopened.masterMap.get(KEY_1).getVersionAsOf(Long.MAX_VALUE).getStored();
+        Checkpoint.LazyValue version2 =
+                (Checkpoint.LazyValue) reopened.masterMap.get(KEY_2).getVersionAsOf(Long.MAX_VALUE).getStored();
+        Assert.assertFalse(version1.isDecoded());
+
+        reopened.begin(2);
+        Assert.assertEquals("one", reopened.read(KEY_1, 2));
+        reopened.write(KEY_3, "three", 2);
+        reopened.commit(2);
+        Assert.assertTrue(version1.isDecoded());
+        Assert.assertFalse("Reading one key should not decode the others", version2.isDecoded());
+
+        reopened.checkpoint();
+        reopened.close();
+
+        TransactionalKVStore<String, String> reopenedAgain = new TransactionalKVStore<String, String>(dataDirectory);
+        Assert.assertEquals(0, reopenedAgain.getWriteAheadLog().getReplayedCount());
+        reopenedAgain.begin(3);
+        Assert.assertEquals("one", reopenedAgain.read(KEY_1, 3));
+        Assert.assertEquals("two", reopenedAgain.read(KEY_2, 3));
+        Assert.assertEquals("three", reopenedAgain.read(KEY_3, 3));
+        reopenedAgain.close();
+    }
+
+    @Test
+    /**
+     * Given:  Clients committing continuously while checkpoints are being taken
+     * Assert: Checkpoints do not stop commits, and every acknowledged commit survives a restart
+     */
+    public void testCheckpointWhileCommitting() throws Exception {
+
+        final int CONCURRENT_CLIENTS = 4;
+        final File dataDirectory = folder.newFolder("busy");
+        final TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>(dataDirectory);
+        final AtomicInteger transactionIds = new AtomicInteger();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final int[] lastCommitted = new int[CONCURRENT_CLIENTS];
+
+        ExecutorService execService = Executors.newFixedThreadPool(CONCURRENT_CLIENTS);
+        Future[] futures = new Future[CONCURRENT_CLIENTS];
+        for (int i = 0; i < CONCURRENT_CLIENTS; i++) {
+            final int CLIENT_ID = i;
+            futures[i] = execService.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (int commit = 1; running.get(); commit++) {
+                        final int T_ID = transactionIds.incrementAndGet();
+                        store.begin(T_ID);
+                        store.write("client" + CLIENT_ID, commit, T_ID);
+                        store.write("client" + CLIENT_ID + "-" + commit, commit, T_ID);
+                        store.commit(T_ID);
+                        lastCommitted[CLIENT_ID] = commit;
+                    }
+                    return null;
+                }
+            });
+        }
+
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(20);
+            store.checkpoint();
+        }
+        running.set(false);
+        execService.shutdown();
+        for (Future f : futures) {
+            f.get(60, TimeUnit.SECONDS);
+        }
+        store.close();
+
+        TransactionalKVStore<String, Integer> reopened = new TransactionalKVStore<String, Integer>(dataDirectory);
+        reopened.begin(0);
+        for (int i = 0; i < CONCURRENT_CLIENTS; i++) {
+            Assert.assertTrue("Client " + i + " never got to commit", lastCommitted[i] > 0);
+            Assert.assertEquals(Integer.valueOf(lastCommitted[i]), reopened.read("client" + i, 0));
+            for (int commit = 1; commit <= lastCommitted[i]; commit++) {
+                Assert.assertEquals(Integer.valueOf(commit), reopened.read("client" + i + "-" + commit, 0));
+            }
+        }
+        reopened.close();
+    }
+}
@@ -0,0 +1,103 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for tracking the keys that transactions are rolled back on the most.
+ */
+public class TestConflictHeatmap {
+
+    @Test
+    /**
+     * Given:  A heatmap tracking 4 keys, and conflicts on 2 hot keys mixed with many on different cold keys
+     * Assert: The hot keys are the top 2, their counts are no lower than their true counts and no higher
+     *         than that plus their overestimate, and their latest conflicts are kept latest first
+     */
+    public void testHotKeysSurviveColdOnes() {
+
+        ConflictHeatmap heatmap = new ConflictHeatmap(4);
+        for (int i = 0; i < 100; i++) {
+            heatmap.recordConflict("hot", i, 500 + i, 1000 + i);
+            if (i % 2 == 0) {
+                heatmap.recordConflict("warm", i, 500 + i, 2000 + i);
+            }
+            heatmap.recordConflict("cold" + i, i, 500 + i, 3000 + i);
+        }
+        heatmap.recordRetry("hot");
+        heatmap.recordRetry("cold0");
+
+        List<ConflictHeatmap.HotKey> top = heatmap.topKeys(2);
+        Assert.assertEquals(2, top.size());
+        Assert.assertEquals("hot", top.get(0).getKey());
+        Assert.assertEquals("warm", top.get(1).getKey());
+        Assert.assertEquals(250, heatmap.getTotalConflicts());
+
+        for (ConflictHeatmap.HotKey key : top) {
+            long trueCount = key.getKey().equals("hot") ? 100 : 50;
+            Assert.assertTrue(key.getConflicts() >= trueCount);
+            Assert.assertTrue(key.getConflicts() - key.getOverestimate() <= trueCount);
+        }
+        Assert.assertEquals(1, top.get(0).getRetries());
+
+        List<ConflictHeatmap.Conflict> recent = top.get(0).getRecentConflicts();
+        Assert.assertEquals(ConflictHeatmap.RECENT_CONFLICTS, recent.size());
+        Assert.assertEquals(99, recent.get(0).getAbortedTransactionId());
+        Assert.assertEquals(599, recent.get(0).getCommittedTransactionId());
+        Assert.assertEquals(1099, recent.get(0).getInvalidatingVersion());
+        Assert.assertEquals(92, recent.get(recent.size() - 1).getAbortedTransactionId());
+    }
+
+    @Test
+    /**
+     * Given:  A store whose commits are rolled back on one key, reporting its hot keys periodically
+     * Assert: The conflicts are tracked with the transaction and commit that caused them, a report hands
+     *         them over, and the heatmap starts counting again afterwards
+     */
+    public void testStoreReportsRolledBackKeys() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        for (int i = 0; i < 3; i++) {
+            Transaction<String, Integer> loser = store.begin();
+            loser.read("balance");
+            loser.write("balance", i);
+
+            Transaction<String, Integer> winner = store.begin();
+            winner.write("balance", 10 + i);
+            winner.commit();
+
+            try {
+                loser.commit();
+                Assert.fail("The read of balance should have conflicted");
+            } catch (RetryLaterException e) {
+                ConflictHeatmap.Conflict latest =
+                        store.getConflictHeatmap().topKeys(1).get(0).getRecentConflicts().get(0);
+                Assert.assertEquals(loser.getId(), latest.getAbortedTransactionId());
+                Assert.assertEquals(winner.getId(), latest.getCommittedTransactionId());
+                Assert.assertEquals(e.getConflictingVersion(), latest.getInvalidatingVersion());
+            }
+        }
+
+        final AtomicReference<List<ConflictHeatmap.HotKey>> reported = new AtomicReference<List<ConflictHeatmap.HotKey>>();
+        final CountDownLatch reportedOnce = new CountDownLatch(1);
+        ScheduledFuture<?> reports = store.reportHotKeys(10, TimeUnit.MILLISECONDS, 5, new ConflictHeatmap.Reporter() {
+            public void report(List<ConflictHeatmap.HotKey> hotKeys, long totalConflicts) {
+                if (totalConflicts > 0) {
+                    reported.set(hotKeys);
+                    reportedOnce.countDown();
+                }
+            }
+        });
+        Assert.assertTrue(reportedOnce.await(5, TimeUnit.SECONDS));
+        reports.cancel(false);
+
+        Assert.assertEquals(1, reported.get().size());
+        Assert.assertEquals("balance", reported.get().get(0).getKey());
+        Assert.assertEquals(3, reported.get().get(0).getConflicts());
+        Assert.assertEquals(0, store.getConflictHeatmap().getTotalConflicts());
+    }
+}
@@ -0,0 +1,118 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for what rolls a commit back under each isolation level.
+ */
+public class TestIsolationLevels {
+
+    static TransactionalKVStore<String, Integer> populated(IsolationLevel level) throws RetryLaterException {
+
+        TransactionalKVStore<String, Integer> store = TestRangeScans.populated("x", "y");
+        store.setIsolationLevel(level);
+        return store;
+    }
+
+    /**
+     * Commit the transaction, returning whether it was rolled back instead
+     */
+    static boolean rolledBack(Transaction<String, Integer> transaction) {
+
+        try {
+            transaction.commit();
+            return false;
+        } catch (RetryLaterException e) {
+            return true;
+        }
+    }
+
+    @Test
+    /**
+     * Given:  Two concurrent transactions that both write a key without reading it, and a third that reads
+     *         a key a concurrent commit then overwrites, but writes nothing anyone read
+     * Assert: By default the second writer and the reader are rolled back. Under serializable snapshot
+     *         isolation all of them commit, and the last write wins.
+     */
+    public void testBlindWritesAndStaleReadsCommitUnderSerializableSnapshot() throws Exception {
+
+        for (IsolationLevel level : new IsolationLevel[]{IsolationLevel.SERIALIZABLE, IsolationLevel.SERIALIZABLE_SNAPSHOT}) {
+
+            TransactionalKVStore<String, Integer> store = populated(level);
+
+            Transaction<String, Integer> first = store.begin();
+            Transaction<String, Integer> second = store.begin();
+            Transaction<String, Integer> reader = store.begin();
+            first.write("x", 10);
+            second.write("x", 20);
+            Assert.assertEquals(Integer.valueOf(0), reader.read("x"));
+            reader.write("z", 30);
+
+            Assert.assertFalse(rolledBack(first));
+            final boolean serializable = level == IsolationLevel.SERIALIZABLE;
+            Assert.assertEquals(level.toString(), serializable, rolledBack(second));
+            Assert.assertEquals(level.toString(), serializable, rolledBack(reader));
+
+            Assert.assertEquals(Integer.valueOf(serializable ? 10 : 20), store.begin().read("x"));
+        }
+    }
+
+    @Test
+    /**
+     * Given:  Two concurrent transactions that each read both keys and write one of them, a different one
+     *         each (write skew)
+     * Assert: Snapshot isolation commits both, which no serial order would. Serializable snapshot isolation
+     *         rolls the second back on the key the first wrote.
+     */
+    public void testWriteSkewOnlyRolledBackWhenSerializable() throws Exception {
+
+        for (IsolationLevel level : new IsolationLevel[]{IsolationLevel.SNAPSHOT, IsolationLevel.SERIALIZABLE_SNAPSHOT}) {
+
+            TransactionalKVStore<String, Integer> store = populated(level);
+
+            Transaction<String, Integer> first = store.begin();
+            Transaction<String, Integer> second = store.begin();
+            first.write("x", first.read("x") + first.read("y") + 1);
+            second.write("y", second.read("x") + second.read("y") + 1);
+
+            Assert.assertFalse(rolledBack(first));
+            if (level == IsolationLevel.SNAPSHOT) {
+                Assert.assertFalse(rolledBack(second));
+            } else {
+                try {
+                    second.commit();
+                    Assert.fail("Write skew should have been rolled back");
+                } catch (RetryLaterException e) {
+                    Assert.assertEquals("x", e.getConflictingKey());
+                }
+            }
+        }
+    }
+
+    @Test
+    /**
+     * Given:  Under serializable snapshot isolation, two concurrent transactions that add one to the same
+     *         key, and two that each scan a range and insert a different key into it
+     * Assert: The second of each pair is rolled back, so no update is lost and neither insert goes unseen
+     */
+    public void testLostUpdatesAndPhantomsRolledBack() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = populated(IsolationLevel.SERIALIZABLE_SNAPSHOT);
+
+        Transaction<String, Integer> first = store.begin();
+        Transaction<String, Integer> second = store.begin();
+        first.write("x", first.read("x") + 1);
+        second.write("x", second.read("x") + 1);
+        Assert.assertFalse(rolledBack(first));
+        Assert.assertTrue(rolledBack(second));
+        Assert.assertEquals(Integer.valueOf(1), store.begin().read("x"));
+
+        Transaction<String, Integer> firstScanner = store.begin();
+        Transaction<String, Integer> secondScanner = store.begin();
+        Assert.assertEquals("xy", TestRangeScans.keysOf(firstScanner.scan("a", "z", 10)));
+        Assert.assertEquals("xy", TestRangeScans.keysOf(secondScanner.scan("a", "z", 10)));
+        firstScanner.write("m", 1);
+        secondScanner.write("n", 1);
+        Assert.assertFalse(rolledBack(firstScanner));
+        Assert.assertTrue(rolledBack(secondScanner));
+    }
+}
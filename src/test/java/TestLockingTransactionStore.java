@@ -2,9 +2,12 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -288,4 +291,181 @@ public class TestLockingTransactionStore {
             Assert.assertEquals(expectedKVs.get(key), ikv.read(key, FOURTH_COMMIT));
         }
     }
+
+    @Test
+    /**
+     * Given: A transaction holding a key, and another transaction on another thread beginning on that key
+     * Assert: The second begin waits rather than being turned away, starts as soon as the first commits,
+     * and reads what the first wrote
+     */
+    public void testBlockedBeginStartsOnCommit() throws Exception {
+
+        final LockingTransactionalKVStore<String, Integer> ikv = new LockingTransactionalKVStore<String, Integer>();
+        final String KEY = "key1";
+        final List<String> KEY_LIST = Arrays.asList(KEY);
+
+        ikv.begin(0, KEY_LIST);
+        ikv.write(KEY, 42, 0);
+
+        final AtomicLong startedAt = new AtomicLong();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Integer> waiter = executor.submit(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                ikv.begin(1, KEY_LIST, 10, TimeUnit.SECONDS);
+                startedAt.set(System.nanoTime());
+                int value = ikv.read(KEY, 1);
+                ikv.commit(1);
+                return value;
+            }
+        });
+
+        Thread.sleep(100);
+        Assert.assertFalse("The second transaction should be waiting for the key", waiter.isDone());
+        final long committedAt = System.nanoTime();
+        ikv.commit(0);
+
+        Assert.assertEquals(42, (int) waiter.get(10, TimeUnit.SECONDS));
+        Assert.assertTrue("The waiting transaction should start right after the commit, not after a back-off",
+                TimeUnit.NANOSECONDS.toMillis(startedAt.get() - committedAt) < 100);
+        executor.shutdown();
+    }
+
+    @Test
+    /**
+     * Given: Many threads incrementing overlapping sets of keys, each listing its keys in a different order
+     * Assert: No transaction deadlocks or loses an update, and every increment is in the final values
+     */
+    public void testConcurrentTransactionsDoNotDeadlock() throws Exception {
+
+        final LockingTransactionalKVStore<String, Integer> ikv = new LockingTransactionalKVStore<String, Integer>();
+        final int THREADS = 8;
+        final int TRANSACTIONS_PER_THREAD = 200;
+        final String[] KEYS = {"key1", "key2", "key3", "key4"};
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> clients = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int THREAD = t;
+            clients.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    for (int i = 0; i < TRANSACTIONS_PER_THREAD; i++) {
+
+                        final int T_ID = THREAD * TRANSACTIONS_PER_THREAD + i;
+                        // Two keys, in an order that differs from thread to thread
+                        List<String> keys = Arrays.asList(KEYS[(THREAD + i) % KEYS.length],
+                                KEYS[(THREAD + i + 1 + THREAD % 2) % KEYS.length]);
+                        if (THREAD % 2 == 0) {
+                            keys = Arrays.asList(keys.get(1), keys.get(0));
+                        }
+
+                        ikv.begin(T_ID, keys, 30, TimeUnit.SECONDS);
+                        for (String key : keys) {
+                            Integer value = ikv.read(key, T_ID);
+                            ikv.write(key, value == null ? 1 : value + 1, T_ID);
+                        }
+                        ikv.commit(T_ID);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> client : clients) {
+            client.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        ikv.begin(Integer.MAX_VALUE, Arrays.asList(KEYS));
+        int total = 0;
+        for (String key : KEYS) {
+            total += ikv.read(key, Integer.MAX_VALUE);
+        }
+        Assert.assertEquals(THREADS * TRANSACTIONS_PER_THREAD * 2, total);
+    }
+
+    @Test
+    /**
+     * Given: Two transactions reading the same key, and a third that writes it
+     * Assert: The readers hold the key together without waiting, and the writer waits until both have committed
+     */
+    public void testReadersShareAKey() throws Exception {
+
+        final LockingTransactionalKVStore<String, Integer> ikv = new LockingTransactionalKVStore<String, Integer>();
+        final String KEY = "key1";
+        ikv.begin(0);
+        ikv.write(KEY, 1, 0);
+        ikv.commit(0);
+
+        ikv.begin(1);
+        ikv.begin(2);
+        Assert.assertEquals(1, (int) ikv.read(KEY, 1));
+        Assert.assertEquals(1, (int) ikv.read(KEY, 2));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> writer = executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                ikv.begin(3);
+                ikv.write(KEY, 2, 3);
+                ikv.commit(3);
+                return null;
+            }
+        });
+
+        Thread.sleep(100);
+        ikv.commit(1);
+        Thread.sleep(100);
+        Assert.assertFalse("The writer should wait for every reader", writer.isDone());
+        ikv.commit(2);
+        writer.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        ikv.begin(4);
+        Assert.assertEquals(2, (int) ikv.read(KEY, 4));
+    }
+
+    @Test
+    /**
+     * Given: Two transactions that each read a key and then write the key the other read, so each waits for the other
+     * Assert: The deadlock is found without any timeout, the younger transaction is rolled back, and the older one
+     * goes on to commit
+     */
+    public void testDeadlockRollsBackTheYoungest() throws Exception {
+
+        final LockingTransactionalKVStore<String, Integer> ikv = new LockingTransactionalKVStore<String, Integer>();
+        final String KEY_1 = "key1";
+        final String KEY_2 = "key2";
+        final int OLDER = 1;
+        final int YOUNGER = 2;
+
+        ikv.begin(OLDER);
+        ikv.begin(YOUNGER);
+        ikv.read(KEY_1, OLDER);
+        ikv.read(KEY_2, YOUNGER);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> older = executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                ikv.write(KEY_2, 1, OLDER);
+                return null;
+            }
+        });
+        Thread.sleep(100);
+        Assert.assertFalse("The older transaction should be waiting for the younger one's read", older.isDone());
+
+        try {
+            ikv.write(KEY_1, 2, YOUNGER);
+            Assert.fail("Closing the cycle should have rolled the younger transaction back");
+        } catch (TransactionAbortedException e) {
+            Assert.assertEquals(YOUNGER, e.getTransactionId());
+        }
+        Assert.assertFalse(ikv.transactionsAndKeys.containsKey(YOUNGER));
+
+        older.get(10, TimeUnit.SECONDS);
+        ikv.write(KEY_1, 1, OLDER);
+        ikv.commit(OLDER);
+        executor.shutdown();
+
+        ikv.begin(3);
+        Assert.assertEquals(1, (int) ikv.read(KEY_1, 3));
+        Assert.assertEquals(1, (int) ikv.read(KEY_2, 3));
+    }
 }
@@ -0,0 +1,187 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that LongTransactionalKVStore keeps the transactional behaviour of TransactionalKVStore.
+ */
+public class TestLongTransactionalStore {
+
+    final static String KEY_1 = "key1";
+    final static String KEY_2 = "key2";
+
+    @Test
+    /**
+     * Given:  A transaction, and a read-only one, that began before another transaction overwrote and
+     *         removed keys several times
+     * Assert: Both still read the values from when they began, and new transactions see the latest
+     */
+    public void testSnapshotReads() throws Exception {
+
+        LongTransactionalKVStore<String> store = new LongTransactionalKVStore<String>();
+        store.begin(1);
+        store.write(KEY_1, 10, 1);
+        store.commit(1);
+
+        store.begin(2);
+        store.beginReadOnly(3);
+
+        for (int i = 1; i <= 3; i++) {
+            LongTransaction<String> writer = store.begin();
+            writer.write(KEY_1, 10 + i);
+            writer.write(KEY_2, i);
+            writer.commit();
+        }
+        LongTransaction<String> remover = store.begin();
+        remover.remove(KEY_1);
+        remover.commit();
+
+        Assert.assertEquals(10, store.read(KEY_1, 2));
+        Assert.assertFalse(store.containsKey(KEY_2, 2));
+        Assert.assertEquals(10, store.read(KEY_1, 3));
+        Assert.assertTrue(store.containsKey(KEY_1, 3));
+        store.commit(3);
+
+        LongTransaction<String> after = store.beginReadOnly();
+        Assert.assertFalse(after.containsKey(KEY_1));
+        Assert.assertEquals(0, after.read(KEY_1));
+        Assert.assertEquals(3, after.read(KEY_2));
+        after.commit();
+    }
+
+    @Test
+    /**
+     * Given:  A transaction that read a key another transaction then wrote and committed
+     * Assert: Its commit is rolled back naming the key, and its writes are not applied
+     */
+    public void testStaleReadIsRolledBack() throws Exception {
+
+        LongTransactionalKVStore<String> store = new LongTransactionalKVStore<String>();
+        LongTransaction<String> stale = store.begin();
+        stale.read(KEY_1);
+        stale.write(KEY_2, 1);
+
+        LongTransaction<String> competing = store.begin();
+        competing.write(KEY_1, 5);
+        competing.commit();
+
+        try {
+            stale.commit();
+            Assert.fail("A read of a key written since the transaction began should have been rolled back");
+        } catch (RetryLaterException e) {
+            Assert.assertEquals(KEY_1, e.getConflictingKey());
+            Assert.assertEquals(store.getCommittedVersion(), e.getConflictingVersion());
+        }
+
+        try {
+            stale.read(KEY_1);
+            Assert.fail("A rolled back transaction should not be usable");
+        } catch (NoSuchTransactionException expected) {
+        }
+
+        LongTransaction<String> after = store.beginReadOnly();
+        Assert.assertFalse(after.containsKey(KEY_2));
+        after.commit();
+    }
+
+    @Test
+    /**
+     * Given:  Two concurrent transactions incrementing the same key, one of which also writes and then
+     *         increments a second key
+     * Assert: Neither is rolled back, the increments add up, and each reads back its own increments
+     */
+    public void testIncrementsDoNotConflict() throws Exception {
+
+        LongTransactionalKVStore<String> store = new LongTransactionalKVStore<String>();
+        LongTransaction<String> first = store.begin();
+        LongTransaction<String> second = store.begin();
+
+        first.increment(KEY_1, 2);
+        second.increment(KEY_1, 3);
+        second.write(KEY_2, 10);
+        second.increment(KEY_2, 1);
+        Assert.assertEquals(3, second.read(KEY_1));
+        Assert.assertEquals(11, second.read(KEY_2));
+
+        first.commit();
+        try {
+            second.commit();
+            Assert.fail("The read of KEY_1 should make the second transaction depend on its snapshot");
+        } catch (RetryLaterException expected) {
+        }
+
+        LongTransaction<String> blind = store.begin();
+        blind.increment(KEY_1, 3);
+        LongTransaction<String> other = store.begin();
+        other.increment(KEY_1, 4);
+        other.commit();
+        blind.commit();
+
+        LongTransaction<String> after = store.beginReadOnly();
+        Assert.assertEquals(9, after.read(KEY_1));
+        Assert.assertFalse(after.containsKey(KEY_2));
+        after.commit();
+    }
+
+    @Test
+    /**
+     * Given:  Several threads incrementing a few keys after reading them, retrying when rolled back
+     * Assert: Every increment is applied once, and the versions kept for snapshots are dropped again
+     *         once no transaction is running
+     */
+    public void testParallelReadModifyWrite() throws Exception {
+
+        final int THREADS = 4;
+        final int INCREMENTS = 2000;
+        final String[] KEYS = {"a", "b", "c"};
+        final LongTransactionalKVStore<String> store = new LongTransactionalKVStore<String>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < THREADS; t++) {
+            results.add(executor.submit(new Callable<Integer>() {
+                public Integer call() {
+                    int retries = 0;
+                    for (int i = 0; i < INCREMENTS; i++) {
+                        final String key = KEYS[i % KEYS.length];
+                        while (true) {
+                            LongTransaction<String> transaction = store.begin();
+                            transaction.write(key, transaction.read(key) + 1);
+                            try {
+                                transaction.commit();
+                                break;
+                            } catch (RetryLaterException e) {
+                                retries++;
+                            }
+                        }
+                    }
+                    return retries;
+                }
+            }));
+        }
+        for (Future<Integer> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        long total = 0;
+        LongTransaction<String> reader = store.beginReadOnly();
+        for (String key : KEYS) {
+            total += reader.read(key);
+        }
+        reader.commit();
+        Assert.assertEquals(THREADS * INCREMENTS, total);
+
+        LongTransaction<String> last = store.begin();
+        last.increment(KEYS[0], 1);
+        last.commit();
+        Assert.assertEquals(2, store.getVersionCount(KEYS[0]));
+    }
+}
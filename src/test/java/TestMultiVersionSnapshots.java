@@ -0,0 +1,232 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests around reading from multi-version snapshots instead of a copy of the master map.
+ */
+public class TestMultiVersionSnapshots {
+
+    final static String KEY_1 = "key1";
+    final static String KEY_2 = "key2";
+
+    @Test
+    /**
+     * Given:  A transaction that began before another transaction overwrote a key
+     * Assert: The first transaction still reads the value from when it began
+     */
+    public void testReadResolvesSnapshotVersion() throws InterruptedException, RetryLaterException {
+
+        final TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        final int T_ID_1 = 1;
+        final int T_ID_2 = 2;
+        final int T_ID_3 = 3;
+
+        store.begin(T_ID_1);
+        store.write(KEY_1, 10, T_ID_1);
+        store.commit(T_ID_1);
+
+        store.begin(T_ID_2);
+
+        store.begin(T_ID_3);
+        store.write(KEY_1, 20, T_ID_3);
+        store.write(KEY_2, 30, T_ID_3);
+        store.commit(T_ID_3);
+
+        Assert.assertEquals("Snapshot read saw a commit made after the transaction began",
+                Integer.valueOf(10), store.read(KEY_1, T_ID_2));
+        Assert.assertNull("Snapshot read saw a key created after the transaction began",
+                store.read(KEY_2, T_ID_2));
+    }
+
+    @Test
+    /**
+     * Given:  A transaction that has written a key
+     * Assert: It reads back its own write rather than the snapshot value
+     */
+    public void testReadYourOwnWrite() throws InterruptedException, RetryLaterException {
+
+        final TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        final int T_ID_1 = 1;
+        final int T_ID_2 = 2;
+
+        store.begin(T_ID_1);
+        store.write(KEY_1, 10, T_ID_1);
+        store.commit(T_ID_1);
+
+        store.begin(T_ID_2);
+        store.write(KEY_1, 11, T_ID_2);
+        Assert.assertEquals(Integer.valueOf(11), store.read(KEY_1, T_ID_2));
+
+        store.remove(KEY_1, T_ID_2);
+        Assert.assertNull("A removed key was still visible to the transaction that removed it",
+                store.read(KEY_1, T_ID_2));
+    }
+
+    @Test
+    /**
+     * Given:  A key overwritten several times while a transaction holds an old snapshot
+     * Assert: Old versions are kept while the snapshot is open, and reclaimed once it is finished
+     */
+    public void testVersionsReclaimedAfterOldestSnapshotEnds() throws InterruptedException, RetryLaterException {
+
+        final TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        final int READER_T_ID = 100;
+
+        store.begin(0);
+        store.write(KEY_1, 0, 0);
+        store.commit(0);
+
+        store.begin(READER_T_ID);
+
+        for (int i = 1; i <= 5; i++) {
+            store.begin(i);
+            store.write(KEY_1, i, i);
+            store.commit(i);
+        }
+
+        store.reclaimObsoleteVersions();
+        Assert.assertEquals("The version visible to the open snapshot should have been kept",
+                Integer.valueOf(0), store.read(KEY_1, READER_T_ID));
+        Assert.assertEquals("Only versions newer than the open snapshot should be left, plus its own",
+                6, store.masterMap.get(KEY_1).getVersionCount());
+
+        // The key changed underneath the reader, so it gets rolled back. Either way its snapshot is done.
+        try {
+            store.commit(READER_T_ID);
+            Assert.fail("The reader should have been rolled back");
+        } catch (RetryLaterException rte) {
+            store.reclaimObsoleteVersions();
+        }
+        Assert.assertEquals("Versions were not reclaimed after the last snapshot needing them ended",
+                1, store.masterMap.get(KEY_1).getVersionCount());
+        Assert.assertEquals(Integer.valueOf(5), store.masterMap.get(KEY_1).getValue());
+    }
+
+    @Test
+    /**
+     * Given:  A read-only transaction that began before a key was overwritten
+     * Assert: It reads the value from when it began, commits without validation, leaves no trace on
+     *         the master map, and refuses to write
+     */
+    public void testReadOnlyTransactionReadsSnapshot() throws InterruptedException, RetryLaterException {
+
+        final TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        final int READER_T_ID = 100;
+
+        store.begin(1);
+        store.write(KEY_1, 10, 1);
+        store.commit(1);
+        final long lastReadBefore = store.masterMap.get(KEY_1).getLastRead();
+
+        store.beginReadOnly(READER_T_ID);
+
+        store.begin(2);
+        store.write(KEY_1, 20, 2);
+        store.commit(2);
+
+        Assert.assertEquals(Integer.valueOf(10), store.read(KEY_1, READER_T_ID));
+        Assert.assertNull(store.read(KEY_2, READER_T_ID));
+        try {
+            store.write(KEY_1, 30, READER_T_ID);
+            Assert.fail("A read-only transaction was allowed to write");
+        } catch (IllegalStateException ise) {
+            Assert.assertTrue(ise.getLocalizedMessage().contains("read-only"));
+        }
+
+        // Would have been rolled back if it had been an ordinary transaction
+        store.commit(READER_T_ID);
+        Assert.assertEquals("A read-only transaction touched the master map",
+                lastReadBefore, store.masterMap.get(KEY_1).getLastRead());
+        Assert.assertFalse("A read-only transaction left a local copy behind",
+                store.masterMap.containsKey(KEY_2));
+
+        try {
+            store.read(KEY_1, READER_T_ID);
+            Assert.fail("A read-only transaction was still usable after commit");
+        } catch (NoSuchTransactionException nste) {
+            // expected
+        }
+    }
+
+    @Test
+    /**
+     * Given:  A key overwritten several times while a read-only transaction is running
+     * Assert: The version it reads is kept until it commits
+     */
+    public void testReadOnlySnapshotKeptUntilCommit() throws InterruptedException, RetryLaterException {
+
+        final TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        final int READER_T_ID = 100;
+
+        store.begin(0);
+        store.write(KEY_1, 0, 0);
+        store.commit(0);
+
+        store.beginReadOnly(READER_T_ID);
+        for (int i = 1; i <= 5; i++) {
+            store.begin(i);
+            store.write(KEY_1, i, i);
+            store.commit(i);
+        }
+
+        store.reclaimObsoleteVersions();
+        Assert.assertEquals(Integer.valueOf(0), store.read(KEY_1, READER_T_ID));
+
+        store.commit(READER_T_ID);
+        store.reclaimObsoleteVersions();
+        Assert.assertEquals(1, store.masterMap.get(KEY_1).getVersionCount());
+    }
+
+    @Test
+    /**
+     * Given:  A key whose newest version is replaced over and over while other threads read it
+     * Assert: Readers always get the value that belongs to the version they asked for, never a value
+     *         from a version being swapped in or out
+     */
+    public void testNoTornReadsWhileReplacing() throws InterruptedException {
+
+        final int VERSIONS = 200000;
+        final MetadataValue<Long> key = new MetadataValue<Long>();
+        final AtomicLong published = new AtomicLong();
+        final AtomicReference<String> torn = new AtomicReference<String>();
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                for (long version = 1; version <= VERSIONS; version++) {
+                    key.addVersion(version, version);
+                    published.set(version);
+                }
+            }
+        });
+
+        Thread[] readers = new Thread[2];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(new Runnable() {
+                public void run() {
+                    long snapshot;
+                    while ((snapshot = published.get()) < VERSIONS && torn.get() == null) {
+                        if (snapshot == 0) {
+                            continue;
+                        }
+                        Long value = key.getValueAsOf(snapshot);
+                        if (value == null || value != snapshot) {
+                            torn.set("Read " + value + " as of version " + snapshot);
+                        }
+                    }
+                }
+            });
+            readers[i].start();
+        }
+        writer.start();
+
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        Assert.assertNull(torn.get(), torn.get());
+        Assert.assertEquals(Long.valueOf(VERSIONS), key.getValue());
+    }
+}
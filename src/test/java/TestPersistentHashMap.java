@@ -0,0 +1,103 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for the immutable hash trie that StaticTransactionalKVStore commits into.
+ */
+public class TestPersistentHashMap {
+
+    @Test
+    /**
+     * Given:  Thousands of random puts and removes, over keys where many share a hash, applied both to a
+     *         HashMap and, a new version at a time, to a persistent map
+     * Assert: Each version holds the same as the HashMap did at that point, and every earlier version
+     *         still holds what it did when it was made
+     */
+    public void testMatchesHashMapAndKeepsOldVersions() {
+
+        Random random = new Random(11);
+        Map<CollidingKey, Integer> expected = new HashMap<CollidingKey, Integer>();
+        PersistentHashMap<CollidingKey, Integer> map = PersistentHashMap.empty();
+
+        List<PersistentHashMap<CollidingKey, Integer>> versions = new ArrayList<PersistentHashMap<CollidingKey, Integer>>();
+        List<Map<CollidingKey, Integer>> contents = new ArrayList<Map<CollidingKey, Integer>>();
+
+        for (int i = 0; i < 5000; i++) {
+            CollidingKey key = new CollidingKey(random.nextInt(2000));
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                int value = random.nextInt();
+                expected.put(key, value);
+                map = map.put(key, value);
+            }
+
+            Assert.assertEquals(expected.size(), map.size());
+            if (i % 500 == 0) {
+                versions.add(map);
+                contents.add(new HashMap<CollidingKey, Integer>(expected));
+            }
+        }
+
+        for (int id = 0; id < 2000; id++) {
+            CollidingKey key = new CollidingKey(id);
+            Assert.assertEquals(expected.get(key), map.get(key));
+            Assert.assertEquals(expected.containsKey(key), map.containsKey(key));
+        }
+
+        for (int v = 0; v < versions.size(); v++) {
+            Assert.assertEquals(contents.get(v).size(), versions.get(v).size());
+            for (Map.Entry<CollidingKey, Integer> entry : contents.get(v).entrySet()) {
+                Assert.assertEquals(entry.getValue(), versions.get(v).get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    /**
+     * Given:  A map with a null key, and puts and removes that change nothing
+     * Assert: The null key can be read and removed, and the unchanged maps are the same instance
+     */
+    public void testNullKeyAndNoOpChanges() {
+
+        PersistentHashMap<String, Integer> map = PersistentHashMap.<String, Integer>empty().put(null, 1).put("a", 2);
+
+        Assert.assertEquals((Integer) 1, map.get(null));
+        Assert.assertSame(map, map.put("a", map.get("a")));
+        Assert.assertSame(map, map.remove("missing"));
+
+        PersistentHashMap<String, Integer> removed = map.remove(null).remove("a");
+        Assert.assertEquals(0, removed.size());
+        Assert.assertFalse(removed.containsKey(null));
+        Assert.assertTrue(map.containsKey(null));
+    }
+
+    /**
+     * A key whose hash only has 64 values, so that most keys share theirs with others
+     */
+    private static final class CollidingKey {
+
+        private final int id;
+
+        CollidingKey(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id % 64;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof CollidingKey && ((CollidingKey) other).id == id;
+        }
+    }
+}
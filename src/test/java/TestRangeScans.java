@@ -0,0 +1,118 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Tests for scanning key ranges, and for rolling back transactions whose scanned ranges changed.
+ */
+public class TestRangeScans {
+
+    static TransactionalKVStore<String, Integer> populated(String... keys) throws RetryLaterException {
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        Transaction<String, Integer> setup = store.begin();
+        for (int i = 0; i < keys.length; i++) {
+            setup.write(keys[i], i);
+        }
+        setup.commit();
+        return store;
+    }
+
+    static String keysOf(Iterator<Map.Entry<String, Integer>> scan) {
+
+        StringBuilder keys = new StringBuilder();
+        while (scan.hasNext()) {
+            keys.append(scan.next().getKey());
+        }
+        return keys.toString();
+    }
+
+    @Test
+    /**
+     * Given:  A transaction that has inserted, overwritten and removed keys, and a key committed after it
+     *         began
+     * Assert: Its scans return keys in order from its snapshot with its own writes merged in, only within
+     *         the bounds, and no more than the limit
+     */
+    public void testScanMergesOwnWrites() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = populated("a", "c", "e", "g");
+        Transaction<String, Integer> transaction = store.begin();
+        transaction.write("d", 30);
+        transaction.write("e", 40);
+        transaction.remove("c");
+
+        Transaction<String, Integer> other = store.begin();
+        other.write("f", 50);
+        other.commit();
+
+        Iterator<Map.Entry<String, Integer>> scan = transaction.scan("b", "g", 10);
+        Map.Entry<String, Integer> first = scan.next();
+        Assert.assertEquals("d", first.getKey());
+        Assert.assertEquals(Integer.valueOf(30), first.getValue());
+        Assert.assertEquals(Integer.valueOf(40), scan.next().getValue());
+        Assert.assertFalse(scan.hasNext());
+
+        Assert.assertEquals("adeg", keysOf(transaction.scan(null, null, 10)));
+        Assert.assertEquals("ac", keysOf(store.begin().scan(null, "d", 10)));
+        Assert.assertEquals("ad", keysOf(transaction.scan(null, null, 2)));
+        Assert.assertEquals("eg", keysOf(transaction.scan("e", null, 10)));
+    }
+
+    @Test
+    /**
+     * Given:  A transaction that scanned a range, while another inserts a key into that range and commits
+     * Assert: The scanning transaction is rolled back on the inserted key, as it would be on a changed
+     *         read, while an insert outside the range does not roll it back
+     */
+    public void testInsertIntoScannedRangeRollsBack() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = populated("a", "c", "e");
+
+        Transaction<String, Integer> outside = store.begin();
+        Assert.assertEquals("c", keysOf(outside.scan("b", "d", 10)));
+        outside.write("total", 1);
+        Transaction<String, Integer> inserter = store.begin();
+        inserter.write("x", 1);
+        inserter.commit();
+        outside.commit();
+
+        Transaction<String, Integer> scanner = store.begin();
+        Assert.assertEquals("c", keysOf(scanner.scan("b", "d", 10)));
+        scanner.write("total", 2);
+
+        Transaction<String, Integer> phantom = store.begin();
+        phantom.write("b2", 1);
+        phantom.commit();
+
+        try {
+            scanner.commit();
+            Assert.fail("A key inserted into the scanned range should have rolled the scan back");
+        } catch (RetryLaterException e) {
+            Assert.assertEquals("b2", e.getConflictingKey());
+        }
+    }
+
+    @Test
+    /**
+     * Given:  A scan stopped by its limit, and a key inserted after the last key it returned
+     * Assert: The insert does not roll the scanning transaction back, since the scan never got that far
+     */
+    public void testOnlyTheScannedPartIsValidated() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = populated("a", "b", "c", "d");
+        Transaction<String, Integer> scanner = store.begin();
+        Iterator<Map.Entry<String, Integer>> scan = scanner.scan("a", null, 2);
+        Assert.assertEquals("ab", keysOf(scan));
+        scanner.write("total", 2);
+
+        Transaction<String, Integer> inserter = store.begin();
+        inserter.write("bb", 1);
+        inserter.commit();
+
+        scanner.commit();
+        Assert.assertEquals("abbbcd", keysOf(store.beginReadOnly().scan("a", "e", 10)));
+    }
+}
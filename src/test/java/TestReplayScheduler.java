@@ -0,0 +1,240 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Tests that replayable transactions are re-run by the scheduler when they conflict.
+ */
+public class TestReplayScheduler {
+
+    final static String KEY_1 = "key1";
+
+    /**
+     * Reads KEY_1 and writes it back plus one, but has a competing transaction commit to KEY_1 in
+     * between on its first conflictingRuns runs, so those are rolled back
+     */
+    static TransactionalKVStore.ReplayableTransaction conflictingIncrement(final int conflictingRuns,
+                                                                            final AtomicInteger runs) {
+
+        return new TransactionalKVStore.ReplayableTransaction() {
+            @Override
+            public void transaction(Object[] arguments, TransactionalKVStore store)
+                    throws RetryLaterException, InterruptedException {
+
+                final int T_ID = TestTransactionalStore.sharedTransactionCounter.incrementAndGet();
+                store.begin(T_ID);
+                Integer value = (Integer) store.read(KEY_1, T_ID);
+
+                if (runs.incrementAndGet() <= conflictingRuns) {
+                    final int COMPETING_T_ID = TestTransactionalStore.sharedTransactionCounter.incrementAndGet();
+                    store.begin(COMPETING_T_ID);
+                    store.write(KEY_1, 100, COMPETING_T_ID);
+                    store.commit(COMPETING_T_ID);
+                }
+
+                store.write(KEY_1, (value == null ? 0 : value) + 1, T_ID);
+                store.commit(T_ID);
+            }
+        };
+    }
+
+    @Test
+    /**
+     * Given:  A replayable transaction that conflicts on its first run
+     * Assert: It is re-run once the conflicting commit is visible, sees that commit, and the retry is
+     *         counted
+     */
+    public void testConflictingTransactionIsReplayed() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        ReplayScheduler scheduler = new ReplayScheduler(store, 2);
+        final AtomicInteger runs = new AtomicInteger();
+
+        scheduler.submit(conflictingIncrement(1, runs), null, 5).get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(2, runs.get());
+        Assert.assertEquals(1, scheduler.getRetryCount());
+        Assert.assertEquals(1, scheduler.getCompletedCount());
+        Assert.assertEquals(0, scheduler.getParkedCount());
+        Assert.assertEquals(0, scheduler.getQueueDepth(KEY_1));
+
+        store.begin(0);
+        Assert.assertEquals("The replay should have read the competing write", Integer.valueOf(101),
+                store.read(KEY_1, 0));
+        store.commit(0);
+        scheduler.shutdown();
+    }
+
+    @Test
+    /**
+     * Given:  A replayable transaction that conflicts every time it runs
+     * Assert: It is given up on after the maximum number of attempts
+     */
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        ReplayScheduler scheduler = new ReplayScheduler(store, 2);
+        final AtomicInteger runs = new AtomicInteger();
+        final int MAX_ATTEMPTS = 3;
+
+        Future<Void> result = scheduler.submit(conflictingIncrement(Integer.MAX_VALUE, runs), null, MAX_ATTEMPTS);
+        try {
+            result.get(10, TimeUnit.SECONDS);
+            Assert.fail("A transaction that always conflicts should not have committed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RuntimeException);
+        }
+
+        Assert.assertEquals(MAX_ATTEMPTS + 1, runs.get());
+        Assert.assertEquals(MAX_ATTEMPTS, scheduler.getRetryCount());
+        Assert.assertEquals(1, scheduler.getFailedCount());
+        Assert.assertEquals(0, scheduler.getParkedCount());
+        scheduler.shutdown();
+    }
+
+    @Test
+    /**
+     * Given:  Many read-modify-write increments of one key submitted at once
+     * Assert: Every one of them commits exactly once, and nothing is left parked
+     */
+    public void testHotKeyIncrementsAllCommit() throws Exception {
+
+        final int INCREMENTS = 200;
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        ReplayScheduler scheduler = new ReplayScheduler(store, 8);
+
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < INCREMENTS; i++) {
+            results.add(scheduler.submit(TestTransactionalStore.CONTEXT_FREE_INCREMENT_ACTION,
+                    new Object[]{KEY_1, 1}, INCREMENTS));
+        }
+        for (Future<Void> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+
+        System.out.println(INCREMENTS + " increments took " + scheduler.getRetryCount() +
+                " retries, with at most " + scheduler.getMaxQueueDepth() + " parked on the key");
+        Assert.assertEquals(INCREMENTS, scheduler.getCompletedCount());
+        Assert.assertEquals(0, scheduler.getParkedCount());
+
+        store.begin(0);
+        Assert.assertEquals(Integer.valueOf(INCREMENTS), store.read(KEY_1, 0));
+        store.commit(0);
+        scheduler.shutdown();
+    }
+
+    @Test
+    /**
+     * Given:  A transaction submitted asynchronously, which waits on a latch before committing
+     * Assert: The handle reports it as running until it commits, then as committed, and the commit
+     *         callback runs once
+     */
+    public void testAsyncHandleStatusAndCallbacks() throws Exception {
+
+        final TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger callbacks = new AtomicInteger();
+        final CountDownLatch calledBack = new CountDownLatch(1);
+
+        ReplayHandle handle = TransactionalKVStore.submitReplayableTransactionAsync(
+                new TransactionalKVStore.ReplayableTransaction() {
+                    @Override
+                    public void transaction(Object[] arguments, TransactionalKVStore store)
+                            throws RetryLaterException, InterruptedException {
+
+                        final int T_ID = TestTransactionalStore.sharedTransactionCounter.incrementAndGet();
+                        store.begin(T_ID);
+                        started.countDown();
+                        proceed.await();
+                        store.write(KEY_1, 1, T_ID);
+                        store.commit(T_ID);
+                    }
+                }, null, store, null);
+        handle.whenCommitted(new Runnable() {
+            public void run() {
+                callbacks.incrementAndGet();
+                calledBack.countDown();
+            }
+        });
+
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(ReplayHandle.Status.RUNNING, handle.getStatus());
+        Assert.assertFalse(handle.isDone());
+        Assert.assertEquals(0, callbacks.get());
+
+        proceed.countDown();
+        handle.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(ReplayHandle.Status.COMMITTED, handle.getStatus());
+        Assert.assertEquals(1, handle.getAttempts());
+        // Callbacks may run just after waiters are woken
+        Assert.assertTrue(calledBack.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, callbacks.get());
+        store.close();
+    }
+
+    @Test
+    /**
+     * Given:  An asynchronously submitted transaction that conflicts every time it runs
+     * Assert: The failure callback is given the reason, and the handle reports it as failed
+     */
+    public void testAsyncFailureCallback() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch failed = new CountDownLatch(1);
+
+        ReplayHandle handle = TransactionalKVStore.submitReplayableTransactionAsync(
+                conflictingIncrement(Integer.MAX_VALUE, new AtomicInteger()), null, store, 2);
+        handle.whenFailed(new Consumer<Throwable>() {
+            public void accept(Throwable cause) {
+                failure.set(cause);
+                failed.countDown();
+            }
+        });
+
+        Assert.assertTrue(failed.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(failure.get() instanceof RuntimeException);
+        Assert.assertEquals(ReplayHandle.Status.FAILED, handle.getStatus());
+        Assert.assertEquals(3, handle.getAttempts());
+        store.close();
+    }
+
+    @Test
+    /**
+     * Given:  Far more transactions in flight than worker threads
+     * Assert: They all commit, without a thread each
+     */
+    public void testManyInFlightOnFewWorkers() throws Exception {
+
+        final int TRANSACTIONS = 10000;
+        final int KEYS = 100;
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        ReplayScheduler scheduler = new ReplayScheduler(store, 2);
+
+        List<ReplayHandle> handles = new ArrayList<ReplayHandle>();
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            handles.add(scheduler.submit(TestTransactionalStore.CONTEXT_FREE_INCREMENT_ACTION,
+                    new Object[]{"key" + (i % KEYS), 1}, TRANSACTIONS));
+        }
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[TRANSACTIONS];
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            futures[i] = handles.get(i).toCompletableFuture();
+        }
+        CompletableFuture.allOf(futures).get(120, TimeUnit.SECONDS);
+
+        Assert.assertEquals(TRANSACTIONS, scheduler.getCompletedCount());
+        store.begin(0);
+        for (int key = 0; key < KEYS; key++) {
+            Assert.assertEquals(Integer.valueOf(TRANSACTIONS / KEYS), store.read("key" + key, 0));
+        }
+        store.commit(0);
+        scheduler.shutdown();
+    }
+}
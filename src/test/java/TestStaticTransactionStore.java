@@ -3,13 +3,17 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * A basic KV store that supports atomic sets of reads and writes. This isn't a truly atomic store because
- * there is no all-or-nothing behavior in the case of failure.
+ * A basic KV store that supports atomic sets of reads and writes. Each commit swaps in a whole new map,
+ * so a commit that fails part way leaves nothing behind.
  */
 public class TestStaticTransactionStore<K, V> {
 
@@ -111,4 +115,120 @@ public class TestStaticTransactionStore<K, V> {
         //Verify that we pull down the incremented values and not the original, signifying that the commit order was honored
         Assert.assertEquals("Read different values", READ_1_OUTPUT, VALUE2_1);
     }
-}
\ No newline at end of file
+
+    /**
+     * Given: The same few hundred transactions queued in two stores, over keys that fall into separate
+     * clusters, some transactions removing keys, and some reading keys written earlier in the batch
+     * Verify: Committing them as one batch in one store reads and leaves the same values as committing
+     * them one at a time, in order of id, in the other
+     */
+    @Test
+    public void testBatchCommitMatchesSerialOrder() {
+
+        final int TRANSACTIONS = 400;
+        final int CLUSTERS = 16;
+        StaticTransactionalKVStore<String, Integer> batched = new StaticTransactionalKVStore<String, Integer>();
+        StaticTransactionalKVStore<String, Integer> serial = new StaticTransactionalKVStore<String, Integer>();
+
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int id = 0; id < TRANSACTIONS; id++) {
+            ids.add(id);
+        }
+        // Queued out of order, since the batch sorts them itself
+        Collections.shuffle(ids, new Random(7));
+
+        for (StaticTransactionalKVStore<String, Integer> kvStore : new StaticTransactionalKVStore[]{batched, serial}) {
+            Random random = new Random(42);
+            for (int id : ids) {
+                kvStore.begin(id);
+                final String CLUSTER = "cluster" + (id % CLUSTERS) + "-";
+                for (int op = 0; op < 4; op++) {
+                    final String KEY = CLUSTER + random.nextInt(5);
+                    switch (random.nextInt(3)) {
+                        case 0:
+                            kvStore.read(KEY, id);
+                            break;
+                        case 1:
+                            kvStore.write(KEY, random.nextInt(1000), id);
+                            break;
+                        default:
+                            kvStore.write(KEY, random.nextBoolean() ? null : id, id);
+                    }
+                }
+            }
+        }
+
+        Map<Integer, List<StaticTransactionalKVStore.TransactionalUnit<String, Integer>>> batchResults =
+                batched.commitBatch(ids);
+        Assert.assertEquals(TRANSACTIONS, batchResults.size());
+
+        Integer previousId = null;
+        for (Map.Entry<Integer, List<StaticTransactionalKVStore.TransactionalUnit<String, Integer>>> entry :
+                batchResults.entrySet()) {
+
+            if (previousId != null) {
+                Assert.assertTrue("Results should be in order of id", entry.getKey() > previousId);
+            }
+            previousId = entry.getKey();
+
+            List<StaticTransactionalKVStore.TransactionalUnit<String, Integer>> expected = serial.commit(entry.getKey());
+            Assert.assertEquals(expected.size(), entry.getValue().size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(expected.get(i).getKey(), entry.getValue().get(i).getKey());
+                Assert.assertEquals(expected.get(i).getValue(), entry.getValue().get(i).getValue());
+            }
+        }
+
+        final int CHECK_TRANSACTION = TRANSACTIONS;
+        for (StaticTransactionalKVStore<String, Integer> kvStore : new StaticTransactionalKVStore[]{batched, serial}) {
+            kvStore.begin(CHECK_TRANSACTION);
+            for (int cluster = 0; cluster < CLUSTERS; cluster++) {
+                for (int key = 0; key < 5; key++) {
+                    kvStore.read("cluster" + cluster + "-" + key, CHECK_TRANSACTION);
+                }
+            }
+        }
+        List<StaticTransactionalKVStore.TransactionalUnit<String, Integer>> batchedState = batched.commit(CHECK_TRANSACTION);
+        List<StaticTransactionalKVStore.TransactionalUnit<String, Integer>> serialState = serial.commit(CHECK_TRANSACTION);
+        for (int i = 0; i < serialState.size(); i++) {
+            Assert.assertEquals(serialState.get(i).getValue(), batchedState.get(i).getValue());
+        }
+
+        Assert.assertTrue("Committed transactions should leave the queue", batched.transactionQueue.isEmpty());
+        Assert.assertTrue("Committed transactions should leave the queue", serial.transactionQueue.isEmpty());
+    }
+
+    /**
+     * Given: A snapshot taken after one transaction commits
+     * Verify: A later commit, which changes one key and removes another, is not seen in the snapshot, and
+     * is seen in a snapshot taken after it
+     */
+    @Test
+    public void testSnapshotIsUnchangedByLaterCommits() {
+
+        StaticTransactionalKVStore<String, Integer> kvStore = new StaticTransactionalKVStore<String, Integer>();
+
+        kvStore.begin(0);
+        kvStore.write("key1", 1, 0);
+        kvStore.write("key2", 2, 0);
+        kvStore.commit(0);
+
+        PersistentHashMap<String, Integer> before = kvStore.snapshot();
+
+        kvStore.begin(1);
+        kvStore.write("key1", 10, 1);
+        kvStore.write("key2", null, 1);
+        kvStore.read("key1", 1);
+        List<StaticTransactionalKVStore.TransactionalUnit<String, Integer>> results = kvStore.commit(1);
+        Assert.assertEquals((Integer) 10, results.get(2).getValue());
+
+        Assert.assertEquals(2, before.size());
+        Assert.assertEquals((Integer) 1, before.get("key1"));
+        Assert.assertEquals((Integer) 2, before.get("key2"));
+
+        PersistentHashMap<String, Integer> after = kvStore.snapshot();
+        Assert.assertEquals(1, after.size());
+        Assert.assertEquals((Integer) 10, after.get("key1"));
+        Assert.assertFalse(after.containsKey("key2"));
+    }
+}
@@ -0,0 +1,150 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+
+/**
+ * Tests for the counters and latency histograms a store keeps, and for exporting them over JMX.
+ */
+public class TestStoreMetrics {
+
+    final static String KEY_1 = "key1";
+
+    @Test
+    /**
+     * Given:  Latencies recorded evenly from 1 to 100 microseconds, and one of a second
+     * Assert: Percentiles come out within the precision of their buckets, and the maximum is exact
+     */
+    public void testHistogramPercentiles() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 100L);
+        }
+        histogram.record(1000000000L);
+
+        Assert.assertEquals(1001, histogram.getCount());
+        Assert.assertEquals(50000, histogram.getValueAtPercentile(50), 50000 * 0.04);
+        Assert.assertEquals(99000, histogram.getValueAtPercentile(99), 99000 * 0.04);
+        Assert.assertEquals(1000000000L, histogram.getValueAtPercentile(100));
+        Assert.assertEquals(1000000000L, histogram.getMaxNanos());
+        Assert.assertEquals(1000.0, histogram.getMaxMicros() / 1000, 0.001);
+
+        for (long value = 0; value < 1L << 20; value += 7) {
+            int index = LatencyHistogram.indexFor(value);
+            Assert.assertTrue(value <= LatencyHistogram.highestValueAt(index));
+            Assert.assertTrue(index == 0 || value > LatencyHistogram.highestValueAt(index - 1));
+        }
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    /**
+     * Given:  A store running a committed transaction, a rolled back one and a read-only one, with its
+     *         metrics registered over JMX
+     * Assert: Begins, commits and aborts are counted, every operation's latency is recorded, the counts
+     *         can be read through the platform MBean server, and closing the store unregisters them
+     */
+    public void testCountersAreExportedOverJmx() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        ObjectName name = store.getMetrics().register("metrics-test");
+
+        Transaction<String, Integer> first = store.begin();
+        Transaction<String, Integer> second = store.begin();
+        first.read(KEY_1);
+        first.write(KEY_1, 1);
+        second.read(KEY_1);
+        second.write(KEY_1, 2);
+        first.commit();
+        try {
+            second.commit();
+            Assert.fail("The second commit should have conflicted");
+        } catch (RetryLaterException e) {
+            // Expected
+        }
+        store.beginReadOnly().commit();
+
+        StoreMetrics metrics = store.getMetrics();
+        Assert.assertEquals(3, metrics.getBegins());
+        Assert.assertEquals(2, metrics.getCommits());
+        Assert.assertEquals(1, metrics.getAborts());
+        Assert.assertEquals(2, metrics.getReadLatency().getCount());
+        Assert.assertEquals(2, metrics.getWriteLatency().getCount());
+        Assert.assertEquals(2, metrics.getCommitLatency().getCount());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Assert.assertEquals(2L, server.getAttribute(name, "Commits"));
+        Assert.assertEquals(1L, server.getAttribute(name, "Aborts"));
+        ObjectName commitLatency = new ObjectName(
+                "TransactionalKV:type=Latency,store=\"metrics-test\",operation=commit");
+        Assert.assertEquals(2L, server.getAttribute(commitLatency, "Count"));
+
+        store.close();
+        Assert.assertFalse(server.isRegistered(name));
+        Assert.assertFalse(server.isRegistered(commitLatency));
+    }
+
+    @Test
+    /**
+     * Given:  A store with a commit listener that always throws
+     * Assert: Commits still go through, and each failure is counted and can be read over JMX
+     */
+    public void testCommitListenerFailuresAreCounted() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        store.addCommitListener(new TransactionalKVStore.CommitListener() {
+            public void committed(long commitVersion, Collection<?> keys) {
+                throw new IllegalStateException("listener failed");
+            }
+        });
+        ObjectName name = store.getMetrics().register("listener-failure-test");
+
+        for (int i = 0; i < 2; i++) {
+            Transaction<String, Integer> transaction = store.begin();
+            transaction.write(KEY_1, i);
+            transaction.commit();
+        }
+
+        Assert.assertEquals(2, store.getMetrics().getCommits());
+        Assert.assertEquals(2, store.getMetrics().getListenerFailures());
+        Assert.assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ListenerFailures"));
+        store.close();
+    }
+
+    @Test
+    /**
+     * Given:  A store with its metrics registered over JMX, and a transaction that writes a byte[] value
+     *         and scans, then commits
+     * Assert: While it runs, the live transaction count and the bytes it holds can be read over JMX, and
+     *         grow with what it records. Once it commits, both are back to 0.
+     */
+    public void testTransactionGaugesAreExportedOverJmx() throws Exception {
+
+        TransactionalKVStore<String, byte[]> store = new TransactionalKVStore<String, byte[]>();
+        ObjectName name = store.getMetrics().register("gauge-test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        Transaction<String, byte[]> transaction = store.begin();
+        Assert.assertEquals(1, server.getAttribute(name, "LiveTransactionCount"));
+        Assert.assertEquals(0L, server.getAttribute(name, "RetainedTransactionBytes"));
+
+        transaction.write(KEY_1, new byte[1000]);
+        final long written = (Long) server.getAttribute(name, "RetainedTransactionBytes");
+        Assert.assertTrue(written > 1000);
+
+        transaction.scan("a", "z", 10);
+        Assert.assertTrue((Long) server.getAttribute(name, "RetainedTransactionBytes") > written);
+
+        transaction.commit();
+        Assert.assertEquals(0, server.getAttribute(name, "LiveTransactionCount"));
+        Assert.assertEquals(0L, server.getAttribute(name, "RetainedTransactionBytes"));
+        store.close();
+    }
+}
@@ -0,0 +1,152 @@
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the Flight Recorder events a store emits over a transaction's life.
+ */
+public class TestTransactionEvents {
+
+    final static String KEY_1 = "key1";
+
+    static List<RecordedEvent> eventsNamed(List<RecordedEvent> events, String name) {
+
+        List<RecordedEvent> named = new ArrayList<RecordedEvent>();
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                named.add(event);
+            }
+        }
+        return named;
+    }
+
+    @Test
+    /**
+     * Given:  A recording with the store's events enabled, over one committed and one rolled back
+     *         transaction
+     * Assert: Begins, reads, writes, the commit and the rollback are recorded with their transaction
+     *         ids, and the rollback with its reason and the key and version it conflicted on
+     */
+    public void testLifecycleIsRecorded() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        File dump = File.createTempFile("transactions", ".jfr");
+        dump.deleteOnExit();
+
+        Transaction<String, Integer> winner;
+        Transaction<String, Integer> loser;
+        long conflictingVersion;
+        Recording recording = new Recording();
+        try {
+            for (String event : new String[]{"Begin", "Read", "Write", "Commit", "Rollback"}) {
+                recording.enable("transactionalkv." + event).withoutThreshold();
+            }
+            recording.start();
+
+            loser = store.begin();
+            loser.read(KEY_1);
+            loser.write(KEY_1, 1);
+            winner = store.begin();
+            winner.write(KEY_1, 2);
+            winner.commit();
+            try {
+                loser.commit();
+                Assert.fail("The read of KEY_1 should have conflicted");
+                return;
+            } catch (RetryLaterException e) {
+                conflictingVersion = e.getConflictingVersion();
+            }
+
+            recording.stop();
+            recording.dump(dump.toPath());
+        } finally {
+            recording.close();
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump.toPath());
+        Assert.assertEquals(2, eventsNamed(events, "transactionalkv.Begin").size());
+        Assert.assertEquals(1, eventsNamed(events, "transactionalkv.Read").size());
+        Assert.assertEquals(2, eventsNamed(events, "transactionalkv.Write").size());
+
+        List<RecordedEvent> commits = eventsNamed(events, "transactionalkv.Commit");
+        Assert.assertEquals(1, commits.size());
+        Assert.assertEquals(winner.getId(), commits.get(0).getInt("transactionId"));
+        Assert.assertEquals(1, commits.get(0).getInt("keyCount"));
+        Assert.assertEquals(conflictingVersion, commits.get(0).getLong("commitVersion"));
+
+        List<RecordedEvent> rollbacks = eventsNamed(events, "transactionalkv.Rollback");
+        Assert.assertEquals(1, rollbacks.size());
+        Assert.assertEquals(loser.getId(), rollbacks.get(0).getInt("transactionId"));
+        Assert.assertEquals(KEY_1, rollbacks.get(0).getString("conflictingKey"));
+        Assert.assertEquals(conflictingVersion, rollbacks.get(0).getLong("conflictingVersion"));
+        Assert.assertNotNull(rollbacks.get(0).getString("reason"));
+    }
+
+    @Test
+    /**
+     * Given:  A recording of replay attempts, over a replayable transaction whose first attempt is rolled
+     *         back by a commit it makes under another transaction id, and whose second attempt commits
+     * Assert: Each attempt is recorded under the id of the transaction it began, not the competing one
+     */
+    public void testReplayAttemptsRecordTheirTransactionIds() throws Exception {
+
+        final TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        final AtomicInteger nextId = new AtomicInteger(100);
+        final List<Integer> attemptIds = Collections.synchronizedList(new ArrayList<Integer>());
+        File dump = File.createTempFile("replays", ".jfr");
+        dump.deleteOnExit();
+
+        Recording recording = new Recording();
+        try {
+            recording.enable("transactionalkv.ReplayAttempt").withoutThreshold();
+            recording.start();
+
+            TransactionalKVStore.submitReplayableTransaction(new TransactionalKVStore.ReplayableTransaction() {
+                @Override
+                public void transaction(Object[] arguments, TransactionalKVStore store)
+                        throws RetryLaterException, InterruptedException {
+
+                    final int T_ID = nextId.incrementAndGet();
+                    attemptIds.add(T_ID);
+                    store.begin(T_ID);
+                    store.read(KEY_1, T_ID);
+
+                    if (attemptIds.size() == 1) {
+                        final int COMPETING_T_ID = nextId.incrementAndGet();
+                        store.begin(COMPETING_T_ID);
+                        store.write(KEY_1, 1, COMPETING_T_ID);
+                        store.commit(COMPETING_T_ID);
+                    }
+
+                    store.write(KEY_1, 2, T_ID);
+                    store.commit(T_ID);
+                }
+            }, null, store, 5);
+
+            recording.stop();
+            recording.dump(dump.toPath());
+        } finally {
+            recording.close();
+        }
+
+        List<RecordedEvent> attempts = eventsNamed(RecordingFile.readAllEvents(dump.toPath()),
+                "transactionalkv.ReplayAttempt");
+        Assert.assertEquals(2, attempts.size());
+        Assert.assertEquals(2, attemptIds.size());
+        for (RecordedEvent attempt : attempts) {
+            // The attempts may have run on different workers, so are not necessarily in order
+            final int number = attempt.getInt("attempt");
+            Assert.assertEquals(attemptIds.get(number - 1).intValue(), attempt.getInt("transactionId"));
+            Assert.assertEquals(number == 1 ? "rolled back" : "committed", attempt.getString("outcome"));
+        }
+        store.close();
+    }
+}
@@ -0,0 +1,146 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Tests for transactions begun without an id, and used through the handle the store returns.
+ */
+public class TestTransactionHandles {
+
+    final static String KEY_1 = "key1";
+    final static String KEY_2 = "key2";
+
+    @Test
+    /**
+     * Given:  Two transactions begun through handles, one of which writes and commits
+     * Assert: The other keeps seeing its snapshot, and a transaction begun afterwards sees the write
+     */
+    public void testHandlesAreIsolated() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        Transaction<String, Integer> setup = store.begin();
+        setup.write(KEY_1, 1);
+        setup.commit();
+
+        Transaction<String, Integer> writer = store.begin();
+        Transaction<String, Integer> reader = store.beginReadOnly();
+        Assert.assertFalse("Allocated ids must differ", writer.getId() == reader.getId());
+
+        writer.write(KEY_1, 2);
+        writer.increment(KEY_2, 5);
+        Assert.assertEquals(Integer.valueOf(2), writer.read(KEY_1));
+        writer.commit();
+
+        Assert.assertEquals(Integer.valueOf(1), reader.read(KEY_1));
+        Assert.assertNull(reader.read(KEY_2));
+        reader.commit();
+
+        Transaction<String, Integer> after = store.begin();
+        Assert.assertEquals(Integer.valueOf(2), after.read(KEY_1));
+        Assert.assertEquals(Integer.valueOf(5), after.read(KEY_2));
+        after.remove(KEY_2);
+        Assert.assertNull(after.read(KEY_2));
+        after.commit();
+    }
+
+    @Test
+    /**
+     * Given:  A handle whose commit is rolled back, and one that committed
+     * Assert: Neither can be used again
+     */
+    public void testFinishedHandlesAreRefused() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        Transaction<String, Integer> stale = store.begin();
+        stale.read(KEY_1);
+
+        Transaction<String, Integer> fresh = store.begin();
+        fresh.write(KEY_1, 1);
+        fresh.commit();
+
+        try {
+            stale.write(KEY_1, 2);
+            stale.commit();
+            Assert.fail("The stale transaction should have been rolled back");
+        } catch (RetryLaterException rte) {
+            Assert.assertEquals(KEY_1, rte.getConflictingKey());
+        }
+
+        try {
+            stale.read(KEY_1);
+            Assert.fail("A rolled back transaction should not be readable");
+        } catch (NoSuchTransactionException nst) {
+            // expected
+        }
+
+        try {
+            fresh.commit();
+            Assert.fail("A transaction should not commit twice");
+        } catch (NoSuchTransactionException nst) {
+            // expected
+        }
+    }
+
+    @Test
+    /**
+     * Given:  Several threads allocating transaction ids at once
+     * Assert: No id is handed out twice
+     */
+    public void testAllocatedIdsAreUnique() throws Exception {
+
+        final int THREADS = 4;
+        final int IDS_PER_THREAD = 5000;
+        final Set<Integer> ids = ConcurrentHashMap.newKeySet();
+
+        ExecutorService execService = Executors.newFixedThreadPool(THREADS);
+        List<Future> futureList = new ArrayList<Future>();
+        for (int i = 0; i < THREADS; i++) {
+            futureList.add(execService.submit(new Callable<Object>() {
+                public Object call() {
+                    for (int id = 0; id < IDS_PER_THREAD; id++) {
+                        Assert.assertTrue(ids.add(Transaction.nextId()));
+                    }
+                    return null;
+                }
+            }));
+        }
+        execService.shutdown();
+        for (Future f : futureList) {
+            f.get(60, TimeUnit.SECONDS);
+        }
+
+        Assert.assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+    }
+
+    @Test
+    /**
+     * Given:  A transaction that reads, writes and increments the same few keys many times over
+     * Assert: It keeps one entry per key, sees its own latest changes, and commits one version per key
+     */
+    public void testRepeatedOperationsKeepOneEntryPerKey() throws Exception {
+
+        final int OPERATIONS = 1000;
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        Transaction<String, Integer> transaction = store.begin();
+        for (int i = 0; i < OPERATIONS; i++) {
+            transaction.write(KEY_1, i);
+            Assert.assertEquals(Integer.valueOf(i), transaction.read(KEY_1));
+            transaction.increment(KEY_2, 1);
+        }
+        transaction.increment(KEY_1, 10);
+        Assert.assertEquals(Integer.valueOf(OPERATIONS - 1 + 10), transaction.read(KEY_1));
+        Assert.assertEquals(Integer.valueOf(OPERATIONS), transaction.read(KEY_2));
+        Assert.assertEquals(2, transaction.log.size());
+        transaction.commit();
+
+        Assert.assertEquals(1, store.masterMap.get(KEY_1).getVersionCount());
+        Transaction<String, Integer> after = store.begin();
+        Assert.assertEquals(Integer.valueOf(OPERATIONS - 1 + 10), after.read(KEY_1));
+        Assert.assertEquals(Integer.valueOf(OPERATIONS), after.read(KEY_2));
+        after.commit();
+    }
+}
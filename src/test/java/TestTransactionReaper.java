@@ -0,0 +1,114 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for aborting abandoned transactions, and for the memory live transactions hold on to.
+ */
+public class TestTransactionReaper {
+
+    final static String KEY_1 = "key1";
+    final static String KEY_2 = "key2";
+
+    static void awaitReaped(TransactionalKVStore<?, ?> store, long reaped) throws InterruptedException {
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (store.getReapedTransactionCount() < reaped && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    /**
+     * Given:  A store with an idle timeout, and a transaction begun by id that writes and is then left
+     * Assert: It is reaped, its id can no longer be used and then can be begun again, and it no longer
+     *         counts as live or holding memory
+     */
+    public void testIdleTransactionIsReaped() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        store.setTransactionTimeouts(100, 0, TimeUnit.MILLISECONDS);
+
+        store.begin(1);
+        store.write(KEY_1, 1, 1);
+        Assert.assertEquals(1, store.getLiveTransactionCount());
+        Assert.assertTrue(store.getRetainedTransactionBytes() > 0);
+
+        awaitReaped(store, 1);
+        Assert.assertEquals(1, store.getReapedTransactionCount());
+        Assert.assertEquals(0, store.getLiveTransactionCount());
+        Assert.assertEquals(0, store.getRetainedTransactionBytes());
+
+        try {
+            store.write(KEY_2, 2, 1);
+            Assert.fail("A reaped transaction should not be usable");
+        } catch (NoSuchTransactionException e) {
+            // Expected
+        }
+
+        store.begin(1);
+        Assert.assertNull(store.read(KEY_1, 1));
+        store.commit(1);
+        store.close();
+    }
+
+    @Test
+    /**
+     * Given:  A store with both timeouts, and a transaction kept busy for longer than the idle timeout
+     * Assert: It is not reaped while it is being used, but is once its lifetime is up, and its commit
+     *         then fails
+     */
+    public void testBusyTransactionOutlivesIdleTimeout() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        store.setTransactionTimeouts(150, 1500, TimeUnit.MILLISECONDS);
+
+        Transaction<String, Integer> busy = store.begin();
+        for (int i = 0; i < 8; i++) {
+            busy.write(KEY_1, i);
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, store.getReapedTransactionCount());
+
+        awaitReaped(store, 1);
+        Assert.assertEquals(1, store.getReapedTransactionCount());
+        try {
+            busy.commit();
+            Assert.fail("A transaction past its lifetime should have been reaped");
+        } catch (NoSuchTransactionException e) {
+            // Expected
+        }
+        store.close();
+    }
+
+    @Test
+    /**
+     * Given:  A transaction begun by id that is rolled back by a conflicting commit
+     * Assert: Its id is given up with it, so it can be begun again straight away
+     */
+    public void testRolledBackIdIsReleased() throws Exception {
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        store.begin(1);
+        store.read(KEY_1, 1);
+        store.write(KEY_2, 1, 1);
+
+        Transaction<String, Integer> other = store.begin();
+        other.write(KEY_1, 2);
+        other.commit();
+
+        try {
+            store.commit(1);
+            Assert.fail("The read of KEY_1 should have conflicted");
+        } catch (RetryLaterException e) {
+            // Expected
+        }
+        Assert.assertEquals(0, store.getLiveTransactionCount());
+        Assert.assertTrue(store.transactionIdToObjectMapping.isEmpty());
+
+        store.begin(1);
+        Assert.assertEquals(Integer.valueOf(2), store.read(KEY_1, 1));
+        store.commit(1);
+    }
+}
@@ -1,7 +1,6 @@
 import junit.framework.Assert;
 import org.junit.Test;
 
-import java.util.Date;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -186,39 +185,37 @@ public class TestTransactionalStore {
         commitWithException(store, T_ID_2);
     }
 
-    //TODO: Write tests to verify last read and write time in master
     @Test
     /**
      * Given: A set of read and writes on a given value
-     * Assert that: Read and write times on the values in the master KV store are updated
+     * Assert that: Read and write versions on the values in the master KV store are updated
      */
     public void testMasterReadAndWriteTimes() throws InterruptedException {
 
-        final Date START_TIME = new Date();
-
         final int T_ID = 1;
         final int T_ID_2 = T_ID + 1;
 
         TransactionalKVStore<String, Integer> tctStore = new TransactionalKVStore<String, Integer>();
+        final long START_VERSION = tctStore.getCommittedVersion();
         tctStore.begin(T_ID);
         tctStore.write(KEY_1, VALUE_1, T_ID);
         commitWithException(tctStore, T_ID);
 
         //This will work because it's package-protected. The other option is to add
         //a getter that's only available in the testing context
-        Date lastWritten = tctStore.masterMap.get(KEY_1).getLastWritten();
-        Assert.assertTrue(lastWritten.after(START_TIME));
+        long lastWritten = tctStore.masterMap.get(KEY_1).getLastWritten();
+        Assert.assertTrue(lastWritten > START_VERSION);
 
-        Date lastRead = tctStore.masterMap.get(KEY_1).getLastRead();
-        Assert.assertNull(lastRead);
+        long lastRead = tctStore.masterMap.get(KEY_1).getLastRead();
+        Assert.assertEquals(MetadataValue.NO_VERSION, lastRead);
 
         tctStore.begin(T_ID_2);
         tctStore.read(KEY_1, T_ID_2);
         commitWithException(tctStore, T_ID_2);
 
         lastRead = tctStore.masterMap.get(KEY_1).getLastRead();
-        Assert.assertTrue(lastRead.after(START_TIME));
-        Assert.assertTrue(lastRead.after(lastWritten));
+        Assert.assertTrue(lastRead > START_VERSION);
+        Assert.assertTrue(lastRead > lastWritten);
     }
 
     @Test
@@ -462,8 +459,8 @@ public class TestTransactionalStore {
      */
     public void testMetadataUpdated() throws InterruptedException {
 
-        final Date TRANSACTION_START_TIME = new Date();
         final TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        final long TRANSACTION_START_VERSION = store.getCommittedVersion();
 
         final int INITIAL_READ_TRANSACTION = 0;
         final String KEY_1 = "key1";
@@ -477,14 +474,15 @@ public class TestTransactionalStore {
         MetadataValue<Integer> returnedValue = store.masterMap.get(KEY_1);
         Assert.assertNotNull("After initial read, the returned last read value was null.", returnedValue);
 
-        final Date INITIAL_READ_TIME = returnedValue.getLastRead();
-        System.out.println("initial read time: " + INITIAL_READ_TIME.toString());
-        Assert.assertTrue("After a read, the last read time was not after the test start time.",
-                TRANSACTION_START_TIME.before(INITIAL_READ_TIME));
+        final long INITIAL_READ_VERSION = returnedValue.getLastRead();
+        System.out.println("initial read version: " + INITIAL_READ_VERSION);
+        Assert.assertTrue("After a read, the last read version was not after the test start version.",
+                TRANSACTION_START_VERSION < INITIAL_READ_VERSION);
 
-        Assert.assertNull("No writes occurred, yet the write value is somehow not null", returnedValue.getLastWritten());
+        Assert.assertEquals("No writes occurred, yet the write version is somehow set",
+                MetadataValue.NO_VERSION, returnedValue.getLastWritten());
 
-        final Date WRITE_TRANSACTION_START_TIME = new Date();
+        final long WRITE_TRANSACTION_START_VERSION = store.getCommittedVersion();
 
         //verify that last read value unchanged after write
         final int WRITE_TRANSACTION = INITIAL_READ_TRANSACTION + 1;
@@ -492,14 +490,15 @@ public class TestTransactionalStore {
         store.write(KEY_1, INITIAL_VALUE, WRITE_TRANSACTION);
         commitWithException(store, WRITE_TRANSACTION);
 
-        Date newLastReadTime = store.masterMap.get(KEY_1).getLastRead();
-        System.out.println("new last read time: " + newLastReadTime.toString());
-        Date newLastWrittenTime = store.masterMap.get(KEY_1).getLastWritten();
-        Assert.assertEquals("Last read time updated upon write, which should not happen", INITIAL_READ_TIME, newLastReadTime);
+        long newLastReadVersion = store.masterMap.get(KEY_1).getLastRead();
+        System.out.println("new last read version: " + newLastReadVersion);
+        long newLastWrittenVersion = store.masterMap.get(KEY_1).getLastWritten();
+        Assert.assertEquals("Last read version updated upon write, which should not happen",
+                INITIAL_READ_VERSION, newLastReadVersion);
 
-        // Now verify the write time actually set
-        Assert.assertTrue("After a write, the last write time was not after the last read time.",
-                newLastWrittenTime.after(WRITE_TRANSACTION_START_TIME));
+        // Now verify the write version actually set
+        Assert.assertTrue("After a write, the last write version was not after the last read version.",
+                newLastWrittenVersion > WRITE_TRANSACTION_START_VERSION);
     }
 
     @Test
@@ -597,6 +596,65 @@ public class TestTransactionalStore {
         Assert.assertTrue("The read transaction, " + T_ID_3 + " needed to have been rolled back but was not", (store.needToRollBack(T_ID_3)));
     }
 
+    /**
+     * Given:  Back-to-back transactions with no pause between their begins and commits
+     * Assert: Only the transaction that started before the conflicting commit is rolled back
+     */
+    @Test
+    public void testConflictDetectionIsExactWithoutPauses() throws InterruptedException {
+
+        final TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        final int STALE_T_ID = 1;
+        final int WRITER_T_ID = 2;
+        final int FRESH_T_ID = 3;
+
+        store.begin(STALE_T_ID);
+        store.read(KEY_1, STALE_T_ID);
+
+        store.begin(WRITER_T_ID);
+        store.write(KEY_1, VALUE_1, WRITER_T_ID);
+        commitWithException(store, WRITER_T_ID);
+
+        store.begin(FRESH_T_ID);
+        store.read(KEY_1, FRESH_T_ID);
+
+        Assert.assertTrue("A read that began before the write committed was not rolled back",
+                store.needToRollBack(STALE_T_ID));
+        Assert.assertFalse("A read that began right after the write committed was rolled back",
+                store.needToRollBack(FRESH_T_ID));
+    }
+
+    /**
+     * Given:  Two overlapping transactions that each increment the same key
+     * Assert: Neither is rolled back, both deltas are applied, and a transaction reads its own increments
+     *         on top of its snapshot
+     */
+    @Test
+    public void testOverlappingIncrementsDoNotConflict() throws InterruptedException, RetryLaterException {
+
+        final TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+        final int SETUP_T_ID = 1;
+        final int T_ID_1 = 2;
+        final int T_ID_2 = 3;
+        final int T_ID_3 = 4;
+
+        store.begin(SETUP_T_ID);
+        store.write(KEY_1, 100, SETUP_T_ID);
+        store.commit(SETUP_T_ID);
+
+        store.begin(T_ID_1);
+        store.begin(T_ID_2);
+        store.increment(KEY_1, 5, T_ID_1);
+        store.increment(KEY_1, 7, T_ID_2);
+        store.increment(KEY_1, 1, T_ID_2);
+        store.commit(T_ID_1);
+        store.commit(T_ID_2);
+
+        store.begin(T_ID_3);
+        store.increment(KEY_1, 2, T_ID_3);
+        Assert.assertEquals(Integer.valueOf(100 + 5 + 7 + 1 + 2), store.read(KEY_1, T_ID_3));
+    }
+
     /**
      * Given:  A transaction that only has a begin and a commit
      * Assert: The server treats this as an invalid transaction
@@ -4,6 +4,7 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by aleks on 10/29/15.
@@ -106,6 +107,166 @@ public class TestTransactionalStoreParallelClients {
                 EXPECTED_SIZE, intSize);
     }
 
+    /**
+     * Given:  Many clients incrementing a single key in parallel, using increment rather than a read
+     *         and a write
+     * Verify: No transaction is ever rolled back, and every increment is counted
+     */
+    @Test
+    public void testParallelIncrementsNeverRollBack() throws Exception {
+
+        final int CONCURRENT_CLIENTS = 50;
+        final TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>();
+
+        ExecutorService execService = Executors.newFixedThreadPool(CONCURRENT_CLIENTS);
+        List<Future> futureList = new ArrayList<Future>();
+        for (int i = 0; i < CONCURRENT_CLIENTS; i++) {
+            futureList.add(execService.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (int increment = 0; increment < INCREMENTS_PER_CLIENT; increment++) {
+                        final int T_ID = TestTransactionalStore.sharedTransactionCounter.addAndGet(1);
+                        store.begin(T_ID);
+                        store.increment(KEY_1, INCREMENT_AMOUNT, T_ID);
+                        // Throws RetryLaterException, failing the client, if it was ever rolled back
+                        store.commit(T_ID);
+                    }
+                    return null;
+                }
+            }));
+        }
+        execService.shutdown();
+
+        for (Future f : futureList) {
+            f.get(60, TimeUnit.SECONDS);
+        }
+
+        final int FINAL_TRANSACTION_ID = TestTransactionalStore.sharedTransactionCounter.addAndGet(1);
+        store.begin(FINAL_TRANSACTION_ID);
+        Assert.assertEquals(Integer.valueOf(INCREMENTS_PER_CLIENT * INCREMENT_AMOUNT * CONCURRENT_CLIENTS),
+                store.read(KEY_1, FINAL_TRANSACTION_ID));
+    }
+
+    /**
+     * Given:  Parallel clients moving amounts between random pairs out of a set of accounts, so that
+     *         some commits touch disjoint keys and some overlap
+     * Verify: The total across all accounts never changes, meaning no transfer was half-applied
+     *         or lost even though commits no longer go through a single lock
+     */
+    @Test
+    public void testParallelTransfersPreserveTotal() throws InterruptedException, ExecutionException {
+
+        final int CONCURRENT_CLIENTS = 8;
+        final int TRANSFERS_PER_CLIENT = 200;
+        final int ACCOUNTS = 16;
+        final int INITIAL_BALANCE = 1000;
+        final TransactionalKVStore<String, Integer> store =
+                new TransactionalKVStore<String, Integer>();
+
+        openAccounts(store, ACCOUNTS, INITIAL_BALANCE);
+
+        ExecutorService execService = Executors.newFixedThreadPool(CONCURRENT_CLIENTS);
+        List<Future> futureList = new ArrayList<Future>();
+        for (int i = 0; i < CONCURRENT_CLIENTS; i++) {
+            futureList.add(execService.submit(new TransferClient(store, ACCOUNTS, TRANSFERS_PER_CLIENT)));
+        }
+
+        execService.shutdown();
+        execService.awaitTermination(90, TimeUnit.SECONDS);
+        for (Future f : futureList) {
+            f.get();
+        }
+
+        final int FINAL_TRANSACTION_ID =
+                TestTransactionalStore.sharedTransactionCounter.addAndGet(1);
+        store.begin(FINAL_TRANSACTION_ID);
+        int total = 0;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            total += store.read("account" + i, FINAL_TRANSACTION_ID);
+        }
+
+        Assert.assertEquals("Money was created or destroyed by concurrent transfers",
+                ACCOUNTS * INITIAL_BALANCE, total);
+    }
+
+    /**
+     * Given:  Parallel clients moving amounts between accounts, while other clients add up every
+     *         account in read-only transactions
+     * Verify: Every read-only audit sees the same total, so each one read a single consistent snapshot
+     *         even though none of them took part in validation
+     */
+    @Test
+    public void testReadOnlyAuditsSeeConsistentSnapshots() throws Exception {
+
+        final int TRANSFER_CLIENTS = 4;
+        final int AUDIT_CLIENTS = 4;
+        final int TRANSFERS_PER_CLIENT = 200;
+        final int ACCOUNTS = 16;
+        final int INITIAL_BALANCE = 1000;
+        final TransactionalKVStore<String, Integer> store =
+                new TransactionalKVStore<String, Integer>();
+        openAccounts(store, ACCOUNTS, INITIAL_BALANCE);
+
+        ExecutorService execService = Executors.newFixedThreadPool(TRANSFER_CLIENTS + AUDIT_CLIENTS);
+
+        // Auditors first, so they are already running when the transfers start, however quickly those finish
+        final AtomicBoolean transfersRunning = new AtomicBoolean(true);
+        List<Future<Integer>> auditList = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < AUDIT_CLIENTS; i++) {
+            auditList.add(execService.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+
+                    int audits = 0;
+                    while (transfersRunning.get()) {
+
+                        final int T_ID = TestTransactionalStore.sharedTransactionCounter.incrementAndGet();
+                        store.beginReadOnly(T_ID);
+                        int total = 0;
+                        for (int account = 0; account < ACCOUNTS; account++) {
+                            total += store.read("account" + account, T_ID);
+                        }
+                        // Never rolled back, whatever committed in the meantime
+                        store.commit(T_ID);
+
+                        Assert.assertEquals("A read-only transaction saw a transfer half-applied",
+                                ACCOUNTS * INITIAL_BALANCE, total);
+                        audits++;
+                    }
+                    return audits;
+                }
+            }));
+        }
+
+        List<Future> transferList = new ArrayList<Future>();
+        for (int i = 0; i < TRANSFER_CLIENTS; i++) {
+            transferList.add(execService.submit(new TransferClient(store, ACCOUNTS, TRANSFERS_PER_CLIENT)));
+        }
+
+        for (Future f : transferList) {
+            f.get(90, TimeUnit.SECONDS);
+        }
+        transfersRunning.set(false);
+        execService.shutdown();
+        for (Future<Integer> f : auditList) {
+            Assert.assertTrue("An auditor never got to run", f.get(90, TimeUnit.SECONDS) > 0);
+        }
+    }
+
+    private static void openAccounts(TransactionalKVStore<String, Integer> store, final int ACCOUNTS,
+                                     final int INITIAL_BALANCE) throws InterruptedException {
+
+        final int INITIAL_TRANSACTION =
+                TestTransactionalStore.sharedTransactionCounter.addAndGet(1);
+        store.begin(INITIAL_TRANSACTION);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            store.write("account" + i, INITIAL_BALANCE, INITIAL_TRANSACTION);
+        }
+        try {
+            store.commit(INITIAL_TRANSACTION);
+        } catch (RetryLaterException rte) {
+            throw new IllegalStateException("KV store required wait on initial transaction");
+        }
+    }
+
     private void runRepeatedParallelIncrementSingleKey(boolean serverSide)
             throws InterruptedException, ExecutionException {
         final int CONCURRENT_CLIENTS = 50;
@@ -226,6 +387,49 @@ public class TestTransactionalStoreParallelClients {
     }
 
 
+    /*
+     *  Moves random amounts between random pairs of accounts, retrying each transfer until it commits
+     */
+    protected static class TransferClient implements Callable<Object> {
+
+        final int ACCOUNTS;
+        final int TRANSFERS_PER_CLIENT;
+        TransactionalKVStore<String, Integer> store;
+
+        public TransferClient(TransactionalKVStore<String, Integer> store, final int ACCOUNTS,
+                              final int TRANSFERS_PER_CLIENT) {
+            this.store = store;
+            this.ACCOUNTS = ACCOUNTS;
+            this.TRANSFERS_PER_CLIENT = TRANSFERS_PER_CLIENT;
+        }
+
+        public Object call() throws Exception {
+
+            for (int transfer = 0; transfer < TRANSFERS_PER_CLIENT; transfer++) {
+
+                final String FROM = "account" + (int) (Math.random() * ACCOUNTS);
+                final String TO = "account" + (int) (Math.random() * ACCOUNTS);
+                final int AMOUNT = (int) (Math.random() * 10);
+                while (true) {
+
+                    int transactionId = TestTransactionalStore.sharedTransactionCounter.incrementAndGet();
+                    store.begin(transactionId);
+                    int fromBalance = store.read(FROM, transactionId);
+                    store.write(FROM, fromBalance - AMOUNT, transactionId);
+                    int toBalance = store.read(TO, transactionId);
+                    store.write(TO, toBalance + AMOUNT, transactionId);
+                    try {
+                        store.commit(transactionId);
+                        break;
+                    } catch (RetryLaterException rte) {
+                        // Somebody else moved money on one of these accounts first. Go again.
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
     protected static class FibonacciClient implements Runnable {
 
         final int CLIENT_ID;
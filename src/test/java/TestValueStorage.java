@@ -0,0 +1,120 @@
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests for keeping byte[] values off the heap in a ValueStorage.
+ */
+public class TestValueStorage {
+
+    final static String KEY_1 = "key1";
+    final static String KEY_2 = "key2";
+
+    static byte[] filled(int length, int fill) {
+
+        byte[] value = new byte[length];
+        Arrays.fill(value, (byte) fill);
+        return value;
+    }
+
+    @Test
+    /**
+     * Given:  Values stored and freed in a small storage, including one bigger than a slab
+     * Assert: Freed blocks are reused by values of a similar size, and every value reads back intact
+     */
+    public void testFreedSpaceIsReused() {
+
+        ValueStorage storage = new ValueStorage(1024);
+        ValueStorage.Handle first = storage.store(filled(100, 1));
+        ValueStorage.Handle second = storage.store(filled(20, 2));
+        Assert.assertEquals(128 + 32, storage.getAllocatedBytes());
+
+        storage.free(first);
+        Assert.assertEquals(32, storage.getAllocatedBytes());
+        ValueStorage.Handle third = storage.store(filled(120, 3));
+        Assert.assertEquals(128 + 32, storage.getAllocatedBytes());
+        Assert.assertEquals(1, storage.getSlabCount());
+
+        ValueStorage.Handle oversized = storage.store(filled(4000, 4));
+        Assert.assertEquals(1, storage.getSlabCount());
+
+        Assert.assertTrue(Arrays.equals(filled(20, 2), (byte[]) second.get()));
+        Assert.assertTrue(Arrays.equals(filled(120, 3), (byte[]) third.get()));
+        Assert.assertTrue(Arrays.equals(filled(4000, 4), (byte[]) oversized.get()));
+
+        storage.free(oversized);
+        storage.free(second);
+        storage.free(third);
+        Assert.assertEquals(0, storage.getAllocatedBytes());
+    }
+
+    @Test
+    /**
+     * Given:  A store keeping its values in a ValueStorage, and a transaction reading a value as a view
+     * Assert: The view is read-only, not a copy on the heap, and holds the committed value
+     */
+    public void testReadViewIsZeroCopy() throws Exception {
+
+        TransactionalKVStore<String, byte[]> store = new TransactionalKVStore<String, byte[]>(new ValueStorage());
+        Transaction<String, byte[]> writer = store.begin();
+        writer.write(KEY_1, filled(64, 7));
+        writer.commit();
+
+        Transaction<String, byte[]> reader = store.begin();
+        ByteBuffer view = reader.readView(KEY_1);
+        Assert.assertTrue(view.isReadOnly());
+        Assert.assertTrue("The view should be of the slab, not of a copy", view.isDirect());
+        Assert.assertEquals(64, view.remaining());
+        Assert.assertEquals(7, view.get(63));
+        Assert.assertTrue(Arrays.equals(filled(64, 7), reader.read(KEY_1)));
+        Assert.assertNull(reader.readView(KEY_2));
+
+        reader.write(KEY_2, filled(8, 1));
+        Assert.assertFalse("A transaction's own write is still on the heap", reader.readView(KEY_2).isDirect());
+        reader.commit();
+    }
+
+    @Test
+    /**
+     * Given:  A key overwritten and then removed while a transaction holds an older snapshot of it
+     * Assert: The snapshot keeps reading its value, and once it ends and the old versions are reclaimed,
+     *         their space is given back
+     */
+    public void testOverwrittenValuesAreFreed() throws Exception {
+
+        ValueStorage storage = new ValueStorage();
+        TransactionalKVStore<String, byte[]> store = new TransactionalKVStore<String, byte[]>(storage);
+        Transaction<String, byte[]> setup = store.begin();
+        setup.write(KEY_1, filled(1000, 1));
+        setup.write(KEY_2, filled(1000, 2));
+        setup.commit();
+        final long SETTLED_BYTES = storage.getAllocatedBytes();
+
+        Transaction<String, byte[]> snapshot = store.beginReadOnly();
+        for (int i = 0; i < 10; i++) {
+            Transaction<String, byte[]> writer = store.begin();
+            writer.write(KEY_1, filled(1000, 10 + i));
+            writer.commit();
+        }
+        Transaction<String, byte[]> remover = store.begin();
+        remover.remove(KEY_2);
+        remover.commit();
+
+        store.reclaimObsoleteVersions();
+        Assert.assertTrue(Arrays.equals(filled(1000, 1), snapshot.read(KEY_1)));
+        Assert.assertEquals(2, snapshot.readView(KEY_2).get(999));
+        snapshot.commit();
+
+        store.reclaimObsoleteVersions();
+        Assert.assertEquals("Only the latest value of KEY_1 should be left", SETTLED_BYTES / 2,
+                storage.getAllocatedBytes());
+
+        Transaction<String, byte[]> after = store.beginReadOnly();
+        Assert.assertTrue(Arrays.equals(filled(1000, 19), after.read(KEY_1)));
+        Assert.assertNull(after.read(KEY_2));
+        after.commit();
+        store.close();
+    }
+}
@@ -0,0 +1,189 @@
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that commits survive a restart by way of the write-ahead log.
+ */
+public class TestWriteAheadLog {
+
+    final static String KEY_1 = "key1";
+    final static String KEY_2 = "key2";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    /**
+     * Given:  A store with a data directory that had writes, overwrites, increments and removes committed
+     *         to it
+     * Assert: A store reopened on the same directory has the same contents, and keeps versioning
+     *         after the replayed commits
+     */
+    public void testReplayRebuildsMasterMap() throws IOException, InterruptedException, RetryLaterException {
+
+        final File dataDirectory = folder.newFolder("store");
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>(dataDirectory);
+        store.begin(1);
+        store.write(KEY_1, 10, 1);
+        store.write(KEY_2, 20, 1);
+        store.commit(1);
+
+        store.begin(2);
+        store.write(KEY_1, 6, 2);
+        store.increment(KEY_1, 5, 2);
+        store.remove(KEY_2, 2);
+        store.commit(2);
+
+        final long versionBeforeRestart = store.getCommittedVersion();
+        store.close();
+
+        TransactionalKVStore<String, Integer> reopened = new TransactionalKVStore<String, Integer>(dataDirectory);
+        Assert.assertEquals("Replay did not restore the committed version", versionBeforeRestart,
+                reopened.getCommittedVersion());
+
+        reopened.begin(3);
+        Assert.assertEquals(Integer.valueOf(11), reopened.read(KEY_1, 3));
+        Assert.assertNull("A removed key came back after replay", reopened.read(KEY_2, 3));
+        reopened.write(KEY_1, 12, 3);
+        reopened.commit(3);
+
+        Assert.assertTrue("New commits must be versioned after the replayed ones",
+                reopened.masterMap.get(KEY_1).getLastWritten() > versionBeforeRestart);
+        reopened.close();
+    }
+
+    @Test
+    /**
+     * Given:  A log whose last record was only partly written when the process stopped
+     * Assert: The complete records are replayed, the partial one is dropped, and the log can be
+     *         appended to again
+     */
+    public void testTornTailIsDiscarded() throws IOException, InterruptedException, RetryLaterException {
+
+        final File dataDirectory = folder.newFolder("torn");
+
+        TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>(dataDirectory);
+        store.begin(1);
+        store.write(KEY_1, 10, 1);
+        store.commit(1);
+        final File segment = store.getWriteAheadLog().getCurrentSegment();
+        store.close();
+
+        // Half a header, as if we crashed in the middle of the next append
+        FileOutputStream log = new FileOutputStream(segment, true);
+        log.write(new byte[]{0, 0, 0, 42, 1, 2});
+        log.close();
+
+        TransactionalKVStore<String, Integer> reopened = new TransactionalKVStore<String, Integer>(dataDirectory);
+        reopened.begin(2);
+        Assert.assertEquals(Integer.valueOf(10), reopened.read(KEY_1, 2));
+        reopened.write(KEY_2, 20, 2);
+        reopened.commit(2);
+        reopened.close();
+
+        TransactionalKVStore<String, Integer> reopenedAgain = new TransactionalKVStore<String, Integer>(dataDirectory);
+        reopenedAgain.begin(3);
+        Assert.assertEquals(Integer.valueOf(10), reopenedAgain.read(KEY_1, 3));
+        Assert.assertEquals(Integer.valueOf(20), reopenedAgain.read(KEY_2, 3));
+        reopenedAgain.close();
+    }
+
+    @Test
+    /**
+     * Given:  Many clients committing to a logged store at once
+     * Assert: Every acknowledged commit is replayed, and the log was forced at most once per commit
+     */
+    public void testConcurrentCommitsAreAllDurable() throws Exception {
+
+        final int CONCURRENT_CLIENTS = 8;
+        final int COMMITS_PER_CLIENT = 50;
+        final File dataDirectory = folder.newFolder("group");
+        final TransactionalKVStore<String, Integer> store = new TransactionalKVStore<String, Integer>(dataDirectory);
+        final AtomicInteger transactionIds = new AtomicInteger();
+
+        ExecutorService execService = Executors.newFixedThreadPool(CONCURRENT_CLIENTS);
+        List<Future> futureList = new ArrayList<Future>();
+        for (int i = 0; i < CONCURRENT_CLIENTS; i++) {
+            final int CLIENT_ID = i;
+            futureList.add(execService.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (int commit = 0; commit < COMMITS_PER_CLIENT; commit++) {
+                        final int T_ID = transactionIds.incrementAndGet();
+                        store.begin(T_ID);
+                        store.write("client" + CLIENT_ID + "-" + commit, commit, T_ID);
+                        store.commit(T_ID);
+                    }
+                    return null;
+                }
+            }));
+        }
+        execService.shutdown();
+        for (Future f : futureList) {
+            f.get(60, TimeUnit.SECONDS);
+        }
+
+        final int TOTAL_COMMITS = CONCURRENT_CLIENTS * COMMITS_PER_CLIENT;
+        System.out.println(TOTAL_COMMITS + " commits took " + store.getWriteAheadLog().getFlushCount() + " forces");
+        Assert.assertTrue(store.getWriteAheadLog().getFlushCount() <= TOTAL_COMMITS);
+        store.close();
+
+        TransactionalKVStore<String, Integer> reopened = new TransactionalKVStore<String, Integer>(dataDirectory);
+        reopened.begin(0);
+        for (int i = 0; i < CONCURRENT_CLIENTS; i++) {
+            for (int commit = 0; commit < COMMITS_PER_CLIENT; commit++) {
+                Assert.assertEquals(Integer.valueOf(commit), reopened.read("client" + i + "-" + commit, 0));
+            }
+        }
+        reopened.close();
+    }
+
+    @Test
+    /**
+     * Given:  A durable store whose log can no longer be written, and a commit made after that
+     * Assert: The commit fails, its write is not visible to new transactions, and the store takes no more
+     *         commits
+     */
+    public void testCommitThatCannotBeLoggedIsNotVisible() throws IOException, InterruptedException, RetryLaterException {
+
+        TransactionalKVStore<String, Integer> store =
+                new TransactionalKVStore<String, Integer>(folder.newFolder("store"));
+        store.begin(1);
+        store.write(KEY_1, 10, 1);
+        store.commit(1);
+        final long versionBeforeFailure = store.getCommittedVersion();
+
+        // Every write to the log fails from here on
+        store.getWriteAheadLog().close();
+
+        store.begin(2);
+        store.write(KEY_1, 20, 2);
+        try {
+            store.commit(2);
+            Assert.fail("A commit that could not be logged should have failed");
+        } catch (IllegalStateException expected) {
+        }
+
+        Assert.assertEquals(versionBeforeFailure, store.getCommittedVersion());
+        store.begin(3);
+        Assert.assertEquals("A commit that was not logged became visible", Integer.valueOf(10), store.read(KEY_1, 3));
+        store.write(KEY_2, 30, 3);
+        try {
+            store.commit(3);
+            Assert.fail("The store should take no more commits once its log has failed");
+        } catch (IllegalStateException expected) {
+        }
+        Assert.assertEquals(versionBeforeFailure, store.getCommittedVersion());
+        Assert.assertEquals(0, store.getLiveTransactionCount());
+    }
+}